@@ -24,6 +24,7 @@
    [datalevin.index :as idx]
    [datalevin.idoc :as idoc]
    [datalevin.vector :as v]
+   [datalevin.hybrid :as hy]
    [datalevin.entity :as de]
    [datalevin.remote :as r]
    [datalevin.util :as u :refer [raise long-inc]]
@@ -162,26 +163,46 @@
   e.g. [(or (= ?g \"f\"\") (like ?n \"A%\"\"))]"
   or-fn)
 
+(defn- e-only?
+  "Whether e is the only part of a datom among the `needed` indices"
+  [^ints needed]
+  (not-any? #(clojure.core/<= 1 % 2) needed))
+
+(defn- ref-giant
+  "Return the datom of a giant doc or vec ref, read once, or just its entity
+  id if `e-only?`, so that its value is not decoded. Return nil for a ref
+  that is not giant."
+  [lmdb e-only? ref]
+  (when (clojure.core/and (vector? ref) (clojure.core/= :g (first ref)))
+    (let [h (idx/gt->giant lmdb (peek ref))]
+      (if e-only? (idx/giant-e h) @h))))
+
+(defn- ref-part
+  "Return e, a or v of the datom of a doc or vec ref as `i` is 0, 1 or 2,
+  `g` is what `ref-giant` returns for the ref"
+  [aid->attr ref g ^long i]
+  (if (clojure.core/nil? g)
+    (case i
+      0 (nth ref 0)
+      1 (aid->attr (nth ref 1))
+      2 (peek ref))
+    (case i
+      0 (if (dd/datom? g) (dd/datom-e g) g)
+      1 (dd/datom-a g)
+      2 (dd/datom-v g))))
+
 (defn- make-emit-fn
   "Create an emit function that produces tuples with only the needed indices.
    If needed is nil, produces full [e a v] tuples."
   [lmdb aid->attr ^ints needed]
   (if needed
-    (let [n (alength needed)]
+    (let [n      (alength needed)
+          e-only (e-only? needed)]
       (fn [doc-ref]
         (let [^objects arr (object-array n)
-              [e a v]      (if (and (vector? doc-ref)
-                                    (clojure.core/= :g (first doc-ref)))
-                             (let [d (idx/gt->datom lmdb (second doc-ref))]
-                               [(dd/datom-e d) (dd/datom-a d) (dd/datom-v d)])
-                             [(nth doc-ref 0)
-                              (aid->attr (nth doc-ref 1))
-                              (peek doc-ref)])]
+              g            (ref-giant lmdb e-only doc-ref)]
           (dotimes [j n]
-            (aset arr j (case (aget needed j)
-                          0 e
-                          1 a
-                          2 v)))
+            (aset arr j (ref-part aid->attr doc-ref g (aget needed j))))
           arr)))
     (fn [doc-ref]
       (if (and (vector? doc-ref)
@@ -274,25 +295,17 @@
       (if refs+dists
         ;; For refs+dists, we have 4 elements: e(0), a(1), v(2), dist(3)
         (if needed
-          (let [n (alength needed)]
+          (let [n      (alength needed)
+                e-only (e-only? needed)]
             (doseq [d (search-vec index query opts)]
-              (let [[vec-ref dist]  d
-                    [e a v]         (if (and (vector? vec-ref)
-                                             (clojure.core/= :g (first vec-ref)))
-                                      (let [datom (idx/gt->datom lmdb (peek vec-ref))]
-                                        [(dd/datom-e datom)
-                                         (dd/datom-a datom)
-                                         (dd/datom-v datom)])
-                                      [(nth vec-ref 0)
-                                       (aid->attr (nth vec-ref 1))
-                                       (peek vec-ref)])
-                    ^objects arr    (object-array n)]
+              (let [[vec-ref dist] d
+                    g              (ref-giant lmdb e-only vec-ref)
+                    ^objects arr   (object-array n)]
                 (dotimes [j n]
-                  (aset arr j (case (aget needed j)
-                                0 e
-                                1 a
-                                2 v
-                                3 dist)))
+                  (let [k (aget needed j)]
+                    (aset arr j (if (clojure.core/== k 3)
+                                  dist
+                                  (ref-part aid->attr vec-ref g k)))))
                 (.add res arr))))
           (doseq [d (search-vec index query opts)]
             (let [[vec-ref dist] d
@@ -346,6 +359,52 @@
        (vec-neighbors* res aid->attr lmdb indices query opts domain needed))
      res)))
 
+(defn- ref->e
+  [lmdb ref]
+  (if (clojure.core/and (vector? ref) (clojure.core/= :g (first ref)))
+    (idx/giant-e (idx/gt->giant lmdb (second ref)))
+    (nth ref 0)))
+
+(defn hybrid
+  "Function that does hybrid search, i.e. full-text search on `text-attr`
+  and vector search on `vec-attr`, with results fused by entity. Returns
+  tuples of (e score) ranked by the fused score.
+
+  The last argument of the 6 arity function is the option map, see
+  [[datalevin.core.hybrid-search]].
+
+  For example:
+
+        `[(hybrid $ :doc/text ?q :doc/embedding ?v {:top 5}) [[?e ?score]]]`"
+  ([db text-attr query vec-attr query-vec]
+   (hybrid db text-attr query vec-attr query-vec nil))
+  ([^DB db text-attr query vec-attr query-vec opts]
+   (let [^Store store (.-store db)
+         lmdb         (.-lmdb store)
+         engine       ((.-search-engines store) (u/keyword->string text-attr))
+         index        ((.-vector-indices store) (v/attr-domain vec-attr))
+         {:keys [text-opts vec-opts]} opts
+         res          (FastList.)]
+     (when-not (-> store schema text-attr :db.fulltext/autoDomain)
+       (raise ":db.fulltext/autoDomain is not true for " text-attr {}))
+     (when-not index
+       (raise "No vector index for " vec-attr {}))
+     (doseq [[e score]
+             (hy/hybrid-search*
+               (fn [depth]
+                 (map (fn [[ref s]] [(ref->e lmdb ref) s])
+                      (search engine query
+                              (assoc text-opts :top depth
+                                     :display :refs+scores))))
+               (fn [depth]
+                 (map (fn [[ref d]] [(ref->e lmdb ref) d])
+                      (search-vec index query-vec
+                                  (assoc vec-opts :top depth
+                                         :display :refs+dists))))
+               opts)]
+       (.add res (object-array [e score])))
+     res)))
+
 (defn- idoc-domain
   [store attr]
   (let [props ((schema store) attr)]
@@ -870,6 +929,7 @@
    'idoc-match    idoc-match,
    'idoc-get      idoc-get,
    'vec-neighbors vec-neighbors,
+   'hybrid        hybrid,
    'tuple         vector,
    'untuple       identity
    'like          like
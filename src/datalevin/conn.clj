@@ -313,7 +313,8 @@
                   (open-kv dir))
                 (.-lmdb ^Store store))]
     (try
-      (doseq [dbi [c/eav c/ave c/giants c/schema c/meta]]
+      (doseq [dbi [c/eav c/ave c/giants c/giant-hashes c/giant-refs
+                   c/side-queue c/side-failed c/schema c/meta]]
         (i/clear-dbi lmdb dbi))
       (finally
         (db/remove-cache store)
@@ -48,6 +48,12 @@
    When deltas are larger than this, hash joins are preferred."
   100)
 
+(def ^:dynamic *rule-parallel-min-delta*
+  "Minimum delta size of a linear recursive rule, at which its evaluation
+   in an iteration is split into partitions of the delta by join key and
+   run in parallel."
+  4096)
+
 (def magic-explosion-factor
   "Factor by which magic seed can grow before falling back to non-magic.
    If total magic rule tuples exceed initial-seed-size * this factor,
@@ -135,6 +141,22 @@
   will be triggered"
   95)
 
+(def ^:const default-spill-budget
+  "Default percentage of heap memory (Xmx) is 50, that the in-memory part of
+  the spillable collections of a query may take, beyond which they spill"
+  50)
+
+(def ^:dynamic *spill-batch-size*
+  "Number of spilled items that are buffered and written to disk in one
+  transaction"
+  1024)
+
+(def ^:dynamic *spill-dedupe-min*
+  "Minimum number of tuples to deduplicate, e.g. the total of two relations
+  to sum, at which a spillable set is used rather than a plain hash set. A
+  plain set that grows to this size moves its tuples to a spillable one"
+  65536)
+
 (def default-spill-root
   "Default root directory of spilled files is platform dependent. the same as
   the value of Java property `java.io.tmpdir`"
@@ -244,6 +266,14 @@
 (def ^:const giants
   "dbi name for Datalog large datoms is `datalevin/giants`"
   "datalevin/giants")
+(def ^:const giant-hashes
+  "dbi name for the content hashes of shared Datalog large values is
+  `datalevin/giant-hashes`"
+  "datalevin/giant-hashes")
+(def ^:const giant-refs
+  "dbi name for the reference counts of shared Datalog large values is
+  `datalevin/giant-refs`"
+  "datalevin/giant-refs")
 (def ^:const schema
   "dbi name for Datalog schema is `datalevin/schema`"
   "datalevin/schema")
@@ -253,6 +283,14 @@
 (def ^:const opts
   "dbi name for Datalog options is `datalevin/opts`"
   "datalevin/opts")
+(def ^:const side-queue
+  "dbi name for queued full-text, vector and idoc index updates is
+  `datalevin/side-queue`"
+  "datalevin/side-queue")
+(def ^:const side-failed
+  "dbi name for queued full-text, vector and idoc index updates that kept
+  failing is `datalevin/side-failed`"
+  "datalevin/side-failed")
 
 ;; compression
 
@@ -299,10 +337,22 @@
   "dbi name suffix for search engine raw text is `rawtext`"
   "rawtext")
 
+(def ^:const facets
+  "dbi name suffix for search engine facets index is `facets`"
+  "facets")
+
 (def ^:const vec-refs
   "dbi name suffix for vec-ref -> vec-id map is `vec-refs`"
   "vec-refs")
 
+(def ^:const vec-wal
+  "dbi name suffix for vector index write-ahead log is `vec-wal`"
+  "vec-wal")
+
+(def ^:const vec-floats
+  "dbi name suffix for vec-id -> full precision vector map is `vec-floats`"
+  "vec-floats")
+
 ;; idoc
 
 (def ^:const idoc-doc-ref
@@ -317,6 +367,10 @@
   "dbi name suffix for idoc path dictionary is `path-dict`"
   "path-dict")
 
+(def ^:const idoc-path-stats
+  "dbi name suffix for idoc per-path value statistics is `path-stats`"
+  "path-stats")
+
 (def ^:const +max-term-length+
   "The full text search engine ignores exceedingly long strings. The maximal
   allowed term length is 128 characters"
@@ -461,10 +515,34 @@
        :doc     "Batch size (# of datoms) when filling Datalog DB"}
   *fill-db-batch-size* 1048576)
 
+(def ^{:dynamic true
+       :doc     "Minimal number of datoms in a transaction to encode them in
+  parallel before taking the write lock"}
+  *datom-encode-parallel-size* 4096)
+
+(def ^{:dynamic true
+       :doc     "Number of datoms encoded by a thread at a time"}
+  *datom-encode-chunk-size* 1024)
+
 (def ^{:dynamic true
        :doc     "Datalog DB starts background sampling or not"}
   *db-background-sampling?* true)
 
+(def ^{:dynamic true
+       :doc     "Time interval between applying queued side index updates when
+  `:async-side-index?` option is true, in milliseconds"}
+  *side-index-interval* 100)
+
+(def ^{:dynamic true
+       :doc     "Number of queued transactions whose side index updates are
+  applied in one KV transaction"}
+  *side-index-batch-size* 64)
+
+(def ^{:dynamic true
+       :doc     "Number of times the queued side index updates of a transaction
+  may fail to apply, before they are moved out of the queue"}
+  *side-index-max-retries* 10)
+
 ;; datalog query engine
 
 (def ^{:dynamic true
@@ -621,6 +699,14 @@ Used in English analyzer."}
       (.add s c))
     s))
 
+(def ^{:dynamic true
+       :doc     "Limit of the number of query results held in the result cache of a search engine"}
+  *search-result-cache-size* 1024)
+
+(def ^{:dynamic true
+       :doc     "Default maximal number of indexed terms a `:prefix` or `:fuzzy` search term expands into"}
+  *search-max-expansions* 128)
+
 (def ^{:dynamic true
        :doc     "batch size when using search index writer and `:index-position?` is `false`"}
   *index-writer-batch-size* 500)
@@ -628,3 +714,49 @@ Used in English analyzer."}
 (def ^{:dynamic true
        :doc     "batch size  when using search index writer and `:index-position?` is `true`"}
   *index-writer-batch-size-pos* 200000)
+
+;; vector
+
+(def ^{:dynamic true
+       :doc     "Default number of threads used to insert vectors in `add-vecs`"}
+  *vector-add-threads* (.availableProcessors (Runtime/getRuntime)))
+
+(def ^{:dynamic true
+       :doc     "Default number of threads used to search vectors in `search-vecs`"}
+  *vector-search-threads* (.availableProcessors (Runtime/getRuntime)))
+
+(def ^{:dynamic true
+       :doc     "When `:vec-refs` restricts a vector search to no more than this many vectors, distances are computed exhaustively instead of searching the graph"}
+  *vector-brute-force-max* 1024)
+
+(def ^{:dynamic true
+       :doc     "When `:vec-refs` restricts a vector search to less than this fraction of the index, distances are computed exhaustively instead of searching the graph"}
+  *vector-brute-force-ratio* 0.01)
+
+(def ^{:dynamic true
+       :doc     "Number of vector write-ahead log entries that triggers a snapshot of the vector index"}
+  *vector-wal-snapshot-size* 10000)
+
+(def ^{:dynamic true
+       :doc     "When full precision vectors are kept, this many times of `:top` candidates are fetched from the quantized index for re-ranking"}
+  *vector-rerank-oversample* 4)
+
+;; idoc
+
+(def ^{:dynamic true
+       :doc     "When a conjunct of an idoc query is estimated to match more than this many times of the candidates found so far, it is not looked up in the index, but verified on the candidate documents"}
+  *idoc-verify-ratio* 16)
+
+(def ^{:dynamic true
+       :doc     "Minimal number of idoc documents added together to use bulk ingestion, which extracts paths in parallel and writes the index entries in sorted order"}
+  *idoc-bulk-min-docs* 256)
+
+(def ^{:dynamic true
+       :doc     "Number of idoc documents processed by a thread at a time in bulk ingestion"}
+  *idoc-bulk-chunk-size* 64)
+
+;; hybrid search
+
+(def ^{:dynamic true
+       :doc     "Maximal number of results fetched from either full-text or vector search for hybrid search"}
+  *hybrid-max-depth* 4096)
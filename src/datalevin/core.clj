@@ -17,6 +17,7 @@
    [datalevin.csv :as csv]
    [datalevin.search :as sc]
    [datalevin.vector :as v]
+   [datalevin.hybrid :as h]
    [datalevin.db :as db]
    [datalevin.datom :as dd]
    [datalevin.interface :as i]
@@ -255,6 +256,12 @@ Only usable for debug output.
 
    * `:auto-entity-time?`, a boolean indicating whether to maintain `:db/created-at` and `:db/updated-at` values for each entity. Default is `false`.
 
+   * `:async-side-index?`, a boolean. When `true`, full-text, vector and idoc index updates are queued in the transaction, and applied by a background task, see [[await-side-indices]]. Default is `false`.
+
+   * `:dedup-giants?`, a boolean. When `true`, equal values too large to fit in an index key are stored once and shared, except those of full-text, vector and idoc attributes. Default is `false`.
+
+   * `:table-rules?`, a boolean. When `true`, the results of rules are kept in the DB cache across queries, until a transaction touches the attributes they read. Default is `false`.
+
    * `:search-domains`, an option map from domain names to search option maps of those domains, which will be passed to the corresponding full-text search engines. See [[new-search-engine]]
 
    * `:search-opts` is the default options passed to [[fulltext]] function for the default search domains in case `:search-domains` above is not specified.
@@ -531,6 +538,15 @@ Only usable for debug output.
   Datalevin runs this function in the background periodically. "}
   analyze db/analyze)
 
+(def ^{:arglists '([db])
+       :doc      "When the DB is opened with `:async-side-index?` option, apply the
+  queued full-text, vector and idoc index updates in the calling thread, so
+  that queries see all transactions committed so far. Return the tx up to
+  which these indices are updated. Updates that failed to apply
+  `*side-index-max-retries*` times are moved to the `datalevin/side-failed`
+  DBI instead. Only works for a local DB."}
+  await-side-indices db/await-side-indices)
+
 (def ^{:arglists '([db index]
                    [db index c1]
                    [db index c1 c2]
@@ -630,6 +646,12 @@ Only usable for debug output.
 
    * `:auto-entity-time?`, a boolean indicating whether to maintain `:db/created-at` and `:db/updated-at` values for each entity. Default is `false`.
 
+   * `:async-side-index?`, a boolean. When `true`, full-text, vector and idoc index updates are queued in the transaction, and applied by a background task, see [[await-side-indices]]. Default is `false`.
+
+   * `:dedup-giants?`, a boolean. When `true`, equal values too large to fit in an index key are stored once and shared, except those of full-text, vector and idoc attributes. Default is `false`.
+
+   * `:table-rules?`, a boolean. When `true`, the results of rules are kept in the DB cache across queries, until a transaction touches the attributes they read. Default is `false`.
+
    * `:search-domains`, an option map from domain names to search option maps of those domains, which will be passed to the corresponding full-text search engines. See [[new-search-engine]]
 
    * `:search-opts` is the default options passed to [[fulltext]] function for the default search domains in case `:search-domains` above is not specified.
@@ -657,6 +679,12 @@ Only usable for debug output.
 
    * `:auto-entity-time?`, a boolean indicating whether to maintain `:db/created-at` and `:db/updated-at` values for each entity. Default is `false`.
 
+   * `:async-side-index?`, a boolean. When `true`, full-text, vector and idoc index updates are queued in the transaction, and applied by a background task, see [[await-side-indices]]. Default is `false`.
+
+   * `:dedup-giants?`, a boolean. When `true`, equal values too large to fit in an index key are stored once and shared, except those of full-text, vector and idoc attributes. Default is `false`.
+
+   * `:table-rules?`, a boolean. When `true`, the results of rules are kept in the DB cache across queries, until a transaction touches the attributes they read. Default is `false`.
+
    * `:search-domains`, an option map from domain names to search option maps of those domains, which will be passed to the corresponding full-text search engines. [[new-search-engine]]
 
    * `:search-opts` is the default options passed to [[fulltext]] function for the default search domains in case `:search-domains` above is not specified.
@@ -943,6 +971,9 @@ Only usable for debug output.
    keys:
       - `:spill-threshold`, memory pressure in percentage of JVM `-Xmx`
         (default 80), above which spill-to-disk will be triggered.
+      - `:spill-budget`, number of bytes the in-memory part of a spilling
+        collection may take, beyond which spill-to-disk will be triggered
+        (default is 50% of JVM `-Xmx`, shared by the collections of a query).
       - `:spill-root`, a file directory, in which the spilled data is written
         (default is the system temporary directory).
 
@@ -1901,19 +1932,28 @@ engine index."}
     <operator>   ::= :or | :and | :not
     <operands>   ::= <expression>+
     <term>       ::= string | { <pair>+ }
-    <pair>       ::= <key> string
-    <key>        ::= :phrase | :term
+    <pair>       ::= <key> string | <option> integer
+    <key>        ::= :phrase | :term | :prefix | :fuzzy
+    <option>     ::= :edits | :max-expansions
 
 For example, `[:or [:and \"red\" \"fox\" [:not \"lazy\"]] {:phrase \"jump over\"}]`
 
+`{:prefix \"dat\"}` matches indexed terms starting with `dat`, and
+`{:fuzzy \"datalevn\"}` matches indexed terms within a Levenshtein distance of
+`:edits` from `datalevn`. By default, `:edits` is 0, 1 or 2 for terms of length
+less than 3, less than 6, or longer, respectively. Either expands into at most
+`:max-expansions` (default 128) indexed terms, OR'ed together.
+
 If the query is a string of words, e.g. `\"word1 word2 word3\"`, it is equivalent
 to `[:or \"word1\" \"word2\" \"word3\"]` when using the default analyzer.
 
 `opts` map may have these keys:
 
-  * `:display` can be one of `:refs` (default), `:offsets`, `:texts`,
-    or `:texts+offsets`.
+  * `:display` can be one of `:refs` (default), `:refs+scores`, `:offsets`,
+    `:texts`, or `:texts+offsets`.
     - `:refs` returns a lazy sequence of `doc-ref` ordered by relevance.
+    - `:refs+scores` returns a lazy sequence of `[doc-ref score]` ordered by
+      relevance.
     - `:offsets` returns a lazy sequence of
       `[doc-ref [term1 [offset ...]] [term2 [...]] ...]`,
       ordered by relevance, if search engine option `:index-position?`
@@ -1938,6 +1978,35 @@ to `[:or \"word1\" \"word2\" \"word3\"]` when using the default analyzer.
     value is `45`. It is only applicable when `index-position?` is `true`"}
   search i/search)
 
+(def ^{:arglists '([engine doc-ref facets])
+       :doc      "Set the facet values of a document already added to the
+  search engine, replacing its previous facet values. `facets` is a map of
+  facet name to a facet value or a set of facet values, e.g.
+  `{:category \"news\" :tags #{\"tech\" \"ai\"}}`. Facet values are kept
+  when the document text is updated with [[add-doc]], and are removed when the
+  document is removed.
+
+  See also [[facet-counts]]."}
+  set-doc-facets i/set-doc-facets)
+
+(def ^{:arglists '([engine query])
+       :doc      "Return a `RoaringBitmap` of the internal doc ids of all the
+  documents matching the `query`, regardless of ranking. `query` is the same as
+  that of [[search]]. Mainly useful for computing aggregates over search hits."}
+  search-hits i/search-hits)
+
+(def ^{:arglists '([engine query facet-names])
+       :doc      "Return facet counts of all the documents matching the
+  `query`, as a map of facet name to a map of facet value to the number of
+  matching documents having that value. Only facets in `facet-names` are
+  counted, and values with zero count are omitted.
+
+  For example, `(facet-counts engine \"red fox\" [:category])` may return
+  `{:category {\"news\" 12 \"blog\" 3}}`.
+
+  See also [[set-doc-facets]]."}
+  facet-counts i/facet-counts)
+
 (def ^{:arglists '([writer doc-ref doc-text]
                    [writer doc-ref doc-text opts])
        :doc      "Create a writer for writing documents to the search index
@@ -2014,6 +2083,18 @@ to `[:or \"word1\" \"word2\" \"word3\"]` when using the default analyzer.
    * `:expansion-search` is the number of candidates considered when searching
      the index.
 
+   * `:view?` if `true`, memory-maps the saved index read only instead of
+     loading it, so opening is fast and the memory is shared among processes.
+     Changes go to an in-memory delta index, and are merged into the saved
+     index at the next snapshot. Default is `false`.
+
+   * `:rerank?` if `true`, the vectors are given as 32 bits floats and kept
+     in full precision in LMDB as well, while the index holds them in the
+     `:quantization` type. Search fetches `:oversample` times more
+     candidates from the index, and re-ranks them by their exact distances
+     to the query, so a much smaller quantized index, e.g. `:int8`, gives
+     about the same recall as a `:float` one. Default is `false`.
+
    * `:search-opts` is an option map having these keys:
       ` `:top` is the number of results desired. Default is 10.
       - `:display` is a keyword indicating what is in each result.
@@ -2046,7 +2127,9 @@ to `[:or \"word1\" \"word2\" \"word3\"]` when using the default analyzer.
      * `:quantization` see [[new-vector-index]]
      * `:connectivity`  see [[new-vector-index]]
      * `:expansion-add` see [[new-vector-index]]
-     * `:expansion-search`see [[new-vector-index]]"}
+     * `:expansion-search`see [[new-vector-index]]
+     * `:view?` see [[new-vector-index]]
+     * `:rerank?` see [[new-vector-index]]"}
   vector-index-info i/vecs-info)
 
 (def ^{:arglists '([index vec-ref vec-data])
@@ -2059,6 +2142,24 @@ to `[:or \"word1\" \"word2\" \"word3\"]` when using the default analyzer.
         See [[new-vector-index]]"}
   add-vec i/add-vec)
 
+(def ^{:arglists '([index vec-pairs] [index vec-pairs opts])
+       :doc      "Add a batch of vectors to the vector index, return the
+  vector ids assigned to them, in order.
+
+  `vec-pairs` is a sequence of `[vec-ref vec-data]`, see [[add-vec]].
+
+  This is much faster than calling [[add-vec]] repeatedly: the index capacity
+  is reserved once, the vectors are copied into a single native buffer and
+  inserted by multiple threads, and the references are written in one
+  transaction.
+
+  `opts` may have these keys:
+
+   * `:threads` is the number of threads used to insert the vectors, default
+     is `datalevin.constants/*vector-add-threads*`, i.e. the number of
+     processors."}
+  add-vecs i/add-vecs)
+
 (def ^{:arglists '([index vec-ref])
        :doc      "Remove all the vectors associated with the `vec-ref`
   from the `index`"}
@@ -2079,9 +2180,68 @@ to `[:or \"word1\" \"word2\" \"word3\"]` when using the default analyzer.
       - `:refs+dists` returns `vec-ref` and distances to the query vector
         together.
    * `:vec-filter` is a boolean function that takes the `vec-ref` and decides if
-     it should be in the results."}
+     it should be in the results. The filter is applied during the graph
+     traversal, so up to `:top` matching neighbors are returned even if the
+     filter is selective.
+   * `:vec-refs` is a collection of `vec-ref`, restricting the search to their
+     vectors. When they are few, e.g. no more than
+     `datalevin.constants/*vector-brute-force-max*`, or less than
+     `datalevin.constants/*vector-brute-force-ratio*` of the index, their
+     distances to the query vector are computed exhaustively, otherwise, the
+     graph is searched with them as a filter.
+   * `:oversample` applies when the index has `:rerank?`, the number of
+     candidates fetched from the quantized index for re-ranking is this
+     times `:top`. Default is `datalevin.constants/*vector-rerank-oversample*`,
+     i.e. 4."}
   search-vec i/search-vec)
 
+(def ^{:arglists '([index query-vecs] [index query-vecs opts])
+       :doc      "Search the vector index with many query vectors at once,
+  return a vector of the results of each query vector, in order, see
+  [[search-vec]].
+
+  The query vectors are copied into a single native buffer and searched by
+  multiple threads. On a remote index, the whole batch takes one round trip.
+
+  `opts` are the same as those of [[search-vec]], except that `:vec-refs` is
+  always used as a filter of the graph search, in addition:
+
+   * `:threads` is the number of threads used to search, default is
+     `datalevin.constants/*vector-search-threads*`, i.e. the number of
+     processors."}
+  search-vecs i/search-vecs)
+
+(def ^{:arglists '([engine index query query-vec]
+                   [engine index query query-vec opts])
+       :doc      "Hybrid search: issue a full-text `query` to the search
+  `engine` (see [[search]]), and search the vector `index` with `query-vec`
+  (see [[search-vec]]), then rank the refs by fusing the two rankings. The
+  engine and the index should use the same refs.
+
+  Rather than fetching many results from both, results are fetched
+  progressively deeper, until no ref outside of the top ones could score
+  higher than them, or `datalevin.constants/*hybrid-max-depth*` is reached.
+  For `:weighted` fusion, unseen full-text results are bounded by the sum of
+  the maximal scores of the query terms. When there is no such bound, i.e.
+  positions are indexed or the engine is remote, it fetches that maximal
+  depth at once.
+
+  `opts` map may have these keys:
+
+  * `:top` is the number of results desired, default is 10.
+  * `:fusion` is the method to fuse the two rankings:
+    - `:rrf`, reciprocal rank fusion, the default. A ref scores
+      `w / (k + rank)` from each ranking it appears in.
+    - `:weighted`, weighted sum of full-text score, normalized by the best
+      one, and vector similarity `1 / (1 + distance)`.
+  * `:rrf-k` is the `k` of reciprocal rank fusion, default is 60.
+  * `:weights` is a map of `:text` and `:vector` weights, default is 1.0 each.
+  * `:display` can be `:refs` (default) or `:refs+scores`, the latter returns
+    `[ref score]`.
+  * `:text-opts` is the option map passed to [[search]].
+  * `:vec-opts` is the option map passed to [[search-vec]]."}
+  hybrid-search h/hybrid-search)
+
 ;; -------------------------------------
 ;; byte buffer
 
@@ -299,7 +299,7 @@
         (let [[_ a] k]
           (contains? attrs a))
 
-        :query-result
+        (:query-result :rule-table)
         (let [[_ deps] k]
           (if (map? deps)
             (or (:all? deps)
@@ -661,6 +661,14 @@
   ([db attr] {:pre [(db? db)]}
    (i/analyze (:store db) attr)))
 
+(defn await-side-indices
+  [db]
+  {:pre [(db? db)]}
+  (let [store (:store db)]
+    (if (instance? Store store)
+      (s/await-side-indices store)
+      (u/raise "Side indices can only be awaited on a local store" {}))))
+
 ;; ----------------------------------------------------------------------------
 
 (defn- open-store
@@ -0,0 +1,139 @@
+;;
+;; Copyright (c) Huahai Yang. All rights reserved.
+;; The use and distribution terms for this software are covered by the
+;; Eclipse Public License 2.0 (https://opensource.org/license/epl-2-0)
+;; which can be found in the file LICENSE at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by
+;; the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+;;
+(ns ^:no-doc datalevin.hybrid
+  "Hybrid search fusing full-text and vector search results"
+  (:require
+   [datalevin.constants :as c]
+   [datalevin.interface :as i]
+   [datalevin.search :as s]
+   [datalevin.util :refer [raise]])
+  (:import
+   [datalevin.search SearchEngine]
+   [java.util HashMap Map$Entry]))
+
+;; Each ranked list, full-text or vector, is turned into contributions to
+;; the fused score of its keys, in rank order, and a bound of the
+;; contribution of any key not (yet) in it. The lists are fetched deeper and
+;; deeper until no key outside of the top could still overtake the top ones.
+
+(defn- rrf-list
+  "reciprocal rank fusion contributions, `w` / (`k` + rank)"
+  [ks ^double w ^long k exhausted?]
+  (let [n (count ks)]
+    {:contribs (map-indexed (fn [^long r key] [key (/ w (+ k r 1))]) ks)
+     :bound    (if exhausted? 0.0 (/ w (+ k n 1)))}))
+
+(defn- text-weights
+  "normalize full-text scores by the best one. Full-text hits are not
+  strictly in score order, so what is not yet seen is only bounded by
+  `text-bound`, the best score any hit of the query could have"
+  [key-scores ^double w exhausted? text-bound]
+  (let [best (double (reduce max 0.0 (map peek key-scores)))
+        norm (fn [s] (if (zero? best) 0.0 (/ (* w ^double s) best)))]
+    {:contribs (map (fn [[key s]] [key (norm s)]) key-scores)
+     :bound    (cond
+                 exhausted?                   0.0
+                 (and text-bound (pos? best)) (norm text-bound)
+                 :else                        Double/POSITIVE_INFINITY)}))
+
+(defn- vec-weights
+  "turn vector distances into similarities in (0, 1]"
+  [key-dists ^double w exhausted?]
+  (let [sim (fn [d] (/ w (+ 1.0 (max 0.0 (double d)))))]
+    {:contribs (map (fn [[key d]] [key (sim d)]) key-dists)
+     :bound    (if exhausted? 0.0 (sim (peek (last key-dists))))}))
+
+(defn- fuse
+  "Return [ranked [key score] pairs, done?]. A key keeps only its best
+  contribution from a list, as different refs may map to the same key"
+  [lists ^long top]
+  (let [^HashMap scores (HashMap.)
+        ^HashMap seen   (HashMap.)]
+    (doseq [[li {:keys [contribs]}] (map-indexed vector lists)]
+      (doseq [[key ^double s] contribs]
+        (let [lk [li key]]
+          (when-not (.containsKey seen lk)
+            (.put seen lk true)
+            (.put scores key (+ s ^double (.getOrDefault scores key 0.0)))))))
+    (let [ranked   (sort-by peek > (map (fn [^Map$Entry e]
+                                          [(.getKey e) (.getValue e)])
+                                        (.entrySet scores)))
+          topk     (take top ranked)
+          ;; best possible score of keys outside of the top
+          bound-of (fn [key]
+                     (reduce + (map-indexed
+                                 (fn [li {:keys [bound]}]
+                                   (if (.containsKey seen [li key]) 0.0 bound))
+                                 lists)))
+          unseen   (reduce + (map :bound lists))
+          rest-max (reduce max unseen
+                           (map (fn [[key s]] (+ ^double s ^double (bound-of key)))
+                                (drop top ranked)))
+          kth      (if (< (count topk) top)
+                     Double/NEGATIVE_INFINITY
+                     (double (peek (last topk))))]
+      [topk (or (zero? ^double unseen) (<= ^double rest-max kth))])))
+
+(defn hybrid-search*
+  "Fuse ranked lists fetched by `text-fn` and `vec-fn`, each taking a depth
+  and returning at most that many `[key score]` or `[key distance]` pairs
+  in rank order. `text-bound` is the best possible full-text score, without
+  it, `:weighted` fusion fetches the maximal depth at once."
+  ([text-fn vec-fn opts]
+   (hybrid-search* text-fn vec-fn nil opts))
+  ([text-fn vec-fn text-bound {:keys [top fusion rrf-k weights]
+                               :or   {top    10
+                                      fusion :rrf
+                                      rrf-k  60}}]
+   (let [top    (long top)
+         tw     (double (get weights :text 1.0))
+         vw     (double (get weights :vector 1.0))
+         lists  (fn [depth]
+                  (let [ts (vec (text-fn depth))
+                        vs (vec (vec-fn depth))
+                        te (< (count ts) ^long depth)
+                        ve (< (count vs) ^long depth)]
+                    (case fusion
+                      :rrf      [(rrf-list (map first ts) tw rrf-k te)
+                                 (rrf-list (map first vs) vw rrf-k ve)]
+                      :weighted [(text-weights ts tw te text-bound)
+                                 (vec-weights vs vw ve)]
+                      (raise "Unknown fusion method " fusion {}))))]
+     (loop [depth (if (and (= fusion :weighted) (nil? text-bound))
+                    c/*hybrid-max-depth*
+                    (max (* 2 top) 1))]
+       (let [[topk done?] (fuse (lists depth) top)]
+         (if (or done? (<= ^long c/*hybrid-max-depth* depth))
+           topk
+           (recur (min (* 2 depth) ^long c/*hybrid-max-depth*))))))))
+
+(defn hybrid-search
+  "Search the full-text search `engine` and vector `index` holding the same
+  refs, return the refs ranked by fused scores"
+  ([engine index query query-vec]
+   (hybrid-search engine index query query-vec nil))
+  ([engine index query query-vec {:keys [display text-opts vec-opts fusion]
+                                  :or   {display :refs}
+                                  :as   opts}]
+   (let [res (hybrid-search*
+               (fn [depth]
+                 (i/search engine query
+                           (assoc text-opts :top depth :display :refs+scores)))
+               (fn [depth]
+                 (i/search-vec index query-vec
+                               (assoc vec-opts :top depth
+                                      :display :refs+dists)))
+               (when (and (= fusion :weighted)
+                          (instance? SearchEngine engine))
+                 (s/score-bound engine query))
+               opts)]
+     (case display
+       :refs        (mapv first res)
+       :refs+scores (vec res)))))
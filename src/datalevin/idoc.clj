@@ -19,10 +19,13 @@
     :refer [open-dbi open-list-dbi get-value visit transact-kv]]
    [datalevin.lmdb :as l]
    [datalevin.util :as u :refer [raise map+]]
-   [jsonista.core :as json]
    [nextjournal.markdown :as md])
   (:import
-   [java.util IdentityHashMap HashSet HashMap Collections List Map$Entry Set]
+   [com.fasterxml.jackson.core JsonFactory JsonParser JsonParser$NumberType
+    JsonToken]
+   [java.nio ByteBuffer]
+   [java.util IdentityHashMap HashSet HashMap Collections List Map Map$Entry
+    Set Arrays Comparator TreeSet]
    [java.util.concurrent ConcurrentHashMap]
    [java.util.concurrent.atomic AtomicBoolean AtomicInteger AtomicLong]
    [org.eclipse.collections.impl.map.mutable.primitive IntObjectHashMap]
@@ -34,8 +37,7 @@
 
 (def ^:private allowed-formats #{:edn :json :markdown})
 
-(def ^:private json-mapper
-  (json/object-mapper {:decode-key-fn identity}))
+(def ^:private ^JsonFactory json-factory (JsonFactory.))
 
 (defn- resolve-format
   [attr props]
@@ -189,11 +191,52 @@
     @result))
 
 (defn- parse-json
-  [s]
-  (try
-    (json/read-value s json-mapper)
-    (catch Exception e
-      (raise "Invalid JSON string for idoc" {:error e}))))
+  "Parse a JSON string straight into a normalized idoc with the streaming
+  parser, i.e. nulls become `:json/null` and the depth limit is enforced as
+  the tokens are read, so the document is materialized only once"
+  [^String s {:keys [idoc/max-depth]}]
+  (let [^long max-depth (when max-depth (long max-depth))]
+    (try
+      (with-open [^JsonParser p (.createParser json-factory s)]
+        (letfn [(read-map [^long depth]
+                  (let [next-depth (unchecked-inc depth)]
+                    (when (and max-depth (> next-depth max-depth))
+                      (raise "Idoc exceeds max depth"
+                             {:max-depth max-depth :depth next-depth}))
+                    (loop [m (transient {})]
+                      (if (identical? (.nextToken p) JsonToken/END_OBJECT)
+                        (persistent! m)
+                        (let [k (.getCurrentName p)]
+                          (.nextToken p)
+                          (recur (assoc! m k (read-token next-depth))))))))
+                (read-array [depth]
+                  (loop [v (transient [])]
+                    (if (identical? (.nextToken p) JsonToken/END_ARRAY)
+                      (persistent! v)
+                      (recur (conj! v (read-token depth))))))
+                (read-token [depth]
+                  (let [t (.currentToken p)]
+                    (condp identical? t
+                      JsonToken/START_OBJECT       (read-map depth)
+                      JsonToken/START_ARRAY        (read-array depth)
+                      JsonToken/VALUE_STRING       (.getText p)
+                      JsonToken/VALUE_NUMBER_INT
+                      (if (identical? (.getNumberType p)
+                                      JsonParser$NumberType/BIG_INTEGER)
+                        (.getBigIntegerValue p)
+                        (.getLongValue p))
+                      JsonToken/VALUE_NUMBER_FLOAT (.getDoubleValue p)
+                      JsonToken/VALUE_TRUE         true
+                      JsonToken/VALUE_FALSE        false
+                      JsonToken/VALUE_NULL         :json/null
+                      (raise "Invalid JSON string for idoc"
+                             {:token t}))))]
+          (if (.nextToken p)
+            (read-token 0)
+            (raise "Invalid JSON string for idoc" {:value s}))))
+      (catch clojure.lang.ExceptionInfo e (throw e))
+      (catch Exception e
+        (raise "Invalid JSON string for idoc" {:error e})))))
 
 (defn- parse-edn
   [s]
@@ -225,6 +268,7 @@
                       (when (and max-depth (> next-depth max-depth))
                         (raise "Idoc exceeds max depth"
                                {:max-depth max-depth :depth next-depth}))
+                      ;; only the changed parts are copied
                       (reduce-kv
                         (fn [m k v]
                           (when-not (or (keyword? k) (string? k))
@@ -235,11 +279,18 @@
                           (when (and (sequential? v) (not (vector? v)))
                             (raise "Lists are not valid idoc values; use vectors"
                                    {:key k}))
-                          (assoc m k (walk v next-depth)))
-                        {} x))))
+                          (let [v' (walk v next-depth)]
+                            (if (identical? v v') m (assoc m k v'))))
+                        (if (record? x) (into {} x) x) x))))
 
                 (vector? x)
-                (walk-coll x depth (fn [d] (mapv #(walk % d) x)))
+                (walk-coll x depth
+                           (fn [d]
+                             (reduce-kv
+                               (fn [acc i v]
+                                 (let [v' (walk v d)]
+                                   (if (identical? v v') acc (assoc acc i v'))))
+                               x x)))
 
                 (and (sequential? x) (not (vector? x)))
                 (raise "Lists are not valid idoc values; use vectors"
@@ -255,19 +306,21 @@
 
 (defn parse-value
   [attr props opts v]
-  (let [fmt (resolve-format attr props)
-        doc (cond
-              (string? v) (case fmt
-                            :json     (parse-json v)
-                            :markdown (parse-markdown v)
-                            :edn      (parse-edn v))
-              (map? v)    v
-
-              :else
-              (raise "Idoc root must be a map" {:attribute attr :value v}))]
+  (let [fmt   (resolve-format attr props)
+        json? (and (string? v) (identical? fmt :json))
+        doc   (cond
+                json?       (parse-json v opts)
+                (string? v) (case fmt
+                              :markdown (parse-markdown v)
+                              :edn      (parse-edn v))
+                (map? v)    v
+
+                :else
+                (raise "Idoc root must be a map" {:attribute attr :value v}))]
     (when-not (map? doc)
       (raise "Idoc root must be a map" {:attribute attr :value doc}))
-    (normalize-doc doc opts)))
+    ;; streamed JSON comes out normalized
+    (if json? doc (normalize-doc doc opts))))
 
 ;; idoc patch
 
@@ -759,18 +812,30 @@
     (visit lmdb doc-ref-dbi load [:all-back])
     [@max-id doc-refs all-doc-ids]))
 
+(defn- init-path-stats
+  [lmdb path-stats-dbi]
+  (let [stats (ConcurrentHashMap.)]
+    (visit lmdb path-stats-dbi
+           (fn [kv]
+             (.put stats (long (b/read-buffer (l/k kv) :int))
+                   (b/read-buffer (l/v kv) :data)))
+           [:all])
+    stats))
+
 (defn- open-dbis
   [lmdb domain]
-  (let [doc-ref-dbi   (str domain "/" c/idoc-doc-ref)
-        doc-index-dbi (str domain "/" c/idoc-doc-index)
-        path-dict-dbi (str domain "/" c/idoc-path-dict)]
+  (let [doc-ref-dbi    (str domain "/" c/idoc-doc-ref)
+        doc-index-dbi  (str domain "/" c/idoc-doc-index)
+        path-dict-dbi  (str domain "/" c/idoc-path-dict)
+        path-stats-dbi (str domain "/" c/idoc-path-stats)]
     (open-dbi lmdb doc-ref-dbi {:key-size c/+max-key-size+
                                 :val-size c/+short-id-bytes+})
     (open-list-dbi lmdb doc-index-dbi {:key-size c/+max-key-size+
                                        :val-size c/+short-id-bytes+})
     (open-dbi lmdb path-dict-dbi {:key-size c/+max-key-size+
                                   :val-size c/+short-id-bytes+})
-    [doc-ref-dbi doc-index-dbi path-dict-dbi]))
+    (open-dbi lmdb path-stats-dbi {:key-size c/+short-id-bytes+})
+    [doc-ref-dbi doc-index-dbi path-dict-dbi path-stats-dbi]))
 
 (deftype PathTrieNode [^ConcurrentHashMap children
                        ^AtomicInteger pid])
@@ -785,6 +850,7 @@
                     doc-ref-dbi
                     doc-index-dbi
                     path-dict-dbi
+                    path-stats-dbi
                     doc-refs
                     ^RoaringBitmap all-doc-ids
                     ^AtomicInteger max-doc
@@ -795,28 +861,33 @@
                     path-trie
                     ^AtomicBoolean paths-loaded
                     paths-lock
-                    range-cache
-                    ^AtomicLong index-version])
+                    range-cache            ; pid -> {[low high] [version ids]}
+                    path-versions          ; pid -> AtomicLong
+                    ^ConcurrentHashMap path-stats]) ; pid -> {:n :hist}
 
 (defn new-idoc-index
   [lmdb {:keys [domain format] :as _opts}]
-  (let [[doc-ref-dbi doc-index-dbi path-dict-dbi] (open-dbis lmdb domain)
-        max-path                          (init-paths lmdb path-dict-dbi)
-        [max-doc doc-refs all-doc-ids]    (init-doc-refs lmdb doc-ref-dbi)
-        path-cache                        (ConcurrentHashMap.)
-        path-seg-cache                    (ConcurrentHashMap.)
-        pattern-cache                     (ConcurrentHashMap.)
-        path-trie                         (new-path-trie)
-        paths-loaded                      (AtomicBoolean. false)
-        paths-lock                        (Object.)
-        range-cache                       (ConcurrentHashMap.)
-        index-version                     (AtomicLong. 0)]
+  (let [[doc-ref-dbi doc-index-dbi path-dict-dbi path-stats-dbi]
+        (open-dbis lmdb domain)
+
+        max-path                       (init-paths lmdb path-dict-dbi)
+        [max-doc doc-refs all-doc-ids] (init-doc-refs lmdb doc-ref-dbi)
+        path-cache                     (ConcurrentHashMap.)
+        path-seg-cache                 (ConcurrentHashMap.)
+        pattern-cache                  (ConcurrentHashMap.)
+        path-trie                      (new-path-trie)
+        paths-loaded                   (AtomicBoolean. false)
+        paths-lock                     (Object.)
+        range-cache                    (ConcurrentHashMap.)
+        path-versions                  (ConcurrentHashMap.)
+        path-stats                     (init-path-stats lmdb path-stats-dbi)]
     (->IdocIndex lmdb
                  domain
                  format
                  doc-ref-dbi
                  doc-index-dbi
                  path-dict-dbi
+                 path-stats-dbi
                  doc-refs
                  all-doc-ids
                  (AtomicInteger. max-doc)
@@ -828,7 +899,8 @@
                  paths-loaded
                  paths-lock
                  range-cache
-                 index-version)))
+                 path-versions
+                 path-stats)))
 
 (defn transfer
   [^IdocIndex old lmdb]
@@ -838,6 +910,7 @@
                (.-doc-ref-dbi old)
                (.-doc-index-dbi old)
                (.-path-dict-dbi old)
+               (.-path-stats-dbi old)
                (.-doc-refs old)
                (.-all-doc-ids old)
                (.-max-doc old)
@@ -849,14 +922,61 @@
                (.-paths-loaded old)
                (.-paths-lock old)
                (.-range-cache old)
-               (.-index-version old)))
+               (.-path-versions old)
+               (.-path-stats old)))
 
-(defn- invalidate-range-cache!
+(defn reload
+  "Reload the in-memory state of the index from its DBIs, e.g. after a KV
+  transaction that changed it was rolled back. Path caches are dropped, to
+  be loaded again when used"
   [^IdocIndex index]
-  (.incrementAndGet ^AtomicLong (.-index-version index))
+  (let [lmdb                             (.-lmdb index)
+        ^IntObjectHashMap doc-refs       (.-doc-refs index)
+        ^RoaringBitmap all-doc-ids       (.-all-doc-ids index)
+        ^ConcurrentHashMap path-stats    (.-path-stats index)
+        ^ConcurrentHashMap path-versions (.-path-versions index)
+        [max-doc refs ids]               (init-doc-refs lmdb
+                                                        (.-doc-ref-dbi index))]
+    (.clear doc-refs)
+    (.putAll doc-refs ^IntObjectHashMap refs)
+    (.clear all-doc-ids)
+    (.or all-doc-ids ^RoaringBitmap ids)
+    (.set ^AtomicInteger (.-max-doc index) max-doc)
+    (locking (.-paths-lock index)
+      (.set ^AtomicInteger (.-max-path index)
+            (init-paths lmdb (.-path-dict-dbi index)))
+      (.clear ^ConcurrentHashMap (.-path-cache index))
+      (.clear ^ConcurrentHashMap (.-path-seg-cache index))
+      (.clear ^ConcurrentHashMap (.-pattern-cache index))
+      (.clear ^ConcurrentHashMap (.-children ^PathTrieNode
+                                              (.-path-trie index)))
+      (.set ^AtomicBoolean (.-paths-loaded index) false))
+    ;; scans started before see newer versions, so do not cache results
+    (doseq [^AtomicLong v (.values path-versions)] (.incrementAndGet v))
+    (.clear ^ConcurrentHashMap (.-range-cache index))
+    (locking path-stats
+      (.clear path-stats)
+      (.putAll path-stats
+               ^ConcurrentHashMap (init-path-stats
+                                    lmdb (.-path-stats-dbi index))))
+    index))
+
+(defn- path-version
+  ^AtomicLong [^IdocIndex index pid]
+  (let [^ConcurrentHashMap versions (.-path-versions index)]
+    (or (.get versions pid)
+        (let [v (AtomicLong. 0)]
+          (or (.putIfAbsent versions pid v) v)))))
+
+(defn- invalidate-range-cache!
+  "Drop the cached range results of the paths changed, `deltas` are the value
+  count changes keyed by [pid bucket]. A range scan started before the
+  change sees a newer path version, so its result is not cached"
+  [^IdocIndex index ^HashMap deltas]
   (let [^ConcurrentHashMap range-cache (.-range-cache index)]
-    (when-not (.isEmpty range-cache)
-      (.clear range-cache))))
+    (doseq [pid (into #{} (map first) (.keySet deltas))]
+      (.incrementAndGet (path-version index pid))
+      (.remove range-cache pid))))
 
 (defn- cache-path!
   ([^IdocIndex index path ^long pid] (cache-path! index path pid nil))
@@ -935,6 +1055,87 @@
             (update-pattern-cache! index segs pid))
           pid)))))
 
+;; Per path statistics are kept in the path-stats DBI: the number of indexed
+;; values of a path, and their histogram. Numbers are bucketed by sign and
+;; binary exponent, strings by the first character, so that the bucket order
+;; follows the index order within a value type. They are for estimating the
+;; selectivity of range predicates.
+
+(defn- num-bucket
+  ^long [^double x]
+  (cond
+    (zero? x) 0
+    (pos? x)  (+ 1100 (Math/getExponent x))
+    :else     (- (+ 1100 (Math/getExponent x)))))
+
+(defn- str-bucket
+  ^long [^String s]
+  (if (.isEmpty s) -1 (long (.charAt s 0))))
+
+(defn- stat-bucket
+  [vt v]
+  [vt (case vt
+        (:db.type/long :db.type/double :db.type/float :db.type/bigdec
+                       :db.type/bigint)
+        (num-bucket (double v))
+        :db.type/instant (num-bucket (double (inst-ms v)))
+        :db.type/string  (str-bucket v)
+        :db.type/keyword (str-bucket (subs (str v) 1))
+        :db.type/symbol  (str-bucket (str v))
+        0)])
+
+(defn- count-value!
+  "record the change of an indexed value of a path, `delta` is 1 or -1"
+  [^HashMap deltas pid v ^long delta]
+  (let [[vt v'] (value-type v)
+        k       [(long pid) (stat-bucket vt v')]]
+    (.put deltas k (+ delta (long (.getOrDefault deltas k 0))))))
+
+(defn- update-stats
+  [stats bucket ^long delta]
+  (let [{:keys [^long n hist] :or {n 0 hist {}}} stats
+        c (+ ^long (get hist bucket 0) delta)]
+    {:n    (+ n delta)
+     :hist (if (pos? c) (assoc hist bucket c) (dissoc hist bucket))}))
+
+(defn- add-deltas!
+  "apply the value count changes to the stats in `m`, starting from those in
+  `base` for the paths not in `m` yet"
+  [^Map m ^Map base ^HashMap deltas]
+  (doseq [[[pid bucket] delta] deltas
+          :when                (not (zero? ^long delta))]
+    (.put m pid (update-stats (if (.containsKey m pid)
+                                (.get m pid)
+                                (.get base pid))
+                              bucket delta))))
+
+(defn- stats-txs
+  "add the path stats changed by the value count changes to `txs`. The
+  in-memory stats are left alone until the changes are committed"
+  [^IdocIndex index ^HashMap deltas ^FastList txs]
+  (when-not (.isEmpty deltas)
+    (let [^ConcurrentHashMap stats (.-path-stats index)
+          dbi                      (.-path-stats-dbi index)
+          changed                  (HashMap.)]
+      (locking stats (add-deltas! changed stats deltas))
+      (doseq [[pid s] changed]
+        (.add txs (l/kv-tx :put dbi pid s :int :data))))))
+
+(defn- apply-stats!
+  "apply the committed value count changes to the in-memory path stats, and
+  drop the cached range results of the changed paths"
+  [^IdocIndex index ^HashMap deltas]
+  (let [^ConcurrentHashMap stats (.-path-stats index)]
+    (locking stats (add-deltas! stats stats deltas)))
+  (invalidate-range-cache! index deltas))
+
+(defn path-stats
+  "Return the value statistics of a path, a map of `:n`, the number of
+  indexed values, and `:hist`, their histogram, or nil if unknown"
+  [^IdocIndex index path]
+  (when-let [pid (get-path-id index (encode-path path))]
+    (.get ^ConcurrentHashMap (.-path-stats index) (long pid))))
+
 (defn add-doc
   ([index doc-ref doc] (add-doc index doc-ref doc true))
   ([^IdocIndex index doc-ref doc check-exist?]
@@ -943,6 +1144,7 @@
                        doc-ref :data :int))
      :doc-exists
      (let [txs         (FastList.)
+           deltas      (HashMap.)
            doc-id      (.incrementAndGet ^AtomicInteger (.-max-doc index))
            index-dbi   (.-doc-index-dbi index)
            doc-ref-dbi (.-doc-ref-dbi index)]
@@ -954,61 +1156,178 @@
                :let          [pid (ensure-path-id index path txs)]]
          (doseq [v    values
                  :let [idx (indexable-key pid v)]]
+           (count-value! deltas pid v 1)
            (.add txs (l/kv-tx :put index-dbi idx doc-id :avg :int))))
+       (stats-txs index deltas txs)
        (transact-kv (.-lmdb index) txs)
-       (invalidate-range-cache! index)
+       (apply-stats! index deltas)
        :doc-added))))
 
+(defn- add-docs*
+  [^IdocIndex index docs]
+  (let [txs         (FastList.)
+        lmdb        (.-lmdb index)
+        index-dbi   (.-doc-index-dbi index)
+        doc-ref-dbi (.-doc-ref-dbi index)
+        doc-refs    (.-doc-refs index)
+        idx->ids    (HashMap.)
+        deltas      (HashMap.)]
+    (doseq [[doc-ref doc] docs]
+      (let [doc-id (.incrementAndGet ^AtomicInteger (.-max-doc index))]
+        (.add txs (l/kv-tx :put doc-ref-dbi doc-ref doc-id :data :int))
+        (.put ^IntObjectHashMap doc-refs (int doc-id) doc-ref)
+        (b/bitmap-add (.-all-doc-ids index) (int doc-id))
+        (doseq [[path values] (doc->path-values-mutable doc)
+                :let          [pid (ensure-path-id index path txs)]]
+          (doseq [v    values
+                  :let [idx (indexable-key pid v)
+                        ^List ids (or (.get idx->ids idx)
+                                      (let [ids (FastList.)]
+                                        (.put idx->ids idx ids)
+                                        ids))]]
+            (count-value! deltas pid v 1)
+            (.add ids doc-id)))))
+    (doseq [[idx ids] idx->ids]
+      (.add txs (l/kv-tx :put-list index-dbi idx ids :avg :int)))
+    (stats-txs index deltas txs)
+    (when-not (.isEmpty txs)
+      (transact-kv lmdb txs)
+      (apply-stats! index deltas))
+    :docs-added))
+
+;; Bulk ingestion: paths are extracted and index keys encoded in parallel,
+;; new paths get their ids in one pass, then the index entries are sorted and
+;; written in key order, with append puts when the index starts empty.
+
+(defn- encode-avg
+  ^bytes [idx]
+  (let [bf (ByteBuffer/allocate c/+max-key-size+)]
+    (b/put-buffer bf idx :avg)
+    (.flip bf)
+    (let [bs (byte-array (.remaining bf))]
+      (.get bf bs)
+      bs)))
+
+(def ^:private ^Comparator entry-order
+  "order of [key-bytes doc-id] entries, the same as in LMDB"
+  (reify Comparator
+    (compare [_ a b]
+      (let [c (Arrays/compareUnsigned ^bytes (aget ^objects a 0)
+                                      ^bytes (aget ^objects b 0))]
+        (if (zero? c)
+          (Integer/compare (int (aget ^objects a 1))
+                           (int (aget ^objects b 1)))
+          c)))))
+
+(defn- encode-entries
+  "index entries and value count changes of a chunk of path-values, whose
+  docs have consecutive ids from `start`"
+  [^HashMap pids ^long start pvs]
+  (let [entries (FastList.)
+        deltas  (HashMap.)]
+    (dorun
+      (map-indexed
+        (fn [^long j ^HashMap pv]
+          (let [doc-id (int (+ start j))]
+            (doseq [[path values] pv
+                    :let          [pid (.get pids path)]
+                    v             values]
+              (count-value! deltas pid v 1)
+              (.add entries
+                    (object-array [(encode-avg (indexable-key pid v))
+                                   doc-id])))))
+        pvs))
+    [entries deltas]))
+
+(defn- add-docs-bulk
+  [^IdocIndex index docs]
+  (let [txs         (FastList.)
+        lmdb        (.-lmdb index)
+        index-dbi   (.-doc-index-dbi index)
+        doc-ref-dbi (.-doc-ref-dbi index)
+        doc-refs    (.-doc-refs index)
+        n           (count docs)
+        append?     (zero? ^long (i/entries lmdb index-dbi))
+        chunks      (vec (partition-all c/*idoc-bulk-chunk-size* docs))
+        pv-chunks   (map+ (fn [chunk]
+                            (mapv #(doc->path-values-mutable (peek %)) chunk))
+                          chunks)
+        pids        (HashMap.)
+        paths       (TreeSet.)
+        start       (inc (.getAndAdd ^AtomicInteger (.-max-doc index) n))
+        size        (long c/*idoc-bulk-chunk-size*)]
+    (doseq [pvs pv-chunks, ^HashMap pv pvs] (.addAll paths (.keySet pv)))
+    (doseq [path paths] (.put pids path (ensure-path-id index path txs)))
+    (dorun
+      (map-indexed
+        (fn [^long j [doc-ref _]]
+          (let [doc-id (int (+ start j))]
+            (.add txs (l/kv-tx :put doc-ref-dbi doc-ref doc-id :data :int))
+            (.put ^IntObjectHashMap doc-refs doc-id doc-ref)
+            (b/bitmap-add (.-all-doc-ids index) doc-id)))
+        docs))
+    (let [parts   (map+ (fn [[^long k pvs]]
+                          (encode-entries pids (+ start (* k size)) pvs))
+                        (map-indexed vector pv-chunks))
+          deltas  (HashMap.)
+          entries (FastList.)]
+      (doseq [[^List es ^HashMap ds] parts]
+        (.addAll entries es)
+        (doseq [[k delta] ds]
+          (.put deltas k (+ ^long delta (long (.getOrDefault deltas k 0))))))
+      (let [^objects arr (.toArray entries)]
+        (Arrays/sort arr entry-order)
+        (loop [i 0 ^objects prev nil]
+          (when (< i (alength arr))
+            (let [^objects e (aget arr i)
+                  ^bytes k   (aget e 0)
+                  same-key?  (and prev (Arrays/equals ^bytes (aget prev 0) k))]
+              ;; truncated giant values may give the same entry twice
+              (when-not (and same-key? (= (aget prev 1) (aget e 1)))
+                (.add txs (l/kv-tx :put index-dbi k (aget e 1) :raw :int
+                                   (when append?
+                                     (if same-key? [:appenddup] [:append])))))
+              (recur (inc i) e)))))
+      (stats-txs index deltas txs)
+      (transact-kv lmdb txs)
+      (apply-stats! index deltas))))
+
 (defn add-docs
   ([index docs] (add-docs index docs true))
   ([^IdocIndex index docs check-exist?]
    (when (seq docs)
-     (let [txs         (FastList.)
-           lmdb        (.-lmdb index)
-           index-dbi   (.-doc-index-dbi index)
-           doc-ref-dbi (.-doc-ref-dbi index)
-           doc-refs    (.-doc-refs index)
-           idx->ids    (HashMap.)]
-       (doseq [[doc-ref doc] docs]
-         (when-not (and check-exist?
-                        (get-value lmdb doc-ref-dbi doc-ref :data :int))
-           (let [doc-id (.incrementAndGet ^AtomicInteger (.-max-doc index))]
-             (.add txs (l/kv-tx :put doc-ref-dbi doc-ref doc-id :data :int))
-             (.put ^IntObjectHashMap doc-refs (int doc-id) doc-ref)
-             (b/bitmap-add (.-all-doc-ids index) (int doc-id))
-             (doseq [[path values] (doc->path-values-mutable doc)
-                     :let          [pid (ensure-path-id index path txs)]]
-               (doseq [v    values
-                       :let [idx (indexable-key pid v)
-                             ^List ids (or (.get idx->ids idx)
-                                           (let [ids (FastList.)]
-                                             (.put idx->ids idx ids)
-                                             ids))]]
-                 (.add ids doc-id))))))
-       (doseq [[idx ids] idx->ids]
-         (.add txs (l/kv-tx :put-list index-dbi idx ids :avg :int)))
-       (when-not (.isEmpty txs)
-         (transact-kv lmdb txs)
-         (invalidate-range-cache! index))
-       :docs-added))))
+     (let [docs (if check-exist?
+                  (filterv (fn [[doc-ref _]]
+                             (nil? (get-value (.-lmdb index)
+                                              (.-doc-ref-dbi index)
+                                              doc-ref :data :int)))
+                           docs)
+                  docs)]
+       (if (<= ^long c/*idoc-bulk-min-docs* (count docs))
+         (do (add-docs-bulk index docs)
+             :docs-added)
+         (add-docs* index docs))))))
 
 (defn remove-doc
   [^IdocIndex index doc-ref doc]
   (when-let [doc-id (get-value (.-lmdb index) (.-doc-ref-dbi index)
                                doc-ref :data :int)]
     (let [txs       (FastList.)
+          deltas    (HashMap.)
           index-dbi (.-doc-index-dbi index)]
       (doseq [[path values] (doc->path-values-mutable doc)
               :let          [pid (get-path-id index path)]]
         (when pid
           (doseq [v    values
                   :let [idx (indexable-key pid v)]]
+            (count-value! deltas pid v -1)
             (.add txs (l/kv-tx :del-list index-dbi idx [doc-id] :avg :int)))))
+      (stats-txs index deltas txs)
       (.add txs (l/kv-tx :del (.-doc-ref-dbi index) doc-ref :data))
       (.remove ^IntObjectHashMap (.-doc-refs index) (int doc-id))
       (b/bitmap-del (.-all-doc-ids index) (int doc-id))
       (transact-kv (.-lmdb index) txs)
-      (invalidate-range-cache! index)
+      (apply-stats! index deltas)
       :doc-removed)))
 
 (defn remove-docs
@@ -1019,7 +1338,8 @@
           index-dbi   (.-doc-index-dbi index)
           doc-ref-dbi (.-doc-ref-dbi index)
           doc-refs    (.-doc-refs index)
-          idx->ids    (HashMap.)]
+          idx->ids    (HashMap.)
+          deltas      (HashMap.)]
       (doseq [[doc-ref doc] docs]
         (when-let [doc-id (get-value lmdb doc-ref-dbi doc-ref :data :int)]
           (doseq [[path values] (doc->path-values-mutable doc)
@@ -1031,15 +1351,17 @@
                                           (let [ids (FastList.)]
                                             (.put idx->ids idx ids)
                                             ids))]]
+                (count-value! deltas pid v -1)
                 (.add ids doc-id))))
           (.add txs (l/kv-tx :del doc-ref-dbi doc-ref :data))
           (.remove ^IntObjectHashMap doc-refs (int doc-id))
           (b/bitmap-del (.-all-doc-ids index) (int doc-id))))
       (doseq [[idx ids] idx->ids]
         (.add txs (l/kv-tx :del-list index-dbi idx ids :avg :int)))
+      (stats-txs index deltas txs)
       (when-not (.isEmpty txs)
         (transact-kv lmdb txs)
-        (invalidate-range-cache! index))
+        (apply-stats! index deltas))
       :docs-removed)))
 
 (defn update-doc
@@ -1054,6 +1376,7 @@
             doc-ref-dbi       (.-doc-ref-dbi index)
             doc-refs          (.-doc-refs index)
             ^Set empty-set    (Collections/emptySet)
+            deltas            (HashMap.)
             [old-map new-map] (diff-path-values old-doc new-doc)]
         (when-not (= old-ref new-ref)
           (.add txs (l/kv-tx :del doc-ref-dbi old-ref :data))
@@ -1066,6 +1389,7 @@
             (doseq [v old-vals]
               (when-not (.contains new-vals v)
                 (let [idx (indexable-key pid v)]
+                  (count-value! deltas pid v -1)
                   (.add txs (l/kv-tx :del-list index-dbi idx [doc-id]
                                      :avg :int)))))))
         (doseq [[path new-vals] new-map
@@ -1075,10 +1399,12 @@
             (doseq [v new-vals]
               (when-not (.contains old-vals v)
                 (let [idx (indexable-key pid v)]
+                  (count-value! deltas pid v 1)
                   (.add txs (l/kv-tx :put index-dbi idx doc-id :avg :int)))))))
+        (stats-txs index deltas txs)
         (when-not (.isEmpty txs)
           (transact-kv lmdb txs)
-          (invalidate-range-cache! index))
+          (apply-stats! index deltas))
         :doc-updated))
     :doc-missing))
 
@@ -1124,6 +1450,7 @@
             doc-ref-dbi    (.-doc-ref-dbi index)
             doc-refs       (.-doc-refs index)
             ^Set empty-set (Collections/emptySet)
+            deltas         (HashMap.)
             paths          (or paths [])
             old-map        (patch-path-values-mutable old-doc paths)
             new-map        (patch-path-values-mutable new-doc paths)]
@@ -1138,6 +1465,7 @@
             (doseq [v old-vals]
               (when-not (.contains new-vals v)
                 (let [idx (indexable-key pid v)]
+                  (count-value! deltas pid v -1)
                   (.add txs (l/kv-tx :del-list index-dbi idx [doc-id]
                                      :avg :int)))))))
         (doseq [[path new-vals] new-map
@@ -1147,10 +1475,12 @@
             (doseq [v new-vals]
               (when-not (.contains old-vals v)
                 (let [idx (indexable-key pid v)]
+                  (count-value! deltas pid v 1)
                   (.add txs (l/kv-tx :put index-dbi idx doc-id :avg :int)))))))
+        (stats-txs index deltas txs)
         (when-not (.isEmpty txs)
           (transact-kv lmdb txs)
-          (invalidate-range-cache! index))
+          (apply-stats! index deltas))
         :doc-updated))
     :doc-missing))
 
@@ -1491,14 +1821,15 @@
     (when (identical? vt :data)
       (raise "Range predicates do not support :data values" {:value (or lo hi)}))
     (let [^ConcurrentHashMap range-cache (.-range-cache index)
-          ^AtomicLong index-version      (.-index-version index)
-
-          version   (.get index-version)
-          min-key   (indexable-key* pid vt c/v0)
-          max-key   (indexable-key* pid vt c/vmax)
-          low       (if lo (indexable-key* pid vt lo-v) min-key)
-          high      (if hi (indexable-key* pid vt hi-v) max-key)
-          cache-key [(b/pr-indexable low) (b/pr-indexable high)]]
+          ^AtomicLong pversion           (path-version index (long pid))
+
+          version    (.get pversion)
+          min-key    (indexable-key* pid vt c/v0)
+          max-key    (indexable-key* pid vt c/vmax)
+          low        (if lo (indexable-key* pid vt lo-v) min-key)
+          high       (if hi (indexable-key* pid vt hi-v) max-key)
+          cache-key  [(b/pr-indexable low) (b/pr-indexable high)]
+          ^ConcurrentHashMap path-cache (.get range-cache (long pid))]
       (letfn [(compute []
                 (let [ids     (RoaringBitmap.)
                       visitor (fn [kv]
@@ -1506,10 +1837,15 @@
                   (i/visit-list-key-range
                     (.-lmdb index) (.-doc-index-dbi index) visitor
                     [:closed low high] :avg :int)
-                  (when (= version (.get index-version))
-                    (.put range-cache cache-key [version ids]))
+                  (when (= version (.get pversion))
+                    (let [^ConcurrentHashMap pc
+                          (or path-cache
+                              (let [m (ConcurrentHashMap.)]
+                                (or (.putIfAbsent range-cache (long pid) m)
+                                    m)))]
+                      (.put pc cache-key [version ids])))
                   ids))]
-        (if-let [cached (.get range-cache cache-key)]
+        (if-let [cached (when path-cache (.get path-cache cache-key))]
           (let [[cached-version cached-ids] cached]
             (if (= cached-version version)
               cached-ids
@@ -1563,8 +1899,9 @@
                                    (subvec argsv (inc pos))))]
         {:op op :path path :args args' :pos pos}))))
 
-(defn- ids-for-predicate
-  [^IdocIndex index format expr ctx-path]
+(defn- predicate-bounds
+  "Return [op path lo hi] of a predicate"
+  [format expr ctx-path]
   (let [{:keys [op path args ^long pos]} (parse-predicate expr ctx-path)
         path                             (normalize-path format path)
         arg-count                        (count args)
@@ -1573,14 +1910,20 @@
         bounds                           (case op
                                            (:< :<=) {:lo before :hi after}
                                            (:> :>=) {:lo after :hi before}
-                                           :nil?    {})
+                                           :nil?    {}
+                                           (raise "Unknown idoc predicate"
+                                                  {:op op}))
         {:keys [lo hi]}                  bounds]
-    (case op
-      :nil?           (ids-for-eq index path :json/null)
-      (:> :>= :< :<=) (do (when (and (nil? lo) (nil? hi))
-                            (raise "Predicate requires bounds" {:expr expr}))
-                          (ids-for-range index path lo hi))
-      (raise "Unknown idoc predicate" {:op op}))))
+    (when (and (not= op :nil?) (nil? lo) (nil? hi))
+      (raise "Predicate requires bounds" {:expr expr}))
+    [op path lo hi]))
+
+(defn- ids-for-predicate
+  [^IdocIndex index format expr ctx-path]
+  (let [[op path lo hi] (predicate-bounds format expr ctx-path)]
+    (if (= op :nil?)
+      (ids-for-eq index path :json/null)
+      (ids-for-range index path lo hi))))
 
 (defn- strict-predicate-verify-ids
   [^IdocIndex index format expr ctx-path]
@@ -1607,27 +1950,148 @@
   [^IdocIndex index]
   (.clone ^RoaringBitmap (.-all-doc-ids index)))
 
+;; Conjuncts of a query are looked up in the index in the order of their
+;; estimated number of matches. Equality is estimated by the exact size of
+;; its posting list, range by the path histogram. When the candidates become
+;; few compared with the estimate of the next conjunct, the rest of them are
+;; left to be verified on the candidate documents. Candidates are always
+;; verified for a conjunction, as `exact-expr?` is false for it.
+
+(defn- path-ids
+  [^IdocIndex index path]
+  (if (path-wildcards? path)
+    (matching-path-ids index path)
+    (when-let [pid (get-path-id index (encode-path path))] [pid])))
+
+(defn- estimate-eq
+  ^long [^IdocIndex index path value]
+  (let [lmdb (.-lmdb index)
+        dbi  (.-doc-index-dbi index)]
+    (reduce (fn [^long n pid]
+              (+ n ^long (i/list-count lmdb dbi (indexable-key pid value) :avg)))
+            0 (path-ids index path))))
+
+(defn- estimate-range
+  ^long [^IdocIndex index path lo hi]
+  (let [^ConcurrentHashMap stats (.-path-stats index)
+        [lo-t lo-v]              (when (some? lo) (value-type lo))
+        [hi-t hi-v]              (when (some? hi) (value-type hi))
+        vt                       (or lo-t hi-t)
+        lo-b                     (when lo-t (peek (stat-bucket vt lo-v)))
+        hi-b                     (when hi-t (peek (stat-bucket vt hi-v)))
+        pids                     (path-ids index path)]
+    (when (seq pids)
+      (when (and lo-t hi-t (not= lo-t hi-t))
+        (raise "Range bounds must have the same type" {:lo lo :hi hi}))
+      (when (identical? vt :data)
+        (raise "Range predicates do not support :data values"
+               {:value (or lo hi)})))
+    (reduce
+      (fn [^long n pid]
+        (if-let [{:keys [hist]} (.get stats (long pid))]
+          (reduce-kv (fn [^long n [t ^long b] ^long c]
+                       (if (and (= t vt)
+                                (or (nil? lo-b) (<= ^long lo-b b))
+                                (or (nil? hi-b) (<= b ^long hi-b)))
+                         (+ n c)
+                         n))
+                     n hist)
+          ;; no stats, e.g. created by an older version, assume broad
+          (+ n (.getCardinality ^RoaringBitmap (.-all-doc-ids index)))))
+      0 pids)))
+
+(defn- estimate
+  "Estimated number of matching ids of an expression, nil if it does not
+  restrict the candidates"
+  [^IdocIndex index format expr ctx-path]
+  (cond
+    (map? expr)
+    (when-not (empty? expr)
+      (let [ests (keep (fn [[k v]]
+                         (estimate index format v
+                                   (conj (or ctx-path [])
+                                         (normalize-seg format k))))
+                       expr)]
+        (when (seq ests) (reduce min ests))))
+
+    (vector? expr)
+    (let [[op & rest] expr]
+      (case op
+        :and (let [ests (keep #(estimate index format % ctx-path) rest)]
+               (when (seq ests) (reduce min ests)))
+        :or  (let [ests (map #(estimate index format % ctx-path) rest)]
+               (when (and (seq ests) (every? some? ests)) (reduce + ests)))
+        :not nil
+        (raise "Unknown idoc logical operator" {:op op})))
+
+    (and (sequential? expr) (not (vector? expr)))
+    (let [[op path lo hi] (predicate-bounds format expr ctx-path)]
+      (if (= op :nil?)
+        (estimate-eq index path :json/null)
+        (estimate-range index path lo hi)))
+
+    :else
+    (if (seq ctx-path)
+      (estimate-eq index (normalize-path format ctx-path) expr)
+      (raise "Idoc scalar query must be inside a map" {:expr expr}))))
+
+(defn- conjuncts
+  "flatten nested maps and `:and` into [expr ctx-path] pairs"
+  [format expr ctx-path]
+  (cond
+    (and (map? expr) (seq expr))
+    (mapcat (fn [[k v]]
+              (conjuncts format v (conj (or ctx-path [])
+                                        (normalize-seg format k))))
+            expr)
+
+    (and (vector? expr) (= :and (first expr)) (next expr))
+    (mapcat #(conjuncts format % ctx-path) (rest expr))
+
+    :else [[expr ctx-path]]))
+
+(declare ids-for-expr)
+
+(defn- ids-for-conjuncts
+  [^IdocIndex index format pairs]
+  (let [ratio (long c/*idoc-verify-ratio*)
+        ests  (sort-by first
+                       (keep (fn [[expr ctx-path]]
+                               (when-let [est (estimate index format expr
+                                                        ctx-path)]
+                                 [est expr ctx-path]))
+                             pairs))]
+    (loop [^RoaringBitmap acc nil
+           ests               ests]
+      (if-let [[^long est expr ctx-path] (first ests)]
+        (if (and acc (or (.isEmpty acc)
+                         (< (* ratio (.getCardinality acc)) est)))
+          acc
+          (let [ids (ids-for-expr index format expr ctx-path)]
+            (recur (cond
+                     (nil? ids) acc
+                     (nil? acc) ids
+                     :else      (RoaringBitmap/and acc ids))
+                   (next ests))))
+        acc))))
+
 (defn- ids-for-expr
   [^IdocIndex index format expr ctx-path]
   (cond
     (map? expr)
     (when-not (empty? expr) ;; empty query matches all documents
-      (b/bitmaps-and
-        (map+ (fn [[k v]]
-                (let [k'   (normalize-seg format k)
-                      path (conj (or ctx-path []) k')]
-                  (ids-for-expr index format v path)))
-              expr)))
+      (ids-for-conjuncts index format (conjuncts format expr ctx-path)))
 
     (vector? expr)
     (let [[op & rest] expr]
       (case op
         :and (when-not (empty? rest)
-               (b/bitmaps-and
-                 (map+ #(ids-for-expr index format % ctx-path) rest)))
+               (ids-for-conjuncts index format
+                                  (conjuncts format expr ctx-path)))
         :or  (when-not (empty? rest)
-               (b/bitmaps-or
-                 (map+ #(ids-for-expr index format % ctx-path) rest)))
+               (let [ids (map+ #(ids-for-expr index format % ctx-path) rest)]
+                 ;; a branch not restricting the candidates makes it all
+                 (when (every? some? ids) (b/bitmaps-or ids))))
         :not nil
         (raise "Unknown idoc logical operator" {:op op})))
 
@@ -10,12 +10,17 @@
 (ns ^:no-doc datalevin.index
   "Shared index utility functions used by storage and prepare."
   (:require
-   [datalevin.interface :refer [get-value]]
+   [datalevin.interface :refer [get-value visit]]
+   [datalevin.lmdb :as l]
    [datalevin.bits :as b]
    [datalevin.datom :as d]
    [datalevin.constants :as c]
    [datalevin.util :as u])
   (:import
+   [java.io OutputStream]
+   [java.nio ByteBuffer ByteOrder]
+   [java.nio.channels Channels WritableByteChannel]
+   [java.util Arrays]
    [datalevin.bits Retrieved]
    [datalevin.datom Datom]))
 
@@ -73,6 +78,65 @@
 
 (defn gt->datom [lmdb gt] (get-value lmdb c/giants gt :id :data))
 
+;; giant handles
+
+(def ^:private ^long datom-e-offset
+  "offset of the entity id in a serialized datom"
+  (let [e  0x0102030405060708
+        eb (.array (.putLong (ByteBuffer/allocate 8) e))
+        bs (b/serialize (d/datom e :a 1))]
+    (or (some (fn [^long i] (when (Arrays/equals bs i (+ i 8) eb 0 8) i))
+              (range (- (alength bs) 7)))
+        (u/raise "Unexpected datom serialization" {}))))
+
+(defn- visit-giant
+  "Call `f` on the buffer of the stored giant datom within a read
+  transaction, return its result"
+  [lmdb gt f]
+  (let [res (volatile! nil)]
+    (visit lmdb c/giants (fn [kv] (vreset! res (f (l/v kv))))
+           [:closed gt gt] :id)
+    @res))
+
+(defprotocol IGiant
+  (giant-e [this]
+    "Return the entity id of the giant datom, its value is not decoded")
+  (write-giant [this out]
+    "Write the stored bytes of the giant datom to OutputStream `out`, without
+    copying them to the heap as a whole, return the number of bytes written.
+    They can be read back with `datalevin.bits/deserialize`"))
+
+(deftype GiantHandle [lmdb gt ^:volatile-mutable datom]
+  clojure.lang.IDeref
+  (deref [_]
+    (or datom (set! datom (gt->datom lmdb gt))))
+
+  IGiant
+  (giant-e [_]
+    (if datom
+      (d/datom-e datom)
+      (visit-giant lmdb gt
+                   (fn [^ByteBuffer bf]
+                     (.getLong (.order (.duplicate bf) ByteOrder/BIG_ENDIAN)
+                               (+ (.position bf) datom-e-offset))))))
+
+  (write-giant [_ out]
+    (visit-giant lmdb gt
+                 (fn [^ByteBuffer bf]
+                   (let [^WritableByteChannel ch
+                         (Channels/newChannel ^OutputStream out)
+                         bf (.duplicate bf)
+                         n  (.remaining bf)]
+                     (while (.hasRemaining bf) (.write ch bf))
+                     (.flush ^OutputStream out)
+                     n)))))
+
+(defn gt->giant
+  "Return a handle of the giant datom `gt`, which is read when it is deref'ed,
+  or partially by `giant-e` and `write-giant`"
+  [lmdb gt]
+  (GiantHandle. lmdb gt nil))
+
 (defn retrieved->v
   [lmdb ^Retrieved r]
   (let [g (.-g r)]
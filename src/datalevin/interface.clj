@@ -277,10 +277,19 @@ values;")
   (clear-docs [this])
   (doc-indexed? [this doc-ref])
   (doc-count [this])
-  (search [this query] [this query opts]))
+  (search [this query] [this query opts])
+  (set-doc-facets [this doc-ref facets]
+    "set the facet values of an indexed document, `facets` is a map of
+     facet name to a value or a set of values")
+  (search-hits [this query]
+    "return a bitmap of the doc ids of all documents matching the query")
+  (facet-counts [this query facet-names]
+    "return a map of facet name to a map of facet value to hit count"))
 
 (defprotocol IVectorIndex
   (add-vec [this vec-ref vec-data] "add vector to in memory index")
+  (add-vecs [this vec-pairs] [this vec-pairs opts]
+    "add a batch of [vec-ref vec-data] pairs to in memory index")
   (remove-vec [this vec-ref] "remove vector from in memory index")
   (get-vec [this vec-ref] "retrieve the vectors of a vec-ref")
   (persist-vecs [this] "persistent index on disk")
@@ -290,7 +299,9 @@ values;")
   (vecs-info [this] "return a map of info about this index")
   (vec-indexed? [this vec-ref] "test if a rec-ref is in the index")
   (search-vec [this query-vec] [this query-vec opts]
-    "search vector, return found vec-refs"))
+    "search vector, return found vec-refs")
+  (search-vecs [this query-vecs] [this query-vecs opts]
+    "search a batch of vectors, return found vec-refs of each"))
 
 (defprotocol IStore
   (opts [this] "Return the opts map")
@@ -34,7 +34,7 @@
    [datalevin.constants :as c]
    [datalevin.bits :as b]
    [datalevin.interface
-    :refer [av-size dir db-name]])
+    :refer [av-size dir db-name opts]])
   (:import
    [java.util Arrays List Collection Comparator HashSet HashMap]
    [java.util.concurrent ConcurrentHashMap ExecutorService Executors Future
@@ -61,7 +61,8 @@
 
 (declare -collect -resolve-clause resolve-clause execute-steps
          hash-join-execute hash-join-execute-into sip-hash-join-execute
-         estimate-hash-join-cost get-or-join-vars get-or-join-source)
+         estimate-hash-join-cost get-or-join-vars get-or-join-source
+         cache-input-token)
 
 ;; Records
 
@@ -328,11 +329,6 @@
 
 (defrecord Clause [attr val var range count pred])
 
-(defn solve-rule
-  [context clause]
-  (let [[rule-name & args] clause]
-    (rules/solve-stratified context rule-name args resolve-clause)))
-
 ;; binding
 
 (defn empty-rel
@@ -401,6 +397,98 @@
    knowing which indices are needed."
   #{'fulltext 'idoc-match 'vec-neighbors})
 
+;; rules
+
+(defn- called-rule
+  [rules form]
+  (when (and (seq? form) (seq form))
+    (let [head (if (qu/source? (first form)) (second form) (first form))]
+      (when (contains? rules head) head))))
+
+(defn- rule-closure
+  "Names of the rules that `rule-name` depends on, including itself"
+  [rules rule-name]
+  (loop [todo [rule-name] seen #{}]
+    (if-let [[r & more] (seq todo)]
+      (if (seen r)
+        (recur more seen)
+        (recur (into (vec more)
+                     (keep #(called-rule rules %))
+                     (tree-seq coll? seq (rules r)))
+               (conj seen r)))
+      seen)))
+
+(defn- rule-clauses-deps
+  "Attributes that rule clauses may read, in the same form as query cache
+  dependencies, {:all? true} if unsure"
+  [clauses]
+  (reduce
+    (fn [acc clause]
+      (cond
+        (vector? clause)
+        (let [f (first clause)]
+          (cond
+            (seq? f)
+            (if (contains? tuple-producing-fns (first f))
+              (reduced {:all? true})
+              acc)
+
+            :else
+            (let [[_ a] (if (qu/source? f) (rest clause) clause)]
+              (if (keyword? a)
+                (update acc :attrs conj a)
+                (reduced {:all? true})))))
+
+        (seq? clause)
+        (let [op   (first clause)
+              deps (rule-clauses-deps
+                     (if ('#{or-join not-join} op) (nnext clause) (rest clause)))]
+          (if (:all? deps)
+            (reduced deps)
+            (update acc :attrs into (:attrs deps))))
+
+        :else acc))
+    {:all? false :attrs #{}}
+    clauses))
+
+(defn- rule-table-key
+  "Return [store cache-key] if the results of `rule-name` can be tabled, i.e.
+  kept in the DB cache across queries, which is the case when the DB is
+  opened with `:table-rules?` option, it is the only source, and the rule
+  can be evaluated without bound inputs. The entry is invalidated by
+  transactions touching the attributes the rules read."
+  [context rule-name]
+  (let [sources (:sources context)
+        db      (get sources '$)]
+    (when (and *cache?*
+               (= 1 (count sources))
+               (instance? DB db)
+               (:table-rules? (opts (.-store ^DB db)))
+               (rules/tableable? context rule-name))
+      (let [rules (:rules context)
+            defs  (select-keys rules (rule-closure rules rule-name))
+            deps  (rule-clauses-deps (mapcat rest (mapcat val defs)))]
+        [(.-store ^DB db)
+         [:rule-table deps rule-name defs (cache-input-token db)]]))))
+
+(defn solve-rule
+  [context clause]
+  (let [[rule-name & args] clause]
+    (if-let [[store k] (rule-table-key context rule-name)]
+      (let [rules (:rules context)
+            rel   (or (db/cache-get store k)
+                      (let [rel (rules/solve-stratified
+                                  (assoc context
+                                         :rels [] :rule-rels nil
+                                         :magic-seeds nil)
+                                  rule-name (rules/rule-head-vars
+                                              rules rule-name)
+                                  resolve-clause)]
+                        (db/cache-put store k rel)
+                        rel))]
+        (rules/table-result rel rules rule-name args))
+      (rules/solve-stratified context rule-name args resolve-clause))))
+
 (extend-protocol IBinding
   BindIgnore
   (in->rel [_ _]
@@ -3755,7 +3843,8 @@
 
 (defn- q*
   [parsed-q inputs]
-  (binding [timeout/*deadline* (timeout/to-deadline (:qtimeout parsed-q))]
+  (binding [timeout/*deadline* (timeout/to-deadline (:qtimeout parsed-q))
+            sp/*spill-budget*  (sp/new-spill-budget)]
     (let [find          (:qfind parsed-q)
           find-elements (dp/find-elements find)
           result-arity  (count find-elements)
@@ -12,6 +12,8 @@
   (:require
    [clojure.pprint :as pp]
    [datalevin.util :as u :refer [raise]]
+   [datalevin.constants :as c]
+   [datalevin.spill :as sp]
    [datalevin.timeout :as timeout])
   (:import
    [java.util List Arrays HashSet]
@@ -151,6 +153,39 @@
                      (.add tset tw))))
                new)))))
 
+(defn tuple-set
+  "A set to deduplicate tuples by content, expecting `n` of them. Below
+  `c/*spill-dedupe-min*` tuples, a plain hash set of wrapped arrays is
+  enough, and it is cheaper to create than a spillable one. The tuples move
+  to a spillable one when the plain set grows to that size."
+  [^long n]
+  (if (< n ^long c/*spill-dedupe-min*)
+    (let [s       (HashSet. (int (inc (quot (* 4 n) 3))))
+          spilled (volatile! nil)]
+      (reify sp/ITupleSet
+        (add-tuple [_ t]
+          (if-let [ts @spilled]
+            (sp/add-tuple ts t)
+            (let [added? (.add s (wrap-array t))]
+              (when (and added? (<= ^long c/*spill-dedupe-min* (.size s)))
+                (let [ts (sp/new-spillable-tuple-set)]
+                  (doseq [^ArrayWrapper w s] (sp/add-tuple ts (.-a w)))
+                  (.clear s)
+                  (vreset! spilled ts)))
+              added?)))
+        (has-tuple? [_ t]
+          (if-let [ts @spilled]
+            (sp/has-tuple? ts t)
+            (.contains s (wrap-array t))))
+        (tuple-count [_]
+          (if-let [ts @spilled] (sp/tuple-count ts) (.size s)))
+        (clear-tuples [_]
+          (.clear s)
+          (when-let [ts @spilled]
+            (sp/clear-tuples ts)
+            (vreset! spilled nil)))))
+    (sp/new-spillable-tuple-set)))
+
 (defn sum-rel-dedupe
   ([] (relation! {} (FastList.)))
   ([a] a)
@@ -171,19 +206,16 @@
                la             (.size tuples-a)
                lb             (.size tuples-b)
                res            (FastList. (+ la lb))
-               seen           (HashSet.)]
+               seen           (tuple-set (+ la lb))]
            (dotimes [i la]
-             (let [t  (.get tuples-a i)
-                   tw (wrap-array t)]
-               (when-not (.contains seen tw)
-                 (.add seen tw)
+             (let [t (.get tuples-a i)]
+               (when (sp/add-tuple seen t)
                  (.add res t))))
            (dotimes [i lb]
-             (let [t  (.get tuples-b i)
-                   tw (wrap-array t)]
-               (when-not (.contains seen tw)
-                 (.add seen tw)
+             (let [t (.get tuples-b i)]
+               (when (sp/add-tuple seen t)
                  (.add res t))))
+           (sp/clear-tuples seen)
            res))
 
        (not (same-keys? attrs-a attrs-b))
@@ -207,22 +239,19 @@
              la             (.size tuples-a)
              lb             (.size tuples-b)
              res            (FastList. (+ la lb))
-             seen           (HashSet. (int (+ la lb)))]
+             seen           (tuple-set (+ la lb))]
          (dotimes [i la]
-           (let [t  (.get tuples-a i)
-                 tw (wrap-array t)]
-             (when-not (.contains seen tw)
-               (.add seen tw)
+           (let [t (.get tuples-a i)]
+             (when (sp/add-tuple seen t)
                (.add res t))))
          (dotimes [i lb]
            (let [^objects tuple-b (.get tuples-b i)
                  ^objects tuple   (object-array tlen)]
              (dotimes [j n]
                (aset tuple (aget idxs-a j) (aget tuple-b (aget idxs-b j))))
-             (let [tw (wrap-array tuple)]
-               (when-not (.contains seen tw)
-                 (.add seen tw)
-                 (.add res tuple)))))
+             (when (sp/add-tuple seen tuple)
+               (.add res tuple))))
+         (sp/clear-tuples seen)
          (relation! attrs-a res))
 
        :else
@@ -285,27 +314,28 @@
                           new-tuples)))))
 
 (defn difference-with-seen!
-  "Returns tuples from r1 not already in seen-set. Mutates seen-set by adding
-   new tuples. More efficient than difference for iterative algorithms."
-  [r1 ^HashSet seen-set]
+  "Returns tuples from r1 not already in seen-set, a tuple set. Mutates
+   seen-set by adding new tuples. More efficient than difference for
+   iterative algorithms."
+  [r1 seen-set]
   (let [^List t1 (:tuples r1)]
     (if (or (nil? t1) (.isEmpty t1))
       r1
       (assoc r1 :tuples (let [new-tuples (FastList.)]
                           (dotimes [i (.size t1)]
-                            (let [tuple (.get t1 i)
-                                  tw    (wrap-array tuple)]
-                              (when (.add seen-set tw)
+                            (let [tuple (.get t1 i)]
+                              (when (sp/add-tuple seen-set tuple)
                                 (.add new-tuples tuple))))
                           new-tuples)))))
 
 (defn add-to-seen!
-  "Add all tuples from relation to seen-set. Returns the seen-set."
-  [rel ^HashSet seen-set]
+  "Add all tuples from relation to seen-set, a tuple set. Returns the
+  seen-set."
+  [rel seen-set]
   (let [^List tuples (:tuples rel)]
     (when (and tuples (pos? (.size tuples)))
       (dotimes [i (.size tuples)]
-        (.add seen-set (wrap-array (.get tuples i)))))
+        (sp/add-tuple seen-set (.get tuples i))))
     seen-set))
 
 (defn select-tuples
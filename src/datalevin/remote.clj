@@ -22,7 +22,8 @@
    [datalevin.client Client]
    [datalevin.interface ILMDB IList IAdmin IStore ISearchEngine IVectorIndex]
    [java.nio.file Files Paths StandardOpenOption LinkOption]
-   [java.net URI]))
+   [java.net URI]
+   [org.roaringbitmap RoaringBitmap]))
 
 (defn dtlv-uri?
   "return true if the given string is a Datalevin connection string"
@@ -769,6 +770,19 @@
     (cl/normal-request (.-client store) :search
                        [(.-db-name store) query opts]))
 
+  (set-doc-facets [_ doc-ref facets]
+    (cl/normal-request (.-client store) :set-doc-facets
+                       [(.-db-name store) doc-ref facets]))
+
+  (search-hits [_ query]
+    (RoaringBitmap/bitmapOf
+      ^ints (cl/normal-request (.-client store) :search-hits
+                               [(.-db-name store) query])))
+
+  (facet-counts [_ query facet-names]
+    (cl/normal-request (.-client store) :facet-counts
+                       [(.-db-name store) query facet-names]))
+
   IAdmin
   (re-index [this opts]
     (cl/normal-request (.-client store) :search-re-index
@@ -793,6 +807,12 @@
     (cl/normal-request (.-client store) :add-vec
                        [(.-db-name store) vec-ref vec-data]))
 
+  (add-vecs [this vec-pairs]
+    (.add-vecs this vec-pairs {}))
+  (add-vecs [_ vec-pairs opts]
+    (cl/normal-request (.-client store) :add-vecs
+                       [(.-db-name store) vec-pairs opts]))
+
   (remove-vec [_ vec-ref]
     (cl/normal-request (.-client store) :remove-vec
                        [(.-db-name store) vec-ref]))
@@ -819,6 +839,12 @@
     (cl/normal-request (.-client store) :search-vec
                        [(.-db-name store) query opts]))
 
+  (search-vecs [this queries]
+    (.search-vecs this queries {}))
+  (search-vecs [_ queries opts]
+    (cl/normal-request (.-client store) :search-vecs
+                       [(.-db-name store) queries opts]))
+
   IAdmin
   (re-index [this opts]
     (cl/normal-request (.-client store) :vec-re-index
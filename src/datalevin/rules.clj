@@ -20,11 +20,13 @@
    [datalevin.join :as j]
    [datalevin.constants :as c]
    [datalevin.util :as u :refer [raise concatv cond+ map+]]
-   [datalevin.relation :as r])
+   [datalevin.relation :as r]
+   [datalevin.spill :as sp])
   (:import
    [datalevin.db DB]
    [org.eclipse.collections.impl.list.mutable FastList]
-   [java.util List HashSet]))
+   [java.util List HashSet]
+   [clojure.lang Util]))
 
 (defn parse-rules
   [rules]
@@ -292,6 +294,23 @@
                 (.add acc to)))))
         acc))))
 
+(defn- flatten-head-vars
+  [head-clause]
+  (let [args (rest head-clause)]
+    (if (and (seq args) (vector? (first args)))
+      (concatv (first args) (rest args))
+      (vec args))))
+
+(defn rule-head-vars
+  [rules rule-name]
+  (flatten-head-vars (ffirst (rules rule-name))))
+
+(defn table-result
+  "Transforms a tabled rule-rel, evaluated with the head vars of the rule as
+  arguments, into the result rel of a rule call"
+  [rule-rel rules rule-name call-args]
+  (map-rule-result rule-rel (rule-head-vars rules rule-name) call-args))
+
 (defn- rename-rule
   [branches]
   (let [mapping (volatile! {})]
@@ -532,7 +551,7 @@
       rule-branches)))
 
 (defn- eval-rule-body-with-dedup
-  [context rule-name rule-branches resolve-fn ^HashSet seen-set]
+  [context rule-name rule-branches resolve-fn seen-set]
   (let [delta-bounds (extract-delta-bound-values context rule-name)
         context      (cond-> (assoc context :current-rule rule-name)
                        delta-bounds (assoc :delta-bound-values delta-bounds))]
@@ -549,6 +568,72 @@
       (empty-rel-for-rule rule-name (:rules context))
       rule-branches)))
 
+(defn- rule-calls
+  "Rule calls of the stratum in a branch, including nested ones"
+  [branch stratum-set]
+  (filter #(and (sequential? %) (seq %) (stratum-set (rule-head %)))
+          (tree-seq sequential? seq (rest branch))))
+
+(defn- linear-branches?
+  "Whether each branch calls the rules of the stratum exactly once, so that
+  its result is a union of those over any partitions of the delta"
+  [branches stratum-set]
+  (every? #(= 1 (count (rule-calls % stratum-set))) branches))
+
+(defn- delta-join-column
+  "Column of the delta that the first branch joins on, default to 0"
+  [delta branches stratum-set]
+  (let [branch  (first branches)
+        call    (first (rule-calls branch stratum-set))
+        args    (rule-args call)
+        others  (into #{}
+                      (comp (remove #(identical? % call))
+                            (mapcat #(tree-seq sequential? seq %))
+                            (filter qu/free-var?))
+                      (rest branch))
+        pos     (first (keep-indexed #(when (others %2) %1) args))
+        [[_ & head-vars]] branch]
+    (or (when pos
+          (when-let [v (nth (vec head-vars) pos nil)]
+            ((:attrs delta) v)))
+        0)))
+
+(defn- partition-rel
+  "Split the tuples of `rel` into `n` relations by the hash of column `col`"
+  [rel ^long col ^long n]
+  (let [^List tuples (:tuples rel)
+        parts        (vec (repeatedly n #(FastList.)))]
+    (dotimes [i (.size tuples)]
+      (let [^objects t (.get tuples i)]
+        (.add ^List (parts (Math/floorMod (Util/hash (aget t col)) n)) t)))
+    (mapv #(assoc rel :tuples %) parts)))
+
+(defn- eval-rule-body-parallel
+  "Evaluate a linear recursive rule with its delta split by the join key,
+  each partition on the worker thread pool, then deduplicate the results with
+  the seen-set."
+  [context rule-name rule-branches resolve-fn seen-set col ^long n]
+  (let [parts (partition-rel (get-in context [:rule-rels rule-name]) col n)
+        eval  (bound-fn* (fn [part]
+                           (eval-rule-body
+                             (assoc-in context [:rule-rels rule-name] part)
+                             rule-name rule-branches resolve-fn)))]
+    (reduce
+      (fn [rel part-rel]
+        (r/sum-rel rel (r/difference-with-seen! part-rel seen-set)))
+      (empty-rel-for-rule rule-name (:rules context))
+      (map+ eval parts))))
+
+(defn- parallel-partitions
+  "Number of partitions to evaluate a rule's delta in parallel, or nil"
+  [delta]
+  (when-let [^List tuples (:tuples delta)]
+    (let [size (.size tuples)
+          lo   (long c/*rule-parallel-min-delta*)
+          n    (min (.availableProcessors (Runtime/getRuntime))
+                    (quot size (max 1 (quot lo 4))))]
+      (when (and (<= lo size) (< 1 n)) n))))
+
 (defn- branch-requires?
   [branch var context]
   (loop [clauses (rest branch) bound #{}]
@@ -577,6 +662,16 @@
               idx)))
         head-vars))
 
+(defn tableable?
+  "Whether the whole relation of `rule-name` can be computed without seeds,
+  i.e. its head has no required vars, and no branch needs a head var bound"
+  [context rule-name]
+  (let [branches (get-in context [:rules rule-name])
+        head     (ffirst branches)]
+    (and (not (vector? (second head)))
+         (empty? (required-seeds branches (flatten-head-vars head)
+                                 (assoc context :rels []))))))
+
 (defn- unique-seeds
   [rel idx]
   (let [^List tuples (:tuples rel)
@@ -632,13 +727,6 @@
         acc))
     0 rule-rels))
 
-(defn- flatten-head-vars
-  [head-clause]
-  (let [args (rest head-clause)]
-    (if (and (seq args) (vector? (first args)))
-      (concatv (first args) (rest args))
-      (vec args))))
-
 (defn- bound-arg?
   [arg bound-vars]
   (and (not= arg '_)
@@ -1418,17 +1506,14 @@
 
                 ;; Maintain seen-sets for deduplication across iterations.
                 ;; This is critical for cyclic graphs where the same tuple can be
-                ;; reached through paths of different lengths.
+                ;; reached through paths of different lengths. They start as
+                ;; plain hash sets, and spill to disk when large, e.g. for the
+                ;; closure of a big graph.
                 seen-sets
                 (reduce
                   (fn [m rname]
-                    (let [init-rel  (start-totals rname)
-                          init-size (if-let [^List ts (:tuples init-rel)]
-                                      (.size ts)
-                                      0)
-                          capacity  (max 16 (* 4 ^long init-size))
-                          seen      (HashSet. (int capacity))]
-                      (r/add-to-seen! init-rel seen)
+                    (let [seen (r/tuple-set 0)]
+                      (r/add-to-seen! (start-totals rname) seen)
                       (assoc m rname seen)))
                   {} stratum)
 
@@ -1456,6 +1541,10 @@
                           eval-one
                           (fn [rname]
                             (let [branches (rec-branches-map rname)
+                                  single?  (= 1 (count stratum))
+                                  linear?  (and single?
+                                                (linear-branches?
+                                                  branches stratum-set))
                                   deps     (stratum-deps rname)
                                   dep-delta?
                                   (some (fn [dep]
@@ -1463,10 +1552,21 @@
                                             (and rel (r/rel-not-empty rel))))
                                         deps)]
                               (when (and branches dep-delta?)
-                                (let [deduped (eval-rule-body-with-dedup
-                                                iter-context rname branches
-                                                resolve-clause-fn
-                                                (seen-sets rname))]
+                                (let [delta   (deltas rname)
+                                      n       (when linear?
+                                                (parallel-partitions delta))
+                                      deduped
+                                      (if n
+                                        (eval-rule-body-parallel
+                                          iter-context rname branches
+                                          resolve-clause-fn (seen-sets rname)
+                                          (delta-join-column
+                                            delta branches stratum-set)
+                                          n)
+                                        (eval-rule-body-with-dedup
+                                          iter-context rname branches
+                                          resolve-clause-fn
+                                          (seen-sets rname)))]
                                   (when (r/rel-not-empty deduped)
                                     [rname deduped])))))
 
@@ -1504,6 +1604,8 @@
                       (recur new-totals new-deltas
                              (seq new-deltas) (inc iter)))))]
 
+            (doseq [seen (vals seen-sets)] (sp/clear-tuples seen))
+
             (map-rule-result (final-totals rule-name)
                              entry-renamed-head args)))))))
 
@@ -42,6 +42,28 @@
         (when-not (l/writing? lmdb)
           (i/return-rtx lmdb rtx))))))
 
+(defn get-values
+  "Get the values of keys `ks` in one read transaction, in the order of `ks`,
+  nil for the missing ones"
+  [lmdb dbi-name ks k-type v-type]
+  (i/check-ready lmdb)
+  (let [dbi (i/get-dbi lmdb dbi-name false)
+        rtx (if (l/writing? lmdb)
+              @(l/write-txn lmdb)
+              (i/get-rtx lmdb))]
+    (try
+      (mapv (fn [k]
+              (l/put-key rtx k k-type)
+              (when-let [^ByteBuffer bb (l/get-kv dbi rtx)]
+                (b/read-buffer bb v-type)))
+            ks)
+      (catch Throwable e
+        (raise "Fail to get-values: " e
+               {:dbi dbi-name :k-type k-type :v-type v-type}))
+      (finally
+        (when-not (l/writing? lmdb)
+          (i/return-rtx lmdb rtx))))))
+
 (defn get-rank
   [lmdb dbi-name k k-type]
   (i/check-ready lmdb)
@@ -12,7 +12,8 @@
   (:require
    [datalevin.lmdb :as l]
    [datalevin.interface :as if
-    :refer [clear-dbi env-dir get-value visit transact-kv closed-kv? open-dbi]]
+    :refer [clear-dbi env-dir get-value visit transact-kv closed-kv? open-dbi
+            open-list-dbi get-list list-count]]
    [datalevin.util :as u :refer [cond+ raise conjs]]
    [datalevin.spill :as sp]
    [datalevin.sparselist :as sl]
@@ -29,13 +30,13 @@
    [datalevin.sparselist SparseIntArrayList]
    [datalevin.spill SpillableMap]
    [datalevin.interface IAdmin ISearchEngine]
-   [datalevin.utl LRUCache]
+   [datalevin.utl LRUCache TermDict]
    [java.util ArrayList Map$Entry Arrays HashMap]
-   [java.util.concurrent.atomic AtomicInteger]
+   [java.util.concurrent.atomic AtomicInteger AtomicLong]
    [java.io Writer FileOutputStream FileInputStream DataOutputStream
     DataInputStream]
    [org.eclipse.collections.impl.map.mutable.primitive IntShortHashMap
-    IntDoubleHashMap]
+    IntDoubleHashMap IntObjectHashMap]
    [org.eclipse.collections.impl.set.mutable.primitive IntHashSet]
    [org.eclipse.collections.impl.list.mutable FastList]
    [org.eclipse.collections.impl.list.mutable.primitive IntArrayList]
@@ -248,7 +249,8 @@
     (nth (.top pq) 0)))
 
 (declare doc-ref->id remove-doc* add-doc* hydrate-query display-xf score-docs
-         get-rawtext new-search-engine* parse-query* parse-query get-pos-info)
+         get-rawtext new-search-engine* parse-query* parse-query get-pos-info
+         doc-facets set-facets* facet-values facet-bitmap)
 
 (defprotocol IPositions
   (cur-pos [this] "return the current position, or nil if there is no more")
@@ -261,10 +263,49 @@
   (cur-pos [_] (when (< ^long cur (alength positions)) (aget positions cur)))
   (go-next [_] (set! cur (u/long-inc cur))))
 
-(defn- get-positions
-  [engine doc-id term-id]
-  (when-let [pos-info (get-pos-info engine doc-id term-id)]
-    (Positions. term-id (first pos-info) 0)))
+(def ^:private ^:const pos-scan-span-ratio
+  "read positions of a doc in one range scan only when the term id span is
+  at most this many times the number of terms to read"
+  8)
+
+(defn- pos-key
+  "Cache key of the positions of a term in a doc. Ids come as ints or longs,
+  which are not equal as Java objects, so they are normalized"
+  [doc-id term-id]
+  [:get-pos-info (long doc-id) (long term-id)])
+
+(defn- doc-positions
+  "Return a map of term id -> positions of the given terms in a doc. Cached
+  positions are used first. As positions-dbi is keyed by [doc-id term-id],
+  positions of a doc are contiguous, so the rest are read in a single range
+  scan when their term ids are close, otherwise by one get per term."
+  ^IntObjectHashMap [^SearchEngine engine doc-id tids]
+  (let [res             (IntObjectHashMap.)
+        ^LRUCache cache (.-cache engine)
+        wanted          (IntHashSet.)]
+    (doseq [tid tids]
+      (if-let [pos-info (.get cache (pos-key doc-id tid))]
+        (.put res (int tid) (first pos-info))
+        (.add wanted (int tid))))
+    (let [n (.size wanted)]
+      (if (and (< 1 n)
+               (<= (inc (- (.max wanted) (.min wanted)))
+                   (* pos-scan-span-ratio n)))
+        (let [load (fn [kv]
+                     (let [tid (int (peek (b/read-buffer (l/k kv) :int-int)))]
+                       (when (.contains wanted tid)
+                         (let [pos-info (b/read-buffer (l/v kv) :pos-info)]
+                           (.put cache (pos-key doc-id tid) pos-info)
+                           (.put res tid (first pos-info))))))]
+          (visit (.-lmdb engine) (.-positions-dbi engine) load
+                 [:closed [doc-id (.min wanted)] [doc-id (.max wanted)]]
+                 :int-int))
+        (let [iter (.intIterator wanted)]
+          (while (.hasNext iter)
+            (let [tid (.next iter)]
+              (when-let [pos-info (get-pos-info engine doc-id tid)]
+                (.put res tid (first pos-info))))))))
+    res))
 
 (defprotocol ISpan
   (get-n [this] "return the number of terms in the span")
@@ -300,10 +341,11 @@
 (defn- segment-doc
   [engine did tids ^long max-dist]
   (let [pos-lst (FastList.)
-        spans   (FastList.)]
+        spans   (FastList.)
+        poss    (doc-positions engine did tids)]
     (doseq [tid tids]
-      (when-let [poss (get-positions engine did tid)]
-        (.add pos-lst poss)))
+      (when-let [ps (.get poss (int tid))]
+        (.add pos-lst (Positions. tid ps 0))))
     (when (seq pos-lst)
       (loop [cur-poss (apply min-key cur-pos pos-lst)
              cur-span (Span. (FastList.))]
@@ -358,23 +400,17 @@
 
 (defn- proximity-scoring
   [engine max-dist tids wqs norms ^PriorityQueue pq0 ^PriorityQueue pq]
-  (dotimes [_ (.size pq0)]
-    (let [[tscore did] (.pop pq0)]
-      (if-let [pscore (proximity-score engine max-dist tids did wqs norms)]
-        (.insertWithOverflow pq [pscore did])
-        (.insertWithOverflow pq [tscore did])))))
-
-(defn- tid-positions
-  [engine did tid]
-  (when tid
-    (when-let [poss (get-positions engine did tid)]
-      (.-positions ^Positions poss))))
+  ;; read positions in doc-id order for better locality
+  (doseq [[tscore did] (sort-by peek (repeatedly (.size pq0) #(.pop pq0)))]
+    (if-let [pscore (proximity-score engine max-dist tids did wqs norms)]
+      (.insertWithOverflow pq [pscore did])
+      (.insertWithOverflow pq [tscore did]))))
 
 (defn- match-phrase
-  [did phrase engine tmid]
+  [^IntObjectHashMap doc-poss phrase tmid]
   (when-let [poss (reduce
                     (fn [coll token]
-                      (if-let [ps (tid-positions engine did (tmid token))]
+                      (if-let [ps (some->> (tmid token) int (.get doc-poss))]
                         (conj coll ps)
                         (reduced nil)))
                     [] phrase)]
@@ -388,19 +424,22 @@
             (first poss)))))
 
 (defn- match-phrases*
-  [did phrases engine tmid req?]
+  [did phrases doc-poss tmid req?]
   (when did
-    (let [match #(match-phrase did % engine tmid)]
+    (let [match #(match-phrase doc-poss % tmid)]
       (if req?
         (when (every? match phrases) did)
         (when (not-any? match phrases) did)))))
 
 (defn- match-phrases
   [{:keys [engine phrases tmid]} did]
-  (let [{:keys [req fbd]} phrases]
+  (let [{:keys [req fbd]} phrases
+        tids              (into #{} (comp cat (keep tmid))
+                                (concat req fbd))
+        doc-poss          (doc-positions engine did tids)]
     (cond-> did
-      req (match-phrases* req engine tmid true)
-      fbd (match-phrases* fbd engine tmid false))))
+      req (match-phrases* req doc-poss tmid true)
+      fbd (match-phrases* fbd doc-poss tmid false))))
 
 (defn- score-term
   [{:keys [^IntDoubleHashMap mxs wqs phrases] :as context} ^Candidate candidate
@@ -463,23 +502,33 @@
 (def operators #{:or :and :not})
 
 (defn- parse-vector
-  [query-analyzer [op & exps]]
+  [query-analyzer expand [op & exps]]
   (if (and (seq exps) (operators op))
     (let [es (into []
                    (comp
-                     (map #(parse-query* query-analyzer %))
+                     (map #(parse-query* query-analyzer expand %))
                      (remove nil?))
                    exps)]
       (when (seq es) (vec (cons op es))))
     (raise "Invalid search query" {:op op})))
 
+(defn- expansion?
+  [e]
+  (and (map? e) (or (:prefix e) (:fuzzy e))))
+
 (defn parse-query*
-  [query-analyzer query]
-  (cond
-    (string? query)  (parse-string query-analyzer query)
-    (vector? query)  (parse-vector query-analyzer query)
-    (keyword? query) query
-    :else            (raise "Invalid search query" {:query query})))
+  "`expand` is a function that takes a `{:prefix ..}` or `{:fuzzy ..}` map
+  and returns the expanded query of indexed terms"
+  ([query-analyzer query]
+   (parse-query* query-analyzer nil query))
+  ([query-analyzer expand query]
+   (cond
+     (string? query)                 (parse-string query-analyzer query)
+     (vector? query)                 (parse-vector query-analyzer expand query)
+     (keyword? query)                query
+     (and expand (expansion? query)) (expand query)
+     :else                           (raise "Invalid search query"
+                                            {:query query}))))
 
 (defn- required-terms*
   [expr pos?]
@@ -586,20 +635,92 @@
           bbm)))
 
 (defn- tiered-scoring
-  [top scoring this proximity-expansion proximity-max-dist result n]
-  (persistent!
-    (unreduced
-      (reduce
-        (fn [coll tao]
-          (let [to-get (- ^long top (count coll))]
-            (if (< 0 to-get)
-              (let [^PriorityQueue pq (priority-queue to-get)]
-                (scoring this pq tao to-get proximity-expansion
-                         proximity-max-dist)
-                (pouring coll pq result))
-              (reduced coll))))
-        (transient [])
-        (range n 0 -1)))))
+  "Return [hits tier], where tier is the last tier scored. `hits` are
+  previously found results, `result` bitmap should already contain their
+  doc ids, and scoring starts at tier `n`"
+  [top scoring this proximity-expansion proximity-max-dist result n hits]
+  (let [tier (volatile! n)]
+    [(persistent!
+       (unreduced
+         (reduce
+           (fn [coll tao]
+             (let [to-get (- ^long top (count coll))]
+               (if (< 0 to-get)
+                 (let [^PriorityQueue pq (priority-queue to-get)]
+                   (vreset! tier tao)
+                   (scoring this pq tao to-get proximity-expansion
+                            proximity-max-dist)
+                   (pouring coll pq result))
+                 (reduced coll))))
+           (transient hits)
+           (range n 0 -1))))
+     @tier]))
+
+(defn- rank-docs
+  "Return a result cache entry of the ranked hits of the query. If a cached
+  entry with fewer hits is given, continue scoring from where it stopped."
+  [^IntShortHashMap norms context top expansion max-dist cached]
+  (if-let [{:keys [tms req] :as context}
+           (some-> context
+                   required-terms
+                   collect-tokens
+                   hydrate-query
+                   setup-env)]
+    (let [n (count req)]
+      (if (zero? n)
+        (let [hits (all-docs context top)]
+          {:hits hits :tms tms :exhausted? (< (count hits) ^long top)})
+        (let [{:keys [hits tier] :or {hits [] tier n}} cached
+
+              result      (RoaringBitmap.)
+              _           (doseq [[_ did] hits] (.add result (int did)))
+              scoring     (score-docs context n norms result)
+              [hits tier] (tiered-scoring top scoring (:engine context)
+                                          expansion max-dist result tier hits)]
+          {:hits       hits
+           :tier       tier
+           :tms        tms
+           :exhausted? (< (count hits) ^long top)})))
+    {:hits nil :exhausted? true}))
+
+(defn- result-cache-key
+  "Key on the analyzed query. Proximity re-ranking depends on the number of
+  results requested, so `top` is part of the key when positions are indexed"
+  [^AtomicLong version {:keys [query phrases]} position? top expansion
+   max-dist]
+  (cond-> [(.get version) query phrases]
+    position? (conj top expansion max-dist)))
+
+(defn- cached-hits
+  "Return the ranked hits of the query, serve a smaller `top` from a cached
+  larger one, and extend a cached smaller one when a larger `top` is asked"
+  [^LRUCache result-cache norms context position? top expansion max-dist
+   version]
+  (let [k                                (result-cache-key
+                                           version context position? top
+                                           expansion max-dist)
+        {:keys [hits exhausted?] :as e} (.get result-cache k)]
+    (if (and e (or exhausted? (<= ^long top (count hits))))
+      (update e :hits #(when % (into [] (take top) %)))
+      (let [e (rank-docs norms context top expansion max-dist
+                         (when (:tier e) e))]
+        (.put result-cache k e)
+        e))))
+
+(defn- hit-bitmap
+  "Return a bitmap of the ids of all documents matching the query"
+  [^IntShortHashMap norms {:keys [bbm phrases query] :as context}]
+  (let [no-phrases? (empty? phrases)
+        ;; negation flips bits of removed docs too
+        negated?    (and (vector? query) (some #{:not} (flatten query)))]
+    (if (and no-phrases? (not negated?))
+      bbm
+      (let [bm (RoaringBitmap.)]
+        (doseq [did bbm]
+          (when (and (or (not negated?) (.containsKey norms (int did)))
+                     (or no-phrases? (match-phrases context did)))
+            (.add bm (int did))))
+        bm))))
 
 (def default-search-opts {:display             :refs
                           :top                 10
@@ -614,10 +735,14 @@
                        docs-dbi
                        positions-dbi
                        rawtext-dbi
+                       facets-dbi
                        ^SpillableMap terms       ; term-id -> term
+                       ^TermDict term-dict       ; sorted terms
                        ^SpillableMap docs        ; doc-id -> doc-ref
                        ^IntShortHashMap norms    ; doc-id -> norm
                        cache
+                       ^LRUCache result-cache   ; query -> ranked hits
+                       ^AtomicLong version      ; bumped on index change
                        ^AtomicInteger max-doc
                        ^AtomicInteger max-term
                        index-position?
@@ -627,26 +752,32 @@
   (add-doc [this doc-ref doc-text check-exist?]
     (locking docs
       (when-not (s/blank? doc-text)
-        (when check-exist?
-          (when-let [doc-id (doc-ref->id this doc-ref)]
-            (remove-doc* this doc-id doc-ref)))
-        (add-doc* this doc-ref doc-text))))
+        (let [old-id (when check-exist? (doc-ref->id this doc-ref))
+              facets (when old-id
+                       (let [facets (doc-facets this old-id)]
+                         (remove-doc* this old-id doc-ref false)
+                         facets))]
+          (add-doc* this doc-ref doc-text old-id facets)))))
   (add-doc [this doc-ref doc-text]
     (.add-doc this doc-ref doc-text true))
 
   (remove-doc [this doc-ref]
     (if-let [doc-id (doc-ref->id this doc-ref)]
-      (remove-doc* this doc-id doc-ref)
+      (remove-doc* this doc-id doc-ref true)
       (u/raise "Document does not exist." {:doc-ref doc-ref})))
 
   (clear-docs [_]
+    (.incrementAndGet version)
     (.empty docs)
     (.empty terms)
+    (.clear term-dict)
     (.clear norms)
     (clear-dbi lmdb terms-dbi)
     (clear-dbi lmdb docs-dbi)
     (clear-dbi lmdb positions-dbi)
-    (clear-dbi lmdb rawtext-dbi))
+    (clear-dbi lmdb rawtext-dbi)
+    (clear-dbi lmdb facets-dbi)
+    (.clear ^LRUCache cache))
 
   (doc-indexed? [this doc-ref] (doc-ref->id this doc-ref))
 
@@ -665,21 +796,44 @@
                               doc-filter
                               (:doc-filter search-opts)}}]
     (when-let [context (some-> {:engine this :max-doc max-doc}
-                               (parse-query query-analyzer query)
-                               required-terms
-                               collect-tokens
-                               hydrate-query
-                               setup-env)]
-      (let [{:keys [tms req]} context
-            n                 (count req)]
-        (sequence
-          (display-xf this doc-filter display tms)
-          (if (zero? n)
-            (all-docs context top)
-            (let [result  (RoaringBitmap.)
-                  scoring (score-docs context n norms result)]
-              (tiered-scoring top scoring this proximity-expansion
-                              proximity-max-dist result n)))))))
+                               (parse-query query-analyzer query))]
+      (let [{:keys [hits tms]} (cached-hits result-cache norms context
+                                            index-position? top
+                                            proximity-expansion
+                                            proximity-max-dist version)]
+        (when hits
+          (sequence (display-xf this doc-filter display tms) hits)))))
+
+  (set-doc-facets [this doc-ref facets]
+    (locking docs
+      (if-let [doc-id (doc-ref->id this doc-ref)]
+        (set-facets* this doc-id facets)
+        (u/raise "Document does not exist." {:doc-ref doc-ref}))))
+
+  (search-hits [_ query]
+    (if-let [context (some-> {:engine this :max-doc max-doc}
+                             (parse-query query-analyzer query)
+                             required-terms
+                             collect-tokens
+                             hydrate-query
+                             setup-env)]
+      (hit-bitmap norms context)
+      (RoaringBitmap.)))
+
+  (facet-counts [this query facet-names]
+    (let [hits (.search-hits this query)]
+      (into {}
+            (map (fn [facet]
+                   [facet
+                    (into {}
+                          (keep (fn [value]
+                                  (let [c (RoaringBitmap/andCardinality
+                                            ^RoaringBitmap hits
+                                            ^RoaringBitmap
+                                            (facet-bitmap this facet value))]
+                                    (when (< 0 c) [value c]))))
+                          (facet-values this facet))]))
+            facet-names)))
 
   IAdmin
   (re-index [this opts]
@@ -718,9 +872,10 @@
 (defn- required-phrases
   [expr pos?]
   (cond
-    (string? expr) [#{}]
-    (:phrase expr) (if pos? [#{expr}] [#{}])
-    (:term expr)   [#{}]
+    (string? expr)    [#{}]
+    (:phrase expr)    (if pos? [#{expr}] [#{}])
+    (:term expr)      [#{}]
+    (expansion? expr) [#{}]
     (map? expr)    (raise "Invalid search query" {:map expr})
     :else
     (let [[op & args] expr]
@@ -774,13 +929,45 @@
             query)))
       query)))
 
+(defn- auto-edits
+  "Allowed edits of a fuzzy term depends on its length, if not specified"
+  [^String term]
+  (let [n (.length term)]
+    (cond
+      (< n 3) 0
+      (< n 6) 1
+      :else   2)))
+
+(defn- expand-term
+  "Expand a `{:prefix ..}` or `{:fuzzy ..}` query map into indexed terms
+  found in the term dictionary"
+  [^SearchEngine engine query-analyzer
+   {:keys [prefix fuzzy edits max-expansions]
+    :or   {max-expansions c/*search-max-expansions*}}]
+  (let [s              (or prefix fuzzy)
+        _              (when-not (string? s)
+                         (raise "Invalid search query" {:term s}))
+        ^String term   (or (first (to-tokens query-analyzer s))
+                           (s/lower-case s))
+        ^TermDict dict (.-term-dict engine)
+        terms          (if prefix
+                         (.prefix dict term (int max-expansions))
+                         (.fuzzy dict term (int (or edits (auto-edits term)))
+                                 (int max-expansions)))]
+    (case (count terms)
+      0 :empty
+      1 (first terms)
+      (vec (cons :or terms)))))
+
 (defn- parse-query
   [{:keys [engine] :as context} query-analyzer query]
   (let [position? (.-index-position? ^SearchEngine engine)
         phrases   (volatile! {})]  ; :req|:fbd => #{ [ tokens ] }
     (when-let [q (some->> query
                           (handle-maps position? phrases query-analyzer)
-                          (parse-query* query-analyzer))]
+                          (parse-query* query-analyzer
+                                        #(expand-term engine query-analyzer
+                                                      %)))]
       (assoc context :query q :phrases @phrases))))
 
 (defmacro wrap-cache
@@ -795,7 +982,7 @@
 (defn- get-pos-info
   [^SearchEngine engine doc-id term-id]
   (wrap-cache
-    engine [:get-pos-info doc-id term-id]
+    engine (pos-key doc-id term-id)
     (get-value (.-lmdb engine) (.-positions-dbi engine)
                [doc-id term-id] :int-int :pos-info)))
 
@@ -803,6 +990,87 @@
   [engine doc-id term-id]
   (peek (get-pos-info engine doc-id term-id)))
 
+;; facets-dbi is a list dbi with three kinds of keys:
+;; [:v facet value] -> doc-ids having the value
+;; [:f facet]       -> values of the facet
+;; [:d doc-id]      -> [facet value] pairs of the doc
+
+(defn- facet-bitmap
+  [^SearchEngine engine facet value]
+  (wrap-cache
+    engine [:facet-bitmap facet value]
+    (let [bm (RoaringBitmap.)]
+      (doseq [did (get-list (.-lmdb engine) (.-facets-dbi engine)
+                            [:v facet value] :data :int)]
+        (.add bm (int did)))
+      bm)))
+
+(defn- facet-values
+  [^SearchEngine engine facet]
+  (wrap-cache
+    engine [:facet-values facet]
+    (set (get-list (.-lmdb engine) (.-facets-dbi engine) [:f facet]
+                   :data :data))))
+
+(defn- doc-facets
+  [^SearchEngine engine doc-id]
+  (not-empty
+    (reduce (fn [m [facet value]] (update m facet conjs value))
+            {} (get-list (.-lmdb engine) (.-facets-dbi engine)
+                         [:d (long doc-id)] :data :data))))
+
+(defn- facet-pairs
+  [facets]
+  (set (for [[facet values] facets value values] [facet value])))
+
+(defn- facet-txs
+  "Add txs that move doc-id from the old facet values to the new ones,
+  return the cache keys to be evicted after the txs are committed. Only the
+  list items of the changed values are touched."
+  [^SearchEngine engine ^FastList txs doc-id old new]
+  (let [lmdb       (.-lmdb engine)
+        facets-dbi (.-facets-dbi engine)
+        old        (facet-pairs old)
+        new        (facet-pairs new)
+        removed    (set/difference old new)
+        added      (set/difference new old)
+        did        (int doc-id)
+        dk         [:d (long doc-id)]]
+    (doseq [[facet value] removed]
+      (.add txs (l/kv-tx :del-list facets-dbi [:v facet value] [did]
+                         :data :int))
+      (when (<= (long (list-count lmdb facets-dbi [:v facet value] :data)) 1)
+        (.add txs (l/kv-tx :del-list facets-dbi [:f facet] [value]
+                           :data :data))))
+    (doseq [[facet value] added]
+      (.add txs (l/kv-tx :put-list facets-dbi [:v facet value] [did]
+                         :data :int))
+      (.add txs (l/kv-tx :put-list facets-dbi [:f facet] [value]
+                         :data :data)))
+    (when (seq removed)
+      (.add txs (l/kv-tx :del-list facets-dbi dk removed :data :data)))
+    (when (seq added)
+      (.add txs (l/kv-tx :put-list facets-dbi dk added :data :data)))
+    (mapcat (fn [[facet value]]
+              [[:facet-bitmap facet value] [:facet-values facet]])
+            (concat removed added))))
+
+(defn- normalize-facets
+  [facets]
+  (into {}
+        (comp (map (fn [[f v]] [f (if (set? v) v #{v})]))
+              (remove (comp empty? peek)))
+        facets))
+
+(defn- set-facets*
+  [^SearchEngine engine doc-id facets]
+  (let [txs   (FastList.)
+        evict (facet-txs engine txs doc-id (doc-facets engine doc-id)
+                         (normalize-facets facets))]
+    (transact-kv (.-lmdb engine) txs)
+    (doseq [k evict] (.remove ^LRUCache (.-cache engine) k))
+    :facets-set))
+
 (defn- score-docs
   [{:keys [tids wqs] :as context} n norms result]
   (fn [engine pq tao to-get expansion max-dist]
@@ -856,7 +1124,7 @@
         (term-ids-via-positions-dbi engine doc-ref)))))
 
 (defn- remove-doc*
-  [^SearchEngine engine doc-id doc-ref]
+  [^SearchEngine engine doc-id doc-ref facets?]
   (let [txs             (FastList.)
         norms           ^IntShortHashMap (.-norms engine)
         norm            (.get norms doc-id)
@@ -873,19 +1141,26 @@
                               (del-max-weight sl doc-id mw tf norm)
                               (sl/remove sl doc-id)]
                              :string :term-info))
-          (.remove cache [:get-term-info term])
-          (.remove cache [:get-pos-info doc-id term-id])))
+          (.remove cache [:get-term-info term])))
+      (.remove cache (pos-key doc-id term-id))
       (.add txs (l/kv-tx :del positions-dbi [doc-id term-id] :int-int)))
     (.add txs (l/kv-tx :del (.-docs-dbi engine) doc-ref :data))
     (.remove ^SpillableMap (.-docs engine) doc-id)
     (.remove norms doc-id)
-    (transact-kv (.-lmdb engine) txs)
+    (let [evict (when facets?
+                  (when-let [facets (doc-facets engine doc-id)]
+                    (facet-txs engine txs doc-id facets nil)))]
+      (transact-kv (.-lmdb engine) txs)
+      (doseq [k evict] (.remove cache k)))
     (.remove cache [:doc-ref->id doc-ref])
-    (.remove cache [:doc-ref->term-ids doc-ref]))
+    (.remove cache [:doc-ref->term-ids doc-ref])
+    (.incrementAndGet ^AtomicLong (.-version engine)))
   :doc-removed)
 
 (defn- add-doc*
-  [^SearchEngine engine doc-ref doc-text]
+  "Add the doc; when it replaces the doc old-id, its facets are moved to the
+  new doc-id in the same transaction"
+  [^SearchEngine engine doc-ref doc-text old-id facets]
   (let [terms-dbi       (.-terms-dbi engine)
         positions-dbi   (.-positions-dbi engine)
         terms           ^SpillableMap (.-terms engine)
@@ -911,6 +1186,7 @@
             (or (get-term-info engine term)
                 [(let [new-tid (.incrementAndGet ^AtomicInteger max-term)]
                    (.put terms new-tid term)
+                   (.add ^TermDict (.-term-dict engine) term)
                    new-tid)
                  0.0
                  (sl/sparse-arraylist)])
@@ -927,7 +1203,12 @@
           doc-info [doc-id unique term-ar]]
       (.add txs (l/kv-tx :put (.-docs-dbi engine) doc-ref doc-info
                          :data :doc-info))
-      (transact-kv (.-lmdb engine) txs)))
+      (let [evict (when facets
+                    (concat (facet-txs engine txs old-id facets nil)
+                            (facet-txs engine txs doc-id nil facets)))]
+        (transact-kv (.-lmdb engine) txs)
+        (doseq [k evict] (.remove ^LRUCache (.-cache engine) k)))
+      (.incrementAndGet ^AtomicLong (.-version engine))))
   :doc-added)
 
 (defn- hydrate-query*
@@ -960,11 +1241,32 @@
     (when (seq qterms)
       (assoc context :qterms qterms))))
 
+(defn score-bound
+  "Return an upper bound of the score of any hit of `query`, the sum of the
+  maximal scores of its terms that WAND also prunes with, or nil when there
+  is none, i.e. when hits are re-ranked by proximity, or the query has no
+  required terms"
+  [^SearchEngine engine query]
+  (when-not (.-index-position? engine)
+    (when-let [{:keys [req mxs]}
+               (some-> {:engine engine :max-doc (.-max-doc engine)}
+                       (parse-query (.-query-analyzer engine) query)
+                       required-terms
+                       collect-tokens
+                       hydrate-query
+                       setup-env)]
+      (when (seq req) (.sum ^IntDoubleHashMap mxs)))))
+
 (defn- get-doc-ref
   [^SearchEngine engine doc-filter [_ doc-id]]
   (when-let [doc-ref ((.-docs engine) doc-id)]
     (when (doc-filter doc-ref) doc-ref)))
 
+(defn- add-score
+  [^SearchEngine engine doc-filter [score _ :as result]]
+  (when-let [doc-ref (get-doc-ref engine doc-filter result)]
+    [doc-ref score]))
+
 (defn- add-offsets
   [^SearchEngine engine doc-filter terms [_ doc-id :as result]]
   (when-let [doc-ref (get-doc-ref engine doc-filter result)]
@@ -1009,10 +1311,12 @@
     :offsets       (comp (map #(add-offsets engine doc-filter tms %))
                          (remove nil?))
     :refs          (comp (map #(get-doc-ref engine doc-filter %))
+                         (remove nil?))
+    :refs+scores   (comp (map #(add-score engine doc-filter %))
                          (remove nil?))))
 
 (defn- open-dbis
-  [lmdb terms-dbi docs-dbi positions-dbi rawtext-dbi]
+  [lmdb terms-dbi docs-dbi positions-dbi rawtext-dbi facets-dbi]
   (assert (not (closed-kv? lmdb)) "LMDB env is closed.")
 
   ;; term -> term-id,max-weight,doc-freq
@@ -1025,35 +1329,74 @@
   (open-dbi lmdb positions-dbi {:key-size (* 2 Integer/BYTES)})
 
   ;; doc-id -> raw-text
-  (open-dbi lmdb rawtext-dbi {:key-size Integer/BYTES}))
+  (open-dbi lmdb rawtext-dbi {:key-size Integer/BYTES})
 
-(defn- init-terms
-  [lmdb terms-dbi]
-  (let [terms  (sp/new-spillable-map)
+  ;; facet,value -> doc-ids; facet -> values; doc-id -> facet,value pairs
+  (open-list-dbi lmdb facets-dbi {:key-size c/+max-key-size+
+                                  :val-size c/+max-key-size+}))
+
+(defn- load-terms
+  "Load the terms into `terms`, return the max term-id and all terms"
+  [lmdb terms-dbi ^SpillableMap terms]
+  (let [tms    (FastList.)
         max-id (volatile! 0)
         load   (fn [kv]
                  (let [term (b/read-buffer (l/k kv) :string)
                        id   (b/read-buffer (l/v kv) :int)]
                    (when (< ^int @max-id ^int id) (vreset! max-id id))
-                   (.put ^SpillableMap terms id term)))]
+                   (.put terms id term)
+                   (.add tms term)))]
     (visit lmdb terms-dbi load [:all-back])
-    [@max-id terms]))
+    [@max-id (.toArray tms ^"[Ljava.lang.String;"
+                       (make-array String (.size tms)))]))
 
-(defn- init-docs
-  [lmdb docs-dbi]
-  (let [norms  (IntShortHashMap.)
-        docs   (sp/new-spillable-map)
-        max-id (volatile! 0)
+(defn- init-terms
+  [lmdb terms-dbi]
+  (let [terms        (sp/new-spillable-map)
+        [max-id tms] (load-terms lmdb terms-dbi terms)]
+    [max-id terms (TermDict. ^"[Ljava.lang.String;" tms)]))
+
+(defn- load-docs
+  "Load the docs into `docs` and `norms`, return the max doc-id"
+  [lmdb docs-dbi ^IntShortHashMap norms ^SpillableMap docs]
+  (let [max-id (volatile! 0)
         load   (fn [kv]
                  (let [ref  (b/read-buffer (l/k kv) :data)
                        vb   (l/v kv)
                        id   (b/read-buffer vb :int)
                        norm (b/read-buffer vb :short)]
                    (when (< ^int @max-id ^int id) (vreset! max-id id))
-                   (.put ^SpillableMap docs id ref)
+                   (.put docs id ref)
                    (.put norms id norm)))]
     (visit lmdb docs-dbi load [:all-back])
-    [@max-id norms docs]))
+    @max-id))
+
+(defn- init-docs
+  [lmdb docs-dbi]
+  (let [norms (IntShortHashMap.)
+        docs  (sp/new-spillable-map)]
+    [(load-docs lmdb docs-dbi norms docs) norms docs]))
+
+(defn reload
+  "Reload the in-memory state of the engine from its DBIs, e.g. after a KV
+  transaction that changed it was rolled back"
+  [^SearchEngine engine]
+  (let [lmdb                   (.-lmdb engine)
+        ^SpillableMap docs     (.-docs engine)
+        ^SpillableMap terms    (.-terms engine)
+        ^IntShortHashMap norms (.-norms engine)]
+    (locking docs
+      (.incrementAndGet ^AtomicLong (.-version engine))
+      (.empty docs)
+      (.empty terms)
+      (.clear norms)
+      (.set ^AtomicInteger (.-max-doc engine)
+            (load-docs lmdb (.-docs-dbi engine) norms docs))
+      (let [[max-term tms] (load-terms lmdb (.-terms-dbi engine) terms)]
+        (.reset ^TermDict (.-term-dict engine) tms)
+        (.set ^AtomicInteger (.-max-term engine) max-term))
+      (.clear ^LRUCache (.-cache engine))
+      engine)))
 
 (def default-opts {:analyzer        a/en-analyzer
                    :index-position? false
@@ -1073,10 +1416,11 @@
    (let [terms-dbi     (str domain "/" c/terms)
          docs-dbi      (str domain "/" c/docs)
          positions-dbi (str domain "/" c/positions)
-         rawtext-dbi   (str domain "/" c/rawtext)]
-     (open-dbis lmdb terms-dbi docs-dbi positions-dbi rawtext-dbi)
-     (let [[max-doc norms docs] (init-docs lmdb docs-dbi)
-           [max-term terms]     (init-terms lmdb terms-dbi)]
+         rawtext-dbi   (str domain "/" c/rawtext)
+         facets-dbi    (str domain "/" c/facets)]
+     (open-dbis lmdb terms-dbi docs-dbi positions-dbi rawtext-dbi facets-dbi)
+     (let [[max-doc norms docs]  (init-docs lmdb docs-dbi)
+           [max-term terms dict] (init-terms lmdb terms-dbi)]
        (->SearchEngine lmdb
                        analyzer
                        (or query-analyzer analyzer)
@@ -1084,10 +1428,14 @@
                        docs-dbi
                        positions-dbi
                        rawtext-dbi
+                       facets-dbi
                        terms     ;; term-id -> term
+                       dict      ;; sorted terms
                        docs      ;; doc-id -> doc-ref
                        norms     ;; doc-id -> norm
                        (LRUCache. 10000)
+                       (LRUCache. c/*search-result-cache-size*)
+                       (AtomicLong. 0)
                        (AtomicInteger. max-doc)
                        (AtomicInteger. max-term)
                        index-position?
@@ -1113,10 +1461,14 @@
                   (.-docs-dbi old)
                   (.-positions-dbi old)
                   (.-rawtext-dbi old)
+                  (.-facets-dbi old)
                   (.-terms old)
+                  (.-term-dict old)
                   (.-docs old)
                   (.-norms old)
                   (.-cache old)
+                  (.-result-cache old)
+                  (.-version old)
                   (.-max-doc old)
                   (.-max-term old)
                   (.-index-position? old)
@@ -1210,8 +1562,9 @@
    (let [terms-dbi     (str domain "/" c/terms)
          docs-dbi      (str domain "/" c/docs)
          positions-dbi (str domain "/" c/positions)
-         rawtext-dbi   (str domain "/" c/rawtext)]
-     (open-dbis lmdb terms-dbi docs-dbi positions-dbi rawtext-dbi)
+         rawtext-dbi   (str domain "/" c/rawtext)
+         facets-dbi    (str domain "/" c/facets)]
+     (open-dbis lmdb terms-dbi docs-dbi positions-dbi rawtext-dbi facets-dbi)
      (->IndexWriter lmdb
                     analyzer
                     terms-dbi
@@ -43,6 +43,7 @@
    [datalevin.db DB]
    [datalevin.storage Store]
    [datalevin.interface ILMDB IStore]
+   [org.roaringbitmap RoaringBitmap]
    [org.bouncycastle.crypto.generators Argon2BytesGenerator]
    [org.bouncycastle.crypto.params Argon2Parameters Argon2Parameters$Builder]))
 
@@ -1243,9 +1244,13 @@
    'doc-indexed?
    'doc-count
    'search
+   'set-doc-facets
+   'search-hits
+   'facet-counts
    'search-re-index
    'new-vector-index
    'add-vec
+   'add-vecs
    'remove-vec
    'persist-vecs
    'close-vecs
@@ -1253,6 +1258,7 @@
    'vecs-info
    'vec-indexed?
    'search-vec
+   'search-vecs
    'vec-re-index
    'kv-re-index
    'datalog-re-index
@@ -2398,6 +2404,23 @@
   [^Server server ^SelectionKey skey {:keys [args writing?]}]
   (wrap-error (search-handler search)))
 
+(defn- set-doc-facets
+  [^Server server ^SelectionKey skey {:keys [args writing?]}]
+  (wrap-error (search-handler set-doc-facets)))
+
+(defn- search-hits
+  [^Server server ^SelectionKey skey {:keys [args]}]
+  (wrap-error
+    (let [[db-name query] args
+          hits            (i/search-hits (search-engine server skey db-name)
+                                         query)]
+      (write-message skey {:type   :command-complete
+                           :result (.toArray ^RoaringBitmap hits)}))))
+
+(defn- facet-counts
+  [^Server server ^SelectionKey skey {:keys [args writing?]}]
+  (wrap-error (search-handler facet-counts)))
+
 (defn- search-re-index
   [^Server server ^SelectionKey skey {:keys [args]}]
   (wrap-error
@@ -2410,6 +2433,10 @@
   [^Server server ^SelectionKey skey {:keys [args writing?]}]
   (wrap-error (vector-handler add-vec)))
 
+(defn- add-vecs
+  [^Server server ^SelectionKey skey {:keys [args writing?]}]
+  (wrap-error (vector-handler add-vecs)))
+
 (defn- remove-vec
   [^Server server ^SelectionKey skey {:keys [args writing?]}]
   (wrap-error (vector-handler remove-vec)))
@@ -2438,6 +2465,10 @@
   [^Server server ^SelectionKey skey {:keys [args writing?]}]
   (wrap-error (vector-handler search-vec)))
 
+(defn- search-vecs
+  [^Server server ^SelectionKey skey {:keys [args writing?]}]
+  (wrap-error (vector-handler search-vecs)))
+
 (defn- vec-re-index
   [^Server server ^SelectionKey skey {:keys [args]}]
   (wrap-error
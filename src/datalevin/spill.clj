@@ -13,19 +13,29 @@
   for compatibility and convenience."
   (:require
    [datalevin.constants :as c]
+   [datalevin.bits :as b]
    [datalevin.util :as u]
    [datalevin.lmdb :as l]
    [datalevin.interface :as i]
    [taoensso.nippy :as nippy]
    [clojure.set :as set])
   (:import
-   [java.util Iterator List UUID NoSuchElementException Map Set Collection]
+   [java.util Iterator List UUID NoSuchElementException Map Set Collection
+    Map$Entry Arrays Comparator]
+   [java.util.concurrent ConcurrentLinkedQueue]
+   [java.util.concurrent.atomic AtomicLong]
+   [java.lang.ref WeakReference]
    [java.io DataInput DataOutput]
    [java.lang.management ManagementFactory]
    [javax.management NotificationEmitter NotificationListener Notification]
    [com.sun.management GarbageCollectionNotificationInfo]
    [org.eclipse.collections.impl.map.mutable UnifiedMap]
    [org.eclipse.collections.impl.list.mutable FastList]
+   [org.eclipse.collections.impl.set.mutable.primitive LongHashSet]
+   [org.eclipse.collections.impl.set.strategy.mutable
+    UnifiedSetWithHashingStrategy]
+   [org.eclipse.collections.api.block HashingStrategy]
+   [datalevin.datom Datom]
    [clojure.lang ISeq IPersistentVector MapEntry Util Sequential
     IPersistentMap MapEquivalence IObj IFn IPersistentSet]))
 
@@ -37,7 +47,7 @@
   (let [fm (.freeMemory runtime)
         tm (.totalMemory runtime)
         mm (.maxMemory runtime)
-        pr (int (/ (- tm fm) mm))]
+        pr (int (/ (* 100 (- tm fm)) mm))]
     ;; (println "used" pr "% of" (int (/ mm (* 1024 1024))))
     (vreset! memory-pressure pr)))
 
@@ -62,6 +72,130 @@
 
 (def memory-updater (memoize install-memory-updater)) ; do it once
 
+;; byte budget
+
+(def ^:private objects-class (class (object-array 0)))
+
+(declare estimate-size)
+
+(defn- sampled-size
+  ^long [xs ^long n]
+  (if (zero? n)
+    32
+    (let [k (min n 8)
+          s (long (reduce + (map estimate-size (take k xs))))]
+      (+ 32 (* 8 n) (quot (* s n) k)))))
+
+(defn estimate-size
+  "Rough estimate of the heap bytes taken by `x`. Only the first few
+  elements of a large collection are looked at."
+  ^long [x]
+  (cond
+    (nil? x)                                   0
+    (or (keyword? x) (symbol? x) (boolean? x)) 8
+    (instance? Number x)                       24
+    (string? x)                                (+ 40 (.length ^String x))
+    (bytes? x)                                 (+ 16 (alength ^bytes x))
+    (instance? Datom x)                        (+ 56 (estimate-size
+                                                       (.-v ^Datom x)))
+    (instance? Map$Entry x)                    (+ 32
+                                                  (estimate-size (key x))
+                                                  (estimate-size (val x)))
+    (instance? objects-class x)                (sampled-size
+                                                 x (alength ^objects x))
+    (or (instance? Collection x) (instance? Map x) (coll? x))
+    (sampled-size x (count x))
+    :else                                      32))
+
+;; A budget tracks the collections charged to it by weak references, so the
+;; bytes of a collection that is dropped without being emptied are given
+;; back once it is garbage collected, rather than when it is finalized.
+(deftype SpillBudget [^long limit
+                      ^AtomicLong used
+                      ^ConcurrentLinkedQueue holders ; [weak-ref held]
+                      ^AtomicLong tracked])
+
+(defn new-spill-budget
+  "A budget of `limit` bytes for the in-memory part of spillable collections,
+  default is `c/default-spill-budget` percent of JVM `-Xmx`"
+  ([] (new-spill-budget (quot (* (.maxMemory runtime)
+                                 ^long c/default-spill-budget)
+                              100)))
+  ([^long limit]
+   (SpillBudget. limit (AtomicLong.) (ConcurrentLinkedQueue.) (AtomicLong.))))
+
+(def ^:dynamic *spill-budget*
+  "The budget shared by the spillable collections of a query. When it is not
+  bound, a collection has its own budget."
+  nil)
+
+(defn- spill-budget
+  [spill-budget]
+  (cond
+    spill-budget   (new-spill-budget spill-budget)
+    *spill-budget* *spill-budget*
+    :else          (new-spill-budget)))
+
+(defn- release
+  "Give back all the bytes held by a collection"
+  [^SpillBudget budget ^AtomicLong held]
+  (.addAndGet ^AtomicLong (.-used budget) (- (.getAndSet held 0))))
+
+(defn- give-back
+  "Give back the bytes of an item leaving the memory of a collection"
+  [^SpillBudget budget ^AtomicLong held x]
+  (let [n (min (estimate-size x) (.get held))]
+    (.addAndGet held (- n))
+    (.addAndGet ^AtomicLong (.-used budget) (- n))))
+
+(defn- reclaim
+  "Give back the bytes held by the collections that are garbage collected"
+  [^SpillBudget budget]
+  (let [iter (.iterator ^ConcurrentLinkedQueue (.-holders budget))]
+    (while (.hasNext iter)
+      (let [^objects h (.next iter)]
+        (when (nil? (.get ^WeakReference (aget h 0)))
+          (.remove iter)
+          (release budget (aget h 1)))))))
+
+(defn- track
+  "Track a collection charged to the budget, return the collection"
+  [^SpillBudget budget coll held]
+  (.add ^ConcurrentLinkedQueue (.-holders budget)
+        (object-array [(WeakReference. coll) held]))
+  (when (zero? (rem (.incrementAndGet ^AtomicLong (.-tracked budget)) 1024))
+    (reclaim budget))
+  coll)
+
+(defn- charge
+  "Charge `n` bytes to the budget if they fit, return true if charged"
+  [^SpillBudget budget ^long n]
+  (let [^AtomicLong u (.-used budget)
+        limit         (.-limit budget)]
+    (loop []
+      (let [cur  (.get u)
+            next (+ cur n)]
+        (cond
+          (< limit next)              false
+          (.compareAndSet u cur next) true
+          :else                       (recur))))))
+
+(defn- admit?
+  "Return true and charge the budget if `x` can be held in memory"
+  [^SpillBudget budget ^long threshold ^AtomicLong held x]
+  (and (< ^long @memory-pressure threshold)
+       (let [n (estimate-size x)]
+         (when (or (charge budget n)
+                   (do (reclaim budget) (charge budget n)))
+           (.addAndGet held n)
+           true))))
+
+(def ^:private ^Comparator bytes-order
+  "order of raw keys, the same as in LMDB"
+  (reify Comparator
+    (compare [_ a b]
+      (Arrays/compareUnsigned ^bytes (nth a 0) ^bytes (nth b 0)))))
+
 (defprotocol ISpillable
   (memory-count [this] "The number of items reside in memory")
   (disk-count [this] "The number of items reside on disk")
@@ -69,19 +203,70 @@
 
 (declare ->SVecSeq ->RSVecSeq)
 
+(defn- flush-vec
+  "Write the pending items to disk in one transaction, as a run of
+  ascending keys"
+  [disk ^FastList pending ^long total]
+  (when-not (.isEmpty pending)
+    (let [start (- total (.size pending))]
+      (i/transact-kv
+        @disk (map-indexed (fn [^long j v]
+                             (l/kv-tx :put c/tmp-dbi (+ start j) v :id
+                                      [:append]))
+                           pending))
+      (.clear pending))))
+
+(defn- read-vec-batch
+  "Read up to `c/*spill-batch-size*` spilled values from index `from` in one
+  cursor pass, the keys are not decoded"
+  ^FastList [disk ^long from]
+  (let [res (FastList.)
+        n   (long c/*spill-batch-size*)]
+    (i/visit @disk c/tmp-dbi
+             (fn [kv]
+               (.add res (b/read-buffer (l/v kv) :data))
+               (when (<= n (.size res)) :datalevin/terminate-visit))
+             [:at-least from] :id :data true)
+    res))
+
+(def ^:private no-window [-1 nil])
+
+(defn- window-get
+  "Get the spilled value at index `k`. Sequential reads are served from a
+  window of values read ahead in batches, other reads are point lookups."
+  [disk window ^long k]
+  (let [[s w]       @window
+        s           (long s)
+        ^FastList w w
+        n           (if w (.size w) 0)]
+    (cond
+      (and (<= s k) (< k (+ s n))) (.get w (- k s))
+      (= k (+ s n))                (let [w (read-vec-batch disk k)]
+                                     (vreset! window [k w])
+                                     (when-not (.isEmpty w) (.get w 0)))
+      :else                        (do (vreset! window [(inc k) nil])
+                                       (i/get-value @disk c/tmp-dbi k :id)))))
+
+;; Items are held in `memory` until the memory pressure is high or the byte
+;; budget is used up, then they go to `pending`, which is written to `disk`
+;; in batches. Item indices are in the order of memory, disk and pending.
 (deftype SpillableVector [^long spill-threshold
                           ^String spill-root
                           spill-dir
                           ^FastList memory
+                          ^FastList pending
                           disk
+                          window
                           total
+                          budget
+                          held
                           ^:unsynchronized-mutable meta]
   ISpillable
 
   (memory-count ^long [_] (.size memory))
 
   (disk-count ^long [_]
-    (if @disk (i/entries @disk c/tmp-dbi) 0))
+    (if @disk (+ ^long (i/entries @disk c/tmp-dbi) (.size pending)) 0))
 
   (spill [this]
     (let [dir (str spill-root "dtlv-spill-vec-" (UUID/randomUUID))]
@@ -116,17 +301,21 @@
       (cond
         (= i tc) (.cons this v)
         (< i mc) (.add memory i v)
-        (< i tc) (i/transact-kv @disk [(l/kv-tx :put c/tmp-dbi i v :id)])
+        (< i tc) (do (flush-vec disk pending tc)
+                     (vreset! window no-window)
+                     (i/transact-kv @disk [(l/kv-tx :put c/tmp-dbi i v :id)]))
         :else    (throw (IndexOutOfBoundsException.))))
     this)
 
   (cons [this v]
     (let [mem? (nil? @disk)]
-      (if (and (< ^long @memory-pressure spill-threshold) mem?)
+      (if (and mem? (admit? budget spill-threshold held v))
         (.add memory v)
         (do (when mem? (.spill this))
-            (i/transact-kv @disk [(l/kv-tx :put c/tmp-dbi @total v :id)]))))
+            (.add pending v))))
     (vswap! total u/long-inc)
+    (when (<= ^long c/*spill-batch-size* (.size pending))
+      (flush-vec disk pending @total))
     this)
 
   (length [_] @total)
@@ -145,39 +334,47 @@
           false))
       false))
 
-  (entryAt [_ k]
+  (entryAt [this k]
     (when (integer? k)
-      (if-some [v (.get memory k)]
-        (MapEntry. k v)
-        (when-some [v (i/get-value @disk c/tmp-dbi k :id)]
-          (MapEntry. k v)))))
+      (when-some [v (.valAt this k)]
+        (MapEntry. k v))))
 
   (valAt [_ k nf]
     (if (integer? k)
-      (cond
-        (< ^long k (.size memory)) (.get memory k)
-        @disk                      (i/get-value @disk c/tmp-dbi k :id)
-        :else                      nf)
+      (let [base (- ^long @total (.size pending))]
+        (cond
+          (< ^long k (.size memory))   (.get memory k)
+          (<= base ^long k)            (if (< ^long k ^long @total)
+                                         (.get pending (- ^long k base))
+                                         nf)
+          @disk                        (window-get disk window k)
+          :else                        nf))
       nf))
   (valAt [this k]
     (.valAt this k nil))
 
   (peek [this]
-    (if (zero? ^long (disk-count this))
-      (.getLast memory)
-      (i/get-first @disk c/tmp-dbi [:all-back] :id :data true)))
+    (cond
+      (not (.isEmpty pending))        (.getLast pending)
+      (zero? ^long (disk-count this)) (.getLast memory)
+      :else (i/get-first @disk c/tmp-dbi [:all-back] :id :data true)))
 
   (pop [this]
     (cond
       (zero? ^long @total)
       (throw (IllegalStateException. "Can't pop empty vector"))
 
+      (not (.isEmpty pending))
+      (.remove pending (int (dec (.size pending))))
+
       (< 0 ^long (disk-count this))
       (let [[lk _] (i/get-first @disk c/tmp-dbi [:all-back]
                                 :id :ignore)]
+        (vreset! window no-window)
         (i/transact-kv @disk [(l/kv-tx :del c/tmp-dbi lk :id)]))
 
-      :else (.remove memory (dec ^long (memory-count this))))
+      :else (give-back budget held
+                       (.remove memory (int (dec ^long (memory-count this))))))
     (vswap! total #(dec ^long %))
     this)
 
@@ -185,6 +382,9 @@
 
   (empty [this]
     (.clear memory)
+    (.clear pending)
+    (vreset! window no-window)
+    (release budget held)
     (when @disk
       (i/close-kv @disk)
       (vreset! disk nil))
@@ -246,6 +446,7 @@
   ;; TODO migrate to cleaner API when dropping Java 8 support
   ;; as finalizer API is scheduled to be removed in future JVM
   (finalize ^void [_]
+    (release budget held)
     (when @disk
       (i/close-kv @disk)
       (u/delete-files @spill-dir))))
@@ -302,7 +503,7 @@
 (defn new-spillable-vector
   ([] (new-spillable-vector nil nil))
   ([vs] (new-spillable-vector vs nil))
-  ([vs {:keys [spill-threshold spill-root]
+  ([vs {:keys [spill-threshold spill-root spill-budget]
         :or   {spill-threshold c/default-spill-threshold
                spill-root      c/default-spill-root}}]
    (when (empty? @listeners) (memory-updater))
@@ -310,9 +511,14 @@
                                                  spill-root
                                                  (volatile! nil)
                                                  (FastList. (count vs))
+                                                 (FastList.)
                                                  (volatile! nil)
+                                                 (volatile! no-window)
                                                  (volatile! 0)
+                                                 (spill-budget spill-budget)
+                                                 (AtomicLong.)
                                                  nil)]
+     (track (.-budget svec) svec (.-held svec))
      (doseq [v vs] (.cons svec v))
      svec)))
 
@@ -338,17 +544,52 @@
     (dotimes [_ n] (.cons vs (nippy/thaw-from-in! in)))
     vs))
 
+(defn- read-map-batch
+  "Read up to `c/*spill-batch-size*` spilled entries after `entry`, or from
+  the start if it is nil, in one cursor pass"
+  ^FastList [disk entry]
+  (let [res (FastList.)
+        n   (long c/*spill-batch-size*)]
+    (i/visit @disk c/tmp-dbi
+             (fn [kv]
+               (.add res (MapEntry. (b/read-buffer (l/k kv) :data)
+                                    (b/read-buffer (l/v kv) :data)))
+               (when (<= n (.size res)) :datalevin/terminate-visit))
+             (if entry [:greater-than (key entry)] [:all]) :data :data true)
+    res))
+
+(defn- flush-map
+  "Write the pending entries to disk in one transaction, sorted by the
+  encoded keys"
+  [disk ^UnifiedMap pending]
+  (when-not (.isEmpty pending)
+    (i/transact-kv
+      @disk (->> pending
+                 (mapv (fn [[k v]] [(b/serialize k) v]))
+                 (sort bytes-order)
+                 (map (fn [[kbs v]] (l/kv-tx :put c/tmp-dbi kbs v :raw)))))
+    (.clear pending)))
+
+;; Entries are held in `memory` until the memory pressure is high or the byte
+;; budget is used up, then new keys go to `pending`, which is written to
+;; `disk` in batches. A key is in only one of them.
 (deftype SpillableMap [^long spill-threshold
                        ^String spill-root
                        spill-dir
                        ^UnifiedMap memory
+                       ^UnifiedMap pending
                        disk
+                       budget
+                       held
                        ^:unsynchronized-mutable meta]
   ISpillable
 
   (memory-count ^long [_] (.size memory))
 
-  (disk-count ^long [_] (if @disk (i/entries @disk c/tmp-dbi) 0))
+  (disk-count ^long [_]
+    (if @disk
+      (do (flush-map disk pending) (i/entries @disk c/tmp-dbi))
+      0))
 
   (spill [this]
     (let [dir (str spill-root "dtlv-spill-map-" (UUID/randomUUID))]
@@ -363,29 +604,29 @@
 
   (without [this k] (.remove this k) this)
 
-  (count [_]
-    (cond-> (.size memory) @disk (+ ^long (i/entries @disk c/tmp-dbi))))
+  (count [this]
+    (+ (.size memory) ^long (disk-count this)))
 
   (containsKey [_ k]
-    (if (.containsKey memory k)
-      true
-      (if @disk
-        (some? (i/get-value @disk c/tmp-dbi k))
-        false)))
+    (cond
+      (.containsKey memory k)  true
+      (.containsKey pending k) true
+      @disk                    (some? (i/get-value @disk c/tmp-dbi k))
+      :else                    false))
 
-  (entryAt [_ k]
-    (if-some [v (.get memory k)]
-      (MapEntry. k v)
-      (when-some [v (i/get-value @disk c/tmp-dbi k)]
-        (MapEntry. k v))))
+  (entryAt [this k]
+    (when-some [v (.valAt this k)]
+      (MapEntry. k v)))
 
   (valAt [_ k nf]
     (if-some [v (.get memory k)]
       v
       (if @disk
-        (if-some [v (i/get-value @disk c/tmp-dbi k)]
+        (if-some [v (.get pending k)]
           v
-          nf)
+          (if-some [v (i/get-value @disk c/tmp-dbi k)]
+            v
+            nf))
         nf)))
   (valAt [this k]
     (.valAt this k nil))
@@ -396,6 +637,8 @@
 
   (empty [this]
     (.clear memory)
+    (.clear pending)
+    (release budget held)
     (when @disk
       (i/close-kv @disk)
       (vreset! disk nil))
@@ -405,7 +648,9 @@
 
   (keySet [_]
     (set/union (set (.keySet memory))
-               (when @disk (set (i/key-range @disk c/tmp-dbi [:all])))))
+               (when @disk
+                 (flush-map disk pending)
+                 (set (i/key-range @disk c/tmp-dbi [:all])))))
 
   (equiv [this other]
     (cond
@@ -428,19 +673,25 @@
   (size [this] (count this))
 
   (put [this k v]
-    (if (< ^long @memory-pressure spill-threshold)
+    (if (or (.containsKey memory k)
+            (and (nil? @disk) (admit? budget spill-threshold held (MapEntry. k v))))
       (.put memory k v)
-      (when-not (= (.get memory k) v)
-        (when (nil? @disk) (.spill this))
-        (i/transact-kv @disk [(l/kv-tx :put c/tmp-dbi k v)]))))
+      (do (when (nil? @disk) (.spill this))
+          (.put pending k v)
+          (when (<= ^long c/*spill-batch-size* (.size pending))
+            (flush-map disk pending)))))
 
   (get [this k] (.valAt this k))
 
   (remove [_ k]
     (if (.containsKey memory k)
-      (.remove memory k)
-      (when (and @disk (i/get-value @disk c/tmp-dbi k))
-        (i/transact-kv @disk [(l/kv-tx :del c/tmp-dbi k)]))))
+      (let [v (.remove memory k)]
+        (give-back budget held (MapEntry. k v))
+        v)
+      (when @disk
+        (.remove pending k)
+        (when (i/get-value @disk c/tmp-dbi k)
+          (i/transact-kv @disk [(l/kv-tx :del c/tmp-dbi k)])))))
 
   (isEmpty [this] (= 0 (count this)))
 
@@ -462,9 +713,10 @@
             kl       (FastList. (.keySet memory))
             mn       (.size kl)
             db       @disk
+            _        (when db (flush-map disk pending))
             ^long dn (if db (i/entries db c/tmp-dbi) 0)
-            dl       (when-not (zero? dn)
-                       (i/get-range db c/tmp-dbi [:all]))]
+            batch    (volatile! (FastList.))
+            j        (volatile! 0)]
         (reify
           Iterator
           (hasNext [_]
@@ -477,8 +729,15 @@
                     res      (if (< di mn)
                                (let [k (.get kl di)]
                                  (MapEntry. k (.get memory k)))
-                               (let [[k v] (nth dl (- di mn))]
-                                 (MapEntry. k v)))]
+                               (let [^FastList b @batch]
+                                 (when (= ^long @j (.size b))
+                                   (vreset! batch (read-map-batch
+                                                    disk (when (< 0 (.size b))
+                                                           (.getLast b))))
+                                   (vreset! j 0))
+                                 (let [^long bj @j]
+                                   (vswap! j u/long-inc)
+                                   (.get ^FastList @batch bj))))]
                 (vswap! i u/long-inc)
                 res)
               (throw (NoSuchElementException.))))))))
@@ -488,23 +747,35 @@
   (toString [this] (str (into {} this)))
 
   (finalize ^void [_]
+    (release budget held)
     (when @disk
       (i/close-kv @disk)
       (u/delete-files @spill-dir))))
 
+(defn- spillable-map
+  [{:keys [spill-threshold spill-root spill-budget]
+    :or   {spill-threshold c/default-spill-threshold
+           spill-root      c/default-spill-root}}]
+  (let [budget (spill-budget spill-budget)
+        held   (AtomicLong.)]
+    (track budget
+           (SpillableMap. spill-threshold
+                          spill-root
+                          (volatile! nil)
+                          (UnifiedMap.)
+                          (UnifiedMap.)
+                          (volatile! nil)
+                          budget
+                          held
+                          nil)
+           held)))
+
 (defn new-spillable-map
   ([] (new-spillable-map nil nil))
   ([m] (new-spillable-map m nil))
-  ([m {:keys [spill-threshold spill-root]
-       :or   {spill-threshold c/default-spill-threshold
-              spill-root      c/default-spill-root}}]
+  ([m opts]
    (when (empty? @listeners) (memory-updater))
-   (let [smap (SpillableMap. spill-threshold
-                             spill-root
-                             (volatile! nil)
-                             (UnifiedMap.)
-                             (volatile! nil)
-                             nil)]
+   (let [smap (spillable-map opts)]
      (doseq [[k v] m] (assoc smap k v))
      smap)))
 
@@ -593,16 +864,9 @@
 (defn new-spillable-set
   ([] (new-spillable-set nil nil))
   ([s] (new-spillable-set s nil))
-  ([s {:keys [spill-threshold spill-root]
-       :or   {spill-threshold c/default-spill-threshold
-              spill-root      c/default-spill-root}}]
+  ([s opts]
    (when (empty? @listeners) (memory-updater))
-   (let [impl (SpillableMap. spill-threshold
-                             spill-root
-                             (volatile! nil)
-                             (UnifiedMap.)
-                             (volatile! nil)
-                             nil)]
+   (let [^SpillableMap impl (spillable-map opts)]
      (doseq [e s] (.put impl e c/slash))
      (SpillableSet. impl nil))))
 
@@ -615,3 +879,151 @@
   :spillable-set
   [^DataInput in]
   (new-spillable-set (nippy/thaw-from-in! in)))
+
+;; Sets of tuples (object arrays) for deduplication. Tuples are held in
+;; `memory` within the byte budget. Beyond that, a tuple is hashed into a
+;; 64 bits fingerprint, and kept on `disk` under it, and the in memory
+;; `fps` is checked first, so only tuples with seen fingerprints are looked
+;; up on disk.
+
+(def ^:private ^HashingStrategy tuple-hashing
+  (reify HashingStrategy
+    (computeHashCode [_ a] (Arrays/hashCode ^objects a))
+    (equals [_ a b] (Arrays/equals ^objects a ^objects b))))
+
+(defn- fingerprint
+  ^long [^objects a]
+  (let [n (alength a)]
+    (loop [h (unchecked-long n) i 0]
+      (if (< i n)
+        (recur (unchecked-add (unchecked-multiply h -7046029254386353131)
+                              (unchecked-long (Util/hash (aget a i))))
+               (unchecked-inc i))
+        (let [h (bit-xor h (unsigned-bit-shift-right h 33))
+              h (unchecked-multiply h -49064778989728563)]
+          (bit-xor h (unsigned-bit-shift-right h 33)))))))
+
+(defn- tuples-under
+  "Return the tuples under a fingerprint, the pending ones if any, otherwise
+  those on disk"
+  ^FastList [disk ^UnifiedMap pending ^long fp]
+  (or (.get pending fp)
+      (let [ts (i/get-value @disk c/tmp-dbi fp :id)]
+        (FastList. ^Collection (mapv object-array ts)))))
+
+(defn- flush-tuples
+  "Write the pending tuples to disk in one transaction, sorted by the
+  fingerprints"
+  [disk ^UnifiedMap pending]
+  (when-not (.isEmpty pending)
+    (i/transact-kv
+      @disk (map (fn [fp]
+                   (l/kv-tx :put c/tmp-dbi fp (mapv vec (.get pending fp)) :id))
+                 (sort #(Long/compareUnsigned %1 %2) (.keySet pending))))
+    (.clear pending)))
+
+(defprotocol ITupleSet
+  (add-tuple [this t]
+    "Add tuple `t`, an object array, return true if it was not in the set")
+  (has-tuple? [this t] "Return true if tuple `t` is in the set")
+  (tuple-count [this] "The number of tuples in the set")
+  (clear-tuples [this] "Remove all the tuples, and free the memory and disk"))
+
+(deftype SpillableTupleSet [^long spill-threshold
+                            ^String spill-root
+                            spill-dir
+                            ^UnifiedSetWithHashingStrategy memory
+                            ^LongHashSet fps
+                            ^UnifiedMap pending
+                            disk
+                            total
+                            budget
+                            held]
+  ISpillable
+
+  (memory-count ^long [_] (.size memory))
+
+  (disk-count ^long [_] (- ^long @total (.size memory)))
+
+  (spill [this]
+    (let [dir (str spill-root "dtlv-spill-tuples-" (UUID/randomUUID))]
+      (vreset! spill-dir dir)
+      (vreset! disk (l/open-kv dir {:temp? true}))
+      (i/open-dbi @disk c/tmp-dbi {:key-size Long/BYTES}))
+    this)
+
+  ITupleSet
+
+  (add-tuple [this a]
+    (let [added?
+          (cond
+            (.contains memory a) false
+
+            (and (nil? @disk) (admit? budget spill-threshold held a))
+            (.add memory a)
+
+            :else
+            (let [fp (fingerprint a)
+                  ts (if (.add fps fp)
+                       (FastList.)
+                       (tuples-under disk pending fp))]
+              (when (nil? @disk) (.spill this))
+              (when-not (some #(Arrays/equals ^objects a ^objects %) ts)
+                (.put pending fp (doto ^FastList ts (.add a)))
+                (when (<= ^long c/*spill-batch-size* (.size pending))
+                  (flush-tuples disk pending))
+                true)))]
+      (when added? (vswap! total u/long-inc))
+      (boolean added?)))
+
+  (has-tuple? [_ a]
+    (or (.contains memory a)
+        (and (some? @disk)
+             (let [fp (fingerprint a)]
+               (and (.contains fps fp)
+                    (boolean (some #(Arrays/equals ^objects a ^objects %)
+                                   (tuples-under disk pending fp))))))))
+
+  (tuple-count [_] @total)
+
+  (clear-tuples [_]
+    (.clear memory)
+    (.clear fps)
+    (.clear pending)
+    (vreset! total 0)
+    (release budget held)
+    (when @disk
+      (i/close-kv @disk)
+      (vreset! disk nil)
+      (u/delete-files @spill-dir)))
+
+  Object
+
+  (finalize ^void [_]
+    (release budget held)
+    (when @disk
+      (i/close-kv @disk)
+      (u/delete-files @spill-dir))))
+
+(defn new-spillable-tuple-set
+  "A set of tuples, i.e. object arrays compared by content, that spills to
+  disk. It is an `ITupleSet`."
+  ([] (new-spillable-tuple-set nil))
+  ([{:keys [spill-threshold spill-root spill-budget]
+     :or   {spill-threshold c/default-spill-threshold
+            spill-root      c/default-spill-root}}]
+   (when (empty? @listeners) (memory-updater))
+   (let [budget (spill-budget spill-budget)
+         held   (AtomicLong.)]
+     (track budget
+            (SpillableTupleSet. spill-threshold
+                                spill-root
+                                (volatile! nil)
+                                (UnifiedSetWithHashingStrategy. tuple-hashing)
+                                (LongHashSet.)
+                                (UnifiedMap.)
+                                (volatile! nil)
+                                (volatile! 0)
+                                budget
+                                held)
+            held))))
@@ -30,7 +30,8 @@
             index->k index->v gt->datom retrieved->v]]
    [datalevin.validate :as vld]
    [datalevin.interface
-    :refer [transact-kv get-range get-first get-value visit-list-sample
+    :refer [transact-kv get-range get-first get-first-n get-value
+            visit-list-sample
             visit-list-key-range near-list env-dir close-kv closed-kv?
             visit entries list-range list-range-first list-range-count
             list-count key-range-list-count key-range-count rschema
@@ -38,11 +39,15 @@
             list-range-some list-range-keep visit-list-range max-gt max-tx
             open-list-dbi open-dbi attrs add-doc remove-doc opts swap-attr
             add-vec remove-vec schema closed? a-size db-name populated?]]
-   [clojure.string :as str])
+   [clojure.string :as str]
+   [taoensso.timbre :as log])
   (:import
-   [java.util List Comparator Collection HashMap UUID]
+   [java.util List Comparator Collection HashMap UUID Arrays Map$Entry]
+   [java.nio.charset StandardCharsets]
+   [java.security MessageDigest]
    [java.util.concurrent TimeUnit ScheduledExecutorService ConcurrentHashMap
     ScheduledFuture]
+   [java.util.concurrent.atomic AtomicLong]
    [java.util.concurrent.locks ReentrantReadWriteLock]
    [java.nio ByteBuffer]
    [java.lang AutoCloseable]
@@ -176,7 +181,8 @@
   (let [g (.-g v)]
     (if (= g c/normal)
       (d/datom k (attrs (.-a v)) (.-v v))
-      (gt->datom lmdb g))))
+      ;; giants may be shared, so only the value is taken
+      (d/datom k (attrs (.-a v)) (d/datom-v (gt->datom lmdb g))))))
 
 (defn- retrieved->datom
   [lmdb attrs [k v :as kv]]
@@ -415,7 +421,9 @@
         (b/read-buffer (.rewind bf) :avg)))))
 
 (declare insert-datom delete-datom fulltext-index vector-index idoc-index check
-         transact-opts ->SamplingWork e-sample* default-ratio* analyze*)
+         transact-opts ->SamplingWork e-sample* default-ratio* analyze*
+         side-ops start-side-indexing stop-side-indexing drain-side-queue
+         encode-datoms ordered-txs ->GiantDedup flush-giant-refs)
 
 (deftype Store [lmdb
                 search-engines
@@ -430,6 +438,8 @@
                 ^:volatile-mutable max-gt
                 ^:volatile-mutable max-tx
                 scheduled-sampling
+                scheduled-indexing
+                ^ConcurrentHashMap side-retries ; tx -> failed attempts
                 write-txn
                 ^ReentrantReadWriteLock sampling-lock]
 
@@ -441,11 +451,15 @@
 
   (opts [_] opts)
 
-  (assoc-opt [_ k v]
+  (assoc-opt [this k v]
     (vld/validate-option-mutation k v)
     (let [new-opts (assoc opts k v)]
       (set! opts new-opts)
-      (transact-opts lmdb new-opts)))
+      (transact-opts lmdb new-opts)
+      ;; later commits index synchronously, so queued ones go first
+      (when (and (= k :async-side-index?) (not v))
+        (stop-side-indexing this)
+        (drain-side-queue this))))
 
   (db-name [_] (:db-name opts))
 
@@ -456,6 +470,7 @@
       (.lock wlock)
       (try
         (.stop-sampling this)
+        (stop-side-indexing this)
         (close-kv lmdb)
         (finally
           (.unlock wlock)))))
@@ -560,20 +575,37 @@
           ;; idoc [:a d [e aid v]], [:d d [e aid v]], [:g d [gt v]],
           ;; or [:r d [gt v]]
           id-ds  (FastList.)
-          giants (HashMap.)]
+          giants (HashMap.)
+          dedup  (->GiantDedup (HashMap.) (HashMap.))
+          ;; CPU bound, so done before taking the lock
+          enc    (encode-datoms this datoms)]
       (locking (lmdb/write-txn lmdb)
-        (doseq [datom datoms]
-          (if (d/datom-added datom)
-            (insert-datom this datom txs ft-ds vi-ds id-ds giants)
-            (delete-datom this datom txs ft-ds vi-ds id-ds giants)))
-        (.add txs (lmdb/kv-tx :put c/meta :max-tx
-                              (.advance-max-tx this) :attr :long))
-        (.add txs (lmdb/kv-tx :put c/meta :last-modified
-                              (System/currentTimeMillis) :attr :long))
-        (fulltext-index search-engines ft-ds)
-        (vector-index vector-indices vi-ds)
-        (idoc-index idoc-indices id-ds)
-        (transact-kv lmdb txs))))
+        (loop [ds (seq datoms) k 0]
+          (when ds
+            (let [datom (first ds)]
+              (if (d/datom-added datom)
+                (insert-datom this datom txs ft-ds vi-ds id-ds giants dedup
+                              enc k)
+                (delete-datom this datom txs ft-ds vi-ds id-ds giants dedup
+                              enc k)))
+            (recur (next ds) (inc k))))
+        (flush-giant-refs dedup txs)
+        (let [tx (.advance-max-tx this)]
+          (.add txs (lmdb/kv-tx :put c/meta :max-tx tx :attr :long))
+          (.add txs (lmdb/kv-tx :put c/meta :last-modified
+                                (System/currentTimeMillis) :attr :long))
+          (if (:async-side-index? opts)
+            (when-not (and (.isEmpty ft-ds) (.isEmpty vi-ds) (.isEmpty id-ds))
+              (.add txs (lmdb/kv-tx :put c/side-queue tx
+                                    (side-ops vector-indices ft-ds vi-ds id-ds)
+                                    :long :data)))
+            (do (fulltext-index search-engines ft-ds)
+                (vector-index vector-indices vi-ds)
+                (idoc-index idoc-indices id-ds)))
+          (transact-kv lmdb (ordered-txs enc txs))))
+      ;; a store in an explicit transaction leaves it to the original one
+      (when (and (:async-side-index? opts) (not (lmdb/writing? lmdb)))
+        (start-side-indexing this))))
 
   (fetch [_ datom]
     (mapv #(retrieved->datom lmdb attrs %)
@@ -1093,16 +1125,24 @@
       :r (remove-doc engine [:g d]))))
 
 (defn vector-index
+  "Apply vector ops `[domains op]`, or `[domains op vec-ids]` for adds
+  queued with their vec-ids reserved"
   [vector-indices vi-ds]
-  (doseq [res    vi-ds
-          :let   [op (peek res)
-                  d (nth op 1)]
-          domain (nth res 0)
-          :let   [index (vector-indices domain)]]
+  (doseq [res        vi-ds
+          :let       [op (nth res 1)
+                      d (nth op 1)
+                      ids (nth res 2 nil)]
+          [i domain] (map-indexed vector (nth res 0))
+          :let       [index (vector-indices domain)
+                      add   (fn [vec-ref vec-data]
+                              (if ids
+                                (v/add-vec-at index vec-ref vec-data
+                                              (nth ids i))
+                                (add-vec index vec-ref vec-data)))]]
     (case (nth op 0)
-      :a (add-vec index d (peek d))
+      :a (add d (peek d))
       :d (remove-vec index d)
-      :g (add-vec index [:g (nth d 0)] (peek d))
+      :g (add [:g (nth d 0)] (peek d))
       :r (remove-vec index [:g d]))))
 
 (defn idoc-index
@@ -1234,9 +1274,188 @@
              (props :db.fulltext/autoDomain) (conj (u/keyword->string attr)))
            op])))
 
+(deftype EncodedDatoms [^objects is        ; Indexable of each datom, or nil
+                        ^objects ks        ; its raw ave key, or nil
+                        ^objects eav       ; its eav update
+                        ^objects ave       ; its ave update
+                        ^ints eav-order    ; indices of encoded datoms
+                        ^ints ave-order])
+
+(defn- sorted-indices
+  "Return the indices of the non-nil `ks`, sorted by `cmp`. The sort is
+  stable, so updates of the same key keep their order"
+  ^ints [^objects ks ^Comparator cmp]
+  (let [idx (into-array Integer
+                        (sequence (comp (filter #(some? (aget ks (int %))))
+                                        (map int))
+                                  (range (alength ks))))]
+    (Arrays/sort ^"[Ljava.lang.Integer;" idx cmp)
+    (int-array idx)))
+
+(defn- encode-datoms
+  "Encode the datoms of known attributes and their ave keys in parallel, if
+  there are enough of them, and work out the order of their eav and ave
+  updates by key, the same as in LMDB. None of this needs the write lock.
+  The giant ones get a placeholder giant id, to be merged in later. Return
+  an `EncodedDatoms`, or nil"
+  [^Store store datoms]
+  (let [n (count datoms)]
+    (when (<= ^long c/*datom-encode-parallel-size* n)
+      (let [schema (schema store)
+            dv     (vec datoms)
+            chunk  (long c/*datom-encode-chunk-size*)
+            is     (object-array n)
+            ks     (object-array n)]
+        (u/map+ (fn [^long start]
+                  (let [end (min n (+ start chunk))
+                        bf  (ByteBuffer/allocate c/+max-key-size+)]
+                    (loop [k start]
+                      (when (< k end)
+                        (let [^Datom d (nth dv k)]
+                          (when-let [props (schema (.-a d))]
+                            (let [i (b/indexable (.-e d) (props :db/aid)
+                                                 (.-v d) (value-type props)
+                                                 c/g0)]
+                              (.clear bf)
+                              (b/put-buffer bf i :avg)
+                              (.flip bf)
+                              (aset is k i)
+                              (aset ks k (b/get-bytes bf)))))
+                        (recur (inc k))))))
+                (range 0 n chunk))
+        (->EncodedDatoms
+          is ks (object-array n) (object-array n)
+          (sorted-indices ks (reify Comparator
+                               (compare [_ a b]
+                                 (Long/compareUnsigned
+                                   (.-e ^Datom (nth dv a))
+                                   (.-e ^Datom (nth dv b))))))
+          (sorted-indices ks (reify Comparator
+                               (compare [_ a b]
+                                 (Arrays/compareUnsigned
+                                   ^bytes (aget ks (int a))
+                                   ^bytes (aget ks (int b)))))))))))
+
+(defn- encoded
+  "Return the pre-encoded `Indexable` of the `k`th datom if it is still good
+  for `aid`"
+  [^EncodedDatoms enc ^long k aid]
+  (when enc
+    (let [^Indexable i0 (aget ^objects (.-is enc) k)]
+      (when (and i0 (= aid (.-a i0))) i0))))
+
+(defn- raw-key
+  "Return the pre-encoded ave key of the `k`th datom, with giant id `gt`
+  merged in, if any"
+  ^bytes [^EncodedDatoms enc ^long k gt]
+  (let [^bytes bs (aget ^objects (.-ks enc) k)]
+    ;; the giant id is followed by one byte at the end of the key
+    (when gt (.putLong (ByteBuffer/wrap bs) (- (alength bs) 9) (long gt)))
+    bs))
+
+(defn- add-encoded
+  "Keep the ave and eav updates of the pre-encoded `k`th datom"
+  [^EncodedDatoms enc ^long k ave-tx eav-tx]
+  (aset ^objects (.-ave enc) k ave-tx)
+  (aset ^objects (.-eav enc) k eav-tx))
+
+(defn- ordered-txs
+  "Put the eav and ave updates of the pre-encoded datoms ahead of `txs`,
+  grouped by DBI and in key order, so LMDB goes through the pages of one
+  B-tree at a time, in order. Only the placement is done here, the order
+  is already worked out before the write lock"
+  [^EncodedDatoms enc ^FastList txs]
+  (if enc
+    (let [^ints eo     (.-eav-order enc)
+          ^ints ao     (.-ave-order enc)
+          ^objects eav (.-eav enc)
+          ^objects ave (.-ave enc)
+          res          (FastList. (+ (alength eo) (alength ao) (.size txs)))]
+      (dotimes [j (alength eo)]
+        (when-let [tx (aget eav (aget eo j))] (.add res tx)))
+      (dotimes [j (alength ao)]
+        (when-let [tx (aget ave (aget ao j))] (.add res tx)))
+      (doto res (.addAll txs)))
+    txs))
+
+;; giant values deduplication
+
+;; With `:dedup-giants?` option, a large value is looked up by its content
+;; hash among the shared giants, and a match is referenced instead of
+;; storing the value again, so that equal large values have the same giant
+;; id, hence the same ave key. Reference counts are kept for shared giants
+;; only. Values of full-text, vector and idoc attributes are not shared, as
+;; these indices use giant ids to refer to datoms.
+
+(deftype GiantDedup [^HashMap gts     ; value -> gt, new in this transaction
+                     ^HashMap refs])  ; gt -> long[] {count, hash}
+
+(defn- shareable?
+  [props vt]
+  (not (or (props :db/fulltext)
+           (identical? vt :db.type/vec)
+           (identical? vt :db.type/idoc))))
+
+(defn- value-hash
+  ^long [v]
+  (let [bs (if (string? v)
+             (.getBytes ^String v StandardCharsets/UTF_8)
+             (b/serialize v))]
+    (.getLong (ByteBuffer/wrap
+                (.digest (MessageDigest/getInstance "SHA-256") bs)))))
+
+(defn- value-key [v] (if (bytes? v) (ByteBuffer/wrap v) v))
+
+(defn- value=
+  [x y]
+  (if (bytes? x)
+    (and (bytes? y) (Arrays/equals ^bytes x ^bytes y))
+    (= x y)))
+
+(defn- find-giant
+  "Return the gt of the shared giant of value `v` with hash `h`, or nil"
+  [lmdb ^GiantDedup dedup v h]
+  (or (.get ^HashMap (.-gts dedup) (value-key v))
+      (some (fn [gt]
+              (when (value= v (d/datom-v (gt->datom lmdb gt))) gt))
+            (get-list lmdb c/giant-hashes h :long :id))))
+
+(defn- new-shared-giant
+  [^GiantDedup dedup ^FastList txs gt v h]
+  (.put ^HashMap (.-gts dedup) (value-key v) gt)
+  (.put ^HashMap (.-refs dedup) gt (long-array [1 h]))
+  (.add txs (lmdb/kv-tx :put c/giant-hashes h gt :long :id)))
+
+(defn- add-giant-ref
+  "Add `delta` to the reference count of a shared giant, return nil if the
+  giant is not shared"
+  [^GiantDedup dedup lmdb gt v h ^long delta]
+  (let [^HashMap refs (.-refs dedup)]
+    (when-let [^longs r (or (.get refs gt)
+                            (when-let [n (get-value lmdb c/giant-refs gt
+                                                    :id :long)]
+                              (let [r (long-array [n (or h (value-hash v))])]
+                                (.put refs gt r)
+                                r)))]
+      (aset r 0 (+ (aget r 0) delta))
+      true)))
+
+(defn- flush-giant-refs
+  [^GiantDedup dedup ^FastList txs]
+  (doseq [^Map$Entry e (.entrySet ^HashMap (.-refs dedup))
+          :let         [gt (.getKey e)
+                        ^longs r (.getValue e)
+                        n (aget r 0)]]
+    (if (< 0 n)
+      (.add txs (lmdb/kv-tx :put c/giant-refs gt n :id :long))
+      (do (.add txs (lmdb/kv-tx :del c/giant-refs gt :id))
+          (.add txs (lmdb/kv-tx :del-list c/giant-hashes (aget r 1) [gt]
+                                :long :id))
+          (.add txs (lmdb/kv-tx :del c/giants gt :id))))))
+
 (defn- insert-datom
   [^Store store ^Datom d ^FastList txs ^FastList ft-ds ^FastList vi-ds
-   ^FastList id-ds ^HashMap giants]
+   ^FastList id-ds ^HashMap giants dedup enc ^long k]
   (let [schema (schema store)
         opts   (opts store)
         attr   (.-a d)
@@ -1248,16 +1467,36 @@
         vt     (value-type props)
         aid    (props :db/aid)
         max-gt (max-gt store)
-        i      (b/indexable e aid v vt max-gt)
-        giant? (b/giant? i)]
-    (.add txs (lmdb/kv-tx :put c/ave i e :avg :id))
-    (.add txs (lmdb/kv-tx :put c/eav e i :id :avg))
+        i0     (encoded enc k aid)
+        i1     (if i0
+                 (if (b/giant? i0)
+                   (Indexable. e aid v (.-f i0) (.-b i0) max-gt)
+                   i0)
+                 (b/indexable e aid v vt max-gt))
+        giant? (b/giant? i1)
+        h      (when (and giant? (:dedup-giants? opts) (shareable? props vt))
+                 (value-hash v))
+        shared (when h (find-giant (.-lmdb store) dedup v h))
+        i      (if shared
+                 (Indexable. e aid v (.-f ^Indexable i1) (.-b ^Indexable i1)
+                             shared)
+                 i1)]
+    (if i0
+      (let [bs (raw-key enc k (when giant? (.-g ^Indexable i)))]
+        (add-encoded enc k (lmdb/kv-tx :put c/ave bs e :raw :id)
+                     (lmdb/kv-tx :put c/eav e bs :id :raw)))
+      (do (.add txs (lmdb/kv-tx :put c/ave i e :avg :id))
+          (.add txs (lmdb/kv-tx :put c/eav e i :id :avg))))
     (when giant?
-      (.advance-max-gt store)
       (let [gd [e attr v]]
-        (.put giants gd max-gt)
-        (.add txs (lmdb/kv-tx :put c/giants max-gt (apply d/datom gd)
-                              :id :data [:append]))))
+        (if shared
+          (do (.put giants gd shared)
+              (add-giant-ref dedup (.-lmdb store) shared v h 1))
+          (do (.advance-max-gt store)
+              (.put giants gd max-gt)
+              (.add txs (lmdb/kv-tx :put c/giants max-gt (apply d/datom gd)
+                                    :id :data [:append]))
+              (when h (new-shared-giant dedup txs max-gt v h))))))
     (when (identical? vt :db.type/vec)
       (.add vi-ds [(conjv (props :db.vec/domains) (v/attr-domain attr))
                    (if giant? [:g [max-gt v]] [:a [e aid v]])]))
@@ -1276,7 +1515,7 @@
 
 (defn- delete-datom
   [^Store store ^Datom d ^FastList txs ^FastList ft-ds ^FastList vi-ds
-   ^FastList id-ds ^HashMap giants]
+   ^FastList id-ds ^HashMap giants dedup enc ^long k]
   (let [schema (schema store)
         e      (.-e d)
         attr   (.-a d)
@@ -1285,7 +1524,8 @@
         props  (schema attr)
         vt     (value-type props)
         aid    (props :db/aid)
-        i      ^Indexable (b/indexable e aid v vt c/g0)
+        i0     (encoded enc k aid)
+        i      ^Indexable (or i0 (b/indexable e aid v vt c/g0))
         gt-cur (.get giants d-eav)
         gt     (when (b/giant? i)
                  (or gt-cur
@@ -1309,11 +1549,18 @@
                        [:r [gt v]]
                        [:d [e aid v]])])))
     (let [ii (Indexable. e aid v (.-f i) (.-b i) (or gt c/normal))]
-      (.add txs (lmdb/kv-tx :del-list c/ave ii [e] :avg :id))
-      (.add txs (lmdb/kv-tx :del-list c/eav e [ii] :id :avg))
+      (if i0
+        (let [bs (raw-key enc k gt)]
+          (add-encoded enc k (lmdb/kv-tx :del-list c/ave bs [e] :raw :id)
+                       (lmdb/kv-tx :del-list c/eav e [bs] :id :raw)))
+        (do (.add txs (lmdb/kv-tx :del-list c/ave ii [e] :avg :id))
+            (.add txs (lmdb/kv-tx :del-list c/eav e [ii] :id :avg))))
       (when gt
         (when gt-cur (.remove giants d-eav))
-        (.add txs (lmdb/kv-tx :del c/giants gt :id)))
+        ;; a shared giant goes when its last reference goes
+        (when-not (and (shareable? props vt)
+                       (add-giant-ref dedup (.-lmdb store) gt v nil -1))
+          (.add txs (lmdb/kv-tx :del c/giants gt :id))))
       (when (identical? vt :db.type/vec)
         (.add vi-ds [(conjv (props :db.vec/domains) (v/attr-domain attr))
                      (if gt [:r gt] [:d [e aid v]])])))))
@@ -1458,9 +1705,14 @@
   (open-list-dbi lmdb c/eav {:key-size c/+id-bytes+
                              :val-size c/+max-key-size+})
   (open-dbi lmdb c/giants {:key-size c/+id-bytes+})
+  (open-list-dbi lmdb c/giant-hashes {:key-size c/+id-bytes+
+                                      :val-size c/+id-bytes+})
+  (open-dbi lmdb c/giant-refs {:key-size c/+id-bytes+})
   (open-dbi lmdb c/meta {:key-size c/+max-key-size+})
   (open-dbi lmdb c/opts {:key-size c/+max-key-size+})
-  (open-dbi lmdb c/schema {:key-size c/+max-key-size+}))
+  (open-dbi lmdb c/schema {:key-size c/+max-key-size+})
+  (open-dbi lmdb c/side-queue {:key-size c/+id-bytes+})
+  (open-dbi lmdb c/side-failed {:key-size c/+id-bytes+}))
 
 (defn- default-search-domain
   [dms search-opts search-domains]
@@ -1592,21 +1844,27 @@
                                           schema vector-opts vector-domains)
            i-domains (init-idoc-domains schema)]
        (transact-opts lmdb opts2)
-       (->Store lmdb
-                (init-engines lmdb s-domains)
-                (init-indices lmdb v-domains)
-                (init-idoc-indices lmdb i-domains)
-                (ConcurrentHashMap.)
-                (load-opts lmdb)
-                schema
-                (schema->rschema schema)
-                (init-attrs schema)
-                (init-max-aid schema)
-                (init-max-gt lmdb)
-                (init-max-tx lmdb)
-                (volatile! nil)
-                (volatile! :storage-mutex)
-                (ReentrantReadWriteLock.))))))
+       (let [store (->Store lmdb
+                     (init-engines lmdb s-domains)
+                     (init-indices lmdb v-domains)
+                     (init-idoc-indices lmdb i-domains)
+                     (ConcurrentHashMap.)
+                     (load-opts lmdb)
+                     schema
+                     (schema->rschema schema)
+                     (init-attrs schema)
+                     (init-max-aid schema)
+                     (init-max-gt lmdb)
+                     (init-max-tx lmdb)
+                     (volatile! nil)
+                     (volatile! nil)
+                     (ConcurrentHashMap.)
+                     (volatile! :storage-mutex)
+                     (ReentrantReadWriteLock.))]
+         ;; left over from last time the store was open
+         (drain-side-queue store)
+         (when (:async-side-index? opts2) (start-side-indexing store))
+         store)))))
 
 (defn- transfer-engines
   [engines lmdb]
@@ -1637,5 +1895,174 @@
            (max-gt old)
            (max-tx old)
            (.-scheduled-sampling old)
+           (.-scheduled-indexing old)
+           (.-side-retries old)
            (.-write-txn old)
            (ReentrantReadWriteLock.)))
+
+;; asynchronous side indices
+
+;; With `:async-side-index?` option, the full-text, vector and idoc index
+;; updates of a transaction are queued in the same KV transaction, keyed by
+;; tx. A background task applies them in tx order, each batch in a KV
+;; transaction that also removes them from the queue.
+;;
+;; A failed batch stays queued and is applied again. The in-memory state of
+;; the search engines and idoc indices is reloaded from their DBIs first, as
+;; the rolled back transaction may have changed it. As native vector indices
+;; are changed outside of the KV transaction, vector adds get their vec-ids
+;; when queued, so that applying them again does not add them twice. After a
+;; failure, the rest of the queue is applied one tx at a time, and the ops of
+;; a tx that failed `*side-index-max-retries*` times are moved to the
+;; side-failed DBI, so that they do not block the queue.
+
+(defn- check-side-ops
+  "Throw if an op cannot be applied, before it is queued"
+  [vector-indices ft-ds vi-ds]
+  (doseq [[_ op] ft-ds
+          :when  (#{:a :g} (nth op 0))
+          :let   [text (peek (nth op 1))]]
+    (when-not (string? text)
+      (u/raise "Full-text indexed value must be a string" {:value text})))
+  (doseq [[domains op] vi-ds
+          :when        (#{:a :g} (nth op 0))
+          domain       domains]
+    (v/check-vec (vector-indices domain) (peek (nth op 1)))))
+
+(defn- side-ops
+  [vector-indices ft-ds vi-ds id-ds]
+  (check-side-ops vector-indices ft-ds vi-ds)
+  [(vec ft-ds)
+   (mapv (fn [[domains op :as res]]
+           (if (#{:a :g} (nth op 0))
+             [domains op (mapv #(v/reserve-vec-id (vector-indices %))
+                               domains)]
+             res))
+         vi-ds)
+   ;; keep the patch meta of idoc ops
+   (mapv (fn [[domain op :as res]]
+           (if-let [patch (:idoc/patch (meta op))]
+             [domain op patch]
+             res))
+         id-ds)])
+
+(defn- side-id-ds
+  [ops]
+  (map (fn [[domain op patch :as res]]
+         (if patch
+           [domain (with-meta op {:idoc/patch patch})]
+           res))
+       ops))
+
+(defn- apply-side-batch
+  "Apply up to `n` queued txs in one KV transaction, which also removes them
+  from the queue, return the number of txs applied"
+  [^Store store ^long n]
+  (lmdb/with-transaction-kv [kv (.-lmdb store)]
+    (let [ops (get-first-n kv c/side-queue n [:all] :long :data)]
+      (when (seq ops)
+        (let [engines (transfer-engines (.-search-engines store) kv)
+              indices (transfer-indices (.-vector-indices store) kv)
+              idocs   (transfer-idoc-indices (.-idoc-indices store) kv)]
+          (doseq [[_ [ft-ds vi-ds id-ops]] ops]
+            (fulltext-index engines ft-ds)
+            (vector-index indices vi-ds)
+            (idoc-index idocs (side-id-ds id-ops)))
+          (transact-kv kv (mapv (fn [[tx _]]
+                                  (lmdb/kv-tx :del c/side-queue tx :long))
+                                ops))))
+      (count ops))))
+
+(defn- reload-side-indices
+  [^Store store]
+  (doseq [engine (vals (.-search-engines store))] (s/reload engine))
+  (doseq [index (vals (.-idoc-indices store))] (idoc/reload index)))
+
+(defn- side-failure
+  "Handle the failure of the first queued tx: rethrow `e`, or move the tx to
+  the side-failed DBI when it failed too often, and return 1"
+  [^Store store e]
+  (let [lmdb                     (.-lmdb store)
+        ^ConcurrentHashMap tries (.-side-retries store)]
+    (if-let [[tx ops] (get-first lmdb c/side-queue [:all] :long :data)]
+      (let [n (inc ^long (.getOrDefault tries tx 0))]
+        (if (< n ^long c/*side-index-max-retries*)
+          (do (.put tries tx n) (throw e))
+          (do (transact-kv lmdb [(lmdb/kv-tx :put c/side-failed tx ops
+                                             :long :data)
+                                 (lmdb/kv-tx :del c/side-queue tx :long)])
+              (.remove tries tx)
+              (log/error e "Moved the side index updates of tx" tx
+                         "to" c/side-failed "after" n "failures")
+              1)))
+      (throw e))))
+
+(defn drain-side-queue
+  "Apply the queued side index updates, return the store"
+  [^Store store]
+  (let [lmdb (.-lmdb store)]
+    (loop [size (long c/*side-index-batch-size*)]
+      (when-not (closed-kv? lmdb)
+        (let [^ConcurrentHashMap tries (.-side-retries store)
+              n
+              (try
+                (let [n (apply-side-batch store size)]
+                  (when (and (pos? ^long n) (not (.isEmpty tries)))
+                    (.clear tries))
+                  n)
+                (catch Throwable e
+                  (locking (lmdb/write-txn lmdb)
+                    (reload-side-indices store)
+                    ;; -1 to go on one tx at a time
+                    (if (< 1 size) -1 (side-failure store e)))))]
+          (cond
+            (neg? ^long n)   (recur 1)
+            (= ^long n size) (recur size))))))
+  store)
+
+(defn- start-side-indexing
+  [^Store store]
+  (let [scheduled (.-scheduled-indexing store)]
+    (when-not @scheduled
+      (locking scheduled
+        (when-not @scheduled
+          (vreset! scheduled
+                   (.scheduleWithFixedDelay
+                     ^ScheduledExecutorService (u/get-scheduler)
+                     ;; failed updates stay queued, to be retried, or be
+                     ;; thrown by `await-side-indices`
+                     ^Runnable (let [retries (AtomicLong.)]
+                                 #(try (drain-side-queue store)
+                                       (.set retries 0)
+                                       (catch Throwable e
+                                         (log/warn
+                                           e "Failed to apply queued side"
+                                           "index updates, retry"
+                                           (.incrementAndGet retries)))))
+                     ^long c/*side-index-interval*
+                     ^long c/*side-index-interval*
+                     TimeUnit/MILLISECONDS)))))))
+
+(defn- stop-side-indexing
+  [^Store store]
+  (let [scheduled (.-scheduled-indexing store)]
+    (locking scheduled
+      (when-let [fut @scheduled]
+        ;; wait for a running batch
+        (locking (lmdb/write-txn (.-lmdb store))
+          (.cancel ^ScheduledFuture fut false))
+        (vreset! scheduled nil)))))
+
+(defn side-indexed-tx
+  "Return the tx up to which the side indices are updated"
+  [^Store store]
+  (if-let [[tx _] (get-first (.-lmdb store) c/side-queue [:all] :long :data)]
+    (dec ^long tx)
+    (max-tx store)))
+
+(defn await-side-indices
+  "Apply the queued side index updates in the calling thread, return the tx
+  up to which the side indices are updated"
+  [^Store store]
+  (drain-side-queue store)
+  (side-indexed-tx store))
@@ -97,7 +97,8 @@
       :pass-through)))
 
 (def ^:private boolean-opts
-  #{:validate-data? :auto-entity-time? :closed-schema? :background-sampling?})
+  #{:validate-data? :auto-entity-time? :closed-schema? :background-sampling?
+    :async-side-index? :dedup-giants? :table-rules?})
 
 (defn validate-option-mutation
   "Validate option key/value before commit."
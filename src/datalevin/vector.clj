@@ -18,17 +18,25 @@
    [datalevin.remote :as r]
    [datalevin.bits :as b]
    [datalevin.interface :as i]
+   [datalevin.scan :as scan]
    [clojure.string :as s]
    [taoensso.nippy :as nippy])
   (:import
    [datalevin.dtlvnative DTLV DTLV$usearch_index_t]
-   [datalevin.cpp VecIdx VecIdx$SearchResult VecIdx$IndexInfo]
+   [datalevin.cpp VecIdx VecIdx$SearchResult VecIdx$BatchSearchResult
+    VecIdx$IndexInfo]
    [datalevin.spill SpillableMap]
+   [java.util.function LongPredicate]
+   [org.eclipse.collections.impl.list.mutable.primitive LongArrayList]
+   [org.eclipse.collections.impl.set.mutable.primitive LongHashSet]
    [datalevin.async IAsyncWork]
    [datalevin.remote KVStore]
    [datalevin.interface IAdmin IVectorIndex]
    [java.io FileOutputStream FileInputStream DataOutputStream DataInputStream]
-   [java.util Map]
+   [java.nio.file Files Paths StandardCopyOption
+    AtomicMoveNotSupportedException]
+   [java.util Map Set]
+   [java.util.concurrent ConcurrentHashMap]
    [java.util.concurrent.atomic AtomicLong]
    [java.util.concurrent.locks ReentrantReadWriteLock]))
 
@@ -61,19 +69,34 @@
   [lmdb domain]
   (str (i/env-dir lmdb) u/+separator+ domain c/vector-index-suffix))
 
+(defn- create-index
+  ^DTLV$usearch_index_t
+  [dimensions metric-key quantization connectivity expansion-add
+   expansion-search]
+  (VecIdx/create ^long dimensions
+                 ^int (metric-key->type metric-key)
+                 ^int (scalar-kind quantization)
+                 ^long connectivity
+                 ^long expansion-add
+                 ^long expansion-search))
+
 (defn- init-index
   [^String fname dimensions metric-key quantization connectivity expansion-add
    expansion-search]
-  (let [^DTLV$usearch_index_t index (VecIdx/create
-                                      ^long dimensions
-                                      ^int (metric-key->type metric-key)
-                                      ^int (scalar-kind quantization)
-                                      ^long connectivity
-                                      ^long expansion-add
-                                      ^long expansion-search)]
+  (let [index (create-index dimensions metric-key quantization connectivity
+                            expansion-add expansion-search)]
     (when (u/file-exists fname) (VecIdx/load index fname))
     index))
 
+(defn- view-index
+  "memory-map the saved index read only, nil if it is not saved yet"
+  [^String fname dimensions metric-key quantization connectivity expansion-add
+   expansion-search]
+  (when (u/file-exists fname)
+    (doto (create-index dimensions metric-key quantization connectivity
+                        expansion-add expansion-search)
+      (VecIdx/view fname))))
+
 (defn- ->array
   [quantization vec-data]
   (case quantization
@@ -113,6 +136,31 @@
     :int8    (VecIdx/addInt8 index k ^bytes arr)
     :byte    (VecIdx/addByte index k ^bytes arr)))
 
+(defn- pack
+  "copy the vectors into one array, dimensions elements each, the same
+  layout as a single vector, including :byte ones"
+  [^long dimensions quantization vecs]
+  (let [n      (count vecs)
+        packed (->array quantization (* n dimensions))]
+    (loop [i 0 vecs (seq vecs)]
+      (when vecs
+        (System/arraycopy (vec->arr dimensions quantization (first vecs)) 0
+                          packed (* i dimensions) dimensions)
+        (recur (inc i) (next vecs))))
+    packed))
+
+(defn- add-batch
+  [index quantization ^long dimensions ^longs ks packed threads]
+  (let [d    (int dimensions)
+        t    (int threads)
+        pool (u/get-worker-thread-pool)]
+    (case quantization
+      :double  (VecIdx/addDoubles index ks ^doubles packed d t pool)
+      :float   (VecIdx/addFloats index ks ^floats packed d t pool)
+      :float16 (VecIdx/addShorts index ks ^shorts packed d t pool)
+      :int8    (VecIdx/addInt8s index ks ^bytes packed d t pool)
+      :byte    (VecIdx/addBytes index ks ^bytes packed d t pool))))
+
 (defn- search
   [index query quantization top]
   (case quantization
@@ -122,6 +170,22 @@
     :int8    (VecIdx/searchInt8 index query top)
     :byte    (VecIdx/searchByte index query top)))
 
+(defn- ref-ids
+  [lmdb vecs-dbi vec-refs]
+  (let [ids (LongArrayList.)]
+    (doseq [vec-ref vec-refs
+            id      (i/get-list lmdb vecs-dbi vec-ref :data :id)]
+      (.add ids ^long id))
+    (.toArray ids)))
+
+(defn- brute-force?
+  "Whether to compute the distances of the candidates exhaustively rather
+  than search the graph with a filter, by the selectivity of the candidates"
+  [^long n-candidates ^long size]
+  (or (<= n-candidates ^long c/*vector-brute-force-max*)
+      (< (/ (double n-candidates) (max size 1))
+         ^double c/*vector-brute-force-ratio*)))
+
 (defn- get-vec*
   [index id quantization dimensions]
   (case quantization
@@ -131,13 +195,176 @@
     :int8    (VecIdx/getInt8 index id (int dimensions))
     :byte    (VecIdx/getByte index id (int dimensions))))
 
+(defn- get-arr
+  "get the vector from the index, or from the viewed base index"
+  [index view id quantization dimensions]
+  (or (get-vec* index id quantization dimensions)
+      (when-let [base (when view @(:base view))]
+        (when-not (.contains ^Set (:removed view) id)
+          (get-vec* base id quantization dimensions)))))
+
+(defmacro ^:private in-view
+  "run body holding the read lock of the view, if any, so the viewed base
+  index is not swapped underneath"
+  [view & body]
+  `(if-let [view# ~view]
+     (let [rlock# (.readLock ^ReentrantReadWriteLock (:lock view#))]
+       (.lock rlock#)
+       (try ~@body (finally (.unlock rlock#))))
+     (do ~@body)))
+
+(defn- user-pred
+  "the user supplied vec-ref filter, nil if it allows all"
+  [vec-filter]
+  (when-not (or (nil? vec-filter)
+                (identical? vec-filter (:vec-filter default-search-opts)))
+    vec-filter))
+
+(defn- allow-fn
+  "predicate of vec-id, nil if all are allowed"
+  [^SpillableMap vecs pred ^LongHashSet allowed]
+  (when (or pred allowed)
+    (fn [^long id]
+      (and (or (nil? allowed) (.contains allowed id))
+           (when-let [vec-ref (.get vecs id)]
+             (or (nil? pred) (pred vec-ref)))))))
+
+(defn- base-allow
+  "predicate of vec-id for the viewed base index, which excludes the removed"
+  [{:keys [^Set removed]} allow]
+  (if (.isEmpty removed)
+    allow
+    (fn [id]
+      (and (not (.contains removed id))
+           (or (nil? allow) (allow id))))))
+
+(defn- search-index
+  "search one index, `allow` is nil or a predicate of vec-id, `ids` are the
+  candidate vec-ids to compute distances exhaustively when `exact?`"
+  [index query quantization metric-type dimensions top allow ids exact?]
+  (let [kind (scalar-kind quantization)]
+    (cond
+      exact?
+      (VecIdx/searchExact index query kind (metric-key->type metric-type)
+                          (int dimensions)
+                          (if allow (long-array (filter allow ids)) ids)
+                          top)
+      allow
+      (VecIdx/searchFiltered index query kind top
+                             (reify LongPredicate
+                               (test [_ id] (boolean (allow id)))))
+      :else
+      (search index query quantization top))))
+
+(defn- check-rerank
+  "full precision vectors are only kept by an index created with :rerank?,
+  so an index with vectors or logged changes cannot be reopened with
+  another :rerank?"
+  [lmdb vecs-dbi wal-dbi floats-name kept? rerank?]
+  (when-not (= kept? (boolean rerank?))
+    (if (and (zero? ^long (i/entries lmdb vecs-dbi))
+             (zero? ^long (i/entries lmdb wal-dbi)))
+      (when kept? (i/drop-dbi lmdb floats-name))
+      (raise "Vector index is created with :rerank? " kept?
+             ", but is opened with :rerank? " (boolean rerank?)
+             {:rerank? rerank?}))))
+
 (defn- open-dbi
-  [lmdb vecs-dbi]
+  [lmdb vecs-dbi wal-dbi floats-name rerank?]
   (assert (not (i/closed-kv? lmdb)) "LMDB env is closed.")
 
   ;; vec-ref -> vec-ids
   (i/open-list-dbi lmdb vecs-dbi {:key-size c/+max-key-size+
-                                  :val-size c/+id-bytes+}))
+                                  :val-size c/+id-bytes+})
+
+  ;; lsn -> [vec-id vec-arr], vec-arr is nil for removal
+  (i/open-dbi lmdb wal-dbi {:key-size c/+id-bytes+})
+
+  (check-rerank lmdb vecs-dbi wal-dbi floats-name
+                (boolean (some #{floats-name} (i/list-dbis lmdb))) rerank?)
+
+  ;; vec-id -> full precision vector, only kept for re-ranking
+  (when rerank? (i/open-dbi lmdb floats-name {:key-size c/+id-bytes+})))
+
+(defn- apply-change
+  "apply a logged change to an index, `arr` is nil for removal"
+  [index quantization ^long vec-id arr]
+  (if arr
+    (when-not (VecIdx/contains index vec-id)
+      (add index quantization vec-id arr))
+    (VecIdx/remove index vec-id)))
+
+(defn- apply-view-change
+  "apply a logged change to the delta index of a view, as the viewed base
+  index is read only, its removed vectors are remembered instead"
+  [index {:keys [base ^Set removed]} quantization ^long vec-id arr]
+  (let [base @base]
+    (if arr
+      (when-not (or (VecIdx/contains index vec-id)
+                    (and base (VecIdx/contains base vec-id)))
+        (add index quantization vec-id arr))
+      (cond
+        (VecIdx/contains index vec-id)        (VecIdx/remove index vec-id)
+        (and base (VecIdx/contains base vec-id)) (.add removed vec-id)))))
+
+(defn- replay-wal
+  "call `f` with vec-id and vec-arr of the log entries not yet in the saved
+  index, return [max-lsn size]"
+  [lmdb wal-dbi f]
+  (let [lsn  (volatile! 0)
+        size (volatile! 0)
+        load (fn [kv]
+               (let [[vec-id arr] (b/read-buffer (l/v kv) :data)]
+                 (vreset! lsn (b/read-buffer (l/k kv) :id))
+                 (vswap! size u/long-inc)
+                 (f vec-id arr)))]
+    (i/visit lmdb wal-dbi load [:all] :id)
+    [@lsn @size]))
+
+(defn- truncate-wal
+  [lmdb wal-dbi ^AtomicLong wal-size lsn]
+  (let [ks (i/key-range lmdb wal-dbi [:at-most lsn] :id)]
+    (i/transact-kv lmdb (mapv #(l/kv-tx :del wal-dbi % :id) ks))
+    (.addAndGet wal-size (- (count ks)))))
+
+(defn- wal-txs
+  "log entries of the vector changes, `arrs` are nil for removals"
+  [wal-dbi ^AtomicLong wal-lsn ^AtomicLong wal-size ids arrs]
+  (mapv (fn [vec-id arr]
+          (.incrementAndGet wal-size)
+          (l/kv-tx :put wal-dbi (.incrementAndGet wal-lsn) [vec-id arr]
+                   :id :data))
+        ids arrs))
+
+(defn- floats-txs
+  "keep the full precision vectors, `arrs` are nil for removals"
+  [floats-dbi ids arrs]
+  (when floats-dbi
+    (mapv (fn [vec-id arr]
+            (if arr
+              (l/kv-tx :put floats-dbi vec-id (VecIdx/floatBytes arr)
+                       :id :bytes)
+              (l/kv-tx :del floats-dbi vec-id :id)))
+          ids arrs)))
+
+(defn- get-floats
+  [lmdb floats-dbi vec-id]
+  (when-let [bs (i/get-value lmdb floats-dbi vec-id :id :bytes)]
+    (VecIdx/bytesFloats bs)))
+
+(def ^:private bytes-class (Class/forName "[B"))
+
+(defn- rerank
+  "re-rank the candidates found in the quantized index by the exact
+  distances of their full precision vectors"
+  [lmdb floats-dbi metric-type query top ^VecIdx$SearchResult res]
+  (let [ks (.getKeys res)]
+    (VecIdx/rerank ^floats query ks
+                   ^"[[B" (into-array bytes-class
+                                      (scan/get-values lmdb floats-dbi ks :id
+                                                       :bytes))
+                   (metric-key->type metric-type)
+                   (int top))))
 
 (defn- init-vecs
   [lmdb vecs-dbi]
@@ -174,7 +401,30 @@
   (combine [_] first)
   (callback [_] nil))
 
-(declare display-xf new-vector-index)
+(def ^:private re-index-batch-size 4096)
+
+(defn- save-index
+  "save to a temporary file first, so a crash does not leave a broken file"
+  [index ^String fname]
+  (let [tmp    (str fname ".tmp")
+        source (Paths/get tmp (make-array String 0))
+        target (Paths/get fname (make-array String 0))]
+    (VecIdx/save index tmp)
+    (try
+      (Files/move source target
+                  (into-array StandardCopyOption
+                              [StandardCopyOption/ATOMIC_MOVE]))
+      (catch AtomicMoveNotSupportedException _
+        (Files/move source target
+                    (into-array StandardCopyOption
+                                [StandardCopyOption/REPLACE_EXISTING]))))))
+
+(defn- snapshot-when-due
+  [vec-index fname vec-lock ^AtomicLong wal-size]
+  (when (<= ^long c/*vector-wal-snapshot-size* (.get wal-size))
+    (a/exec (a/get-executor) (AsyncVecSave. vec-index fname vec-lock))))
+
+(declare display-result new-vector-index merge-view add-vec-at)
 
 (deftype VectorIndex [lmdb
                       closed?
@@ -183,39 +433,82 @@
                       ^long dimensions
                       ^clojure.lang.Keyword metric-type
                       ^clojure.lang.Keyword quantization
+                      ^clojure.lang.Keyword vec-kind ; of vectors in and out
                       ^long connectivity
                       ^long expansion-add
                       ^long expansion-search
                       ^String vecs-dbi
+                      ^String wal-dbi
+                      ^String floats-dbi     ; nil if not :rerank?
                       ^SpillableMap vecs     ; vec-id -> vec-ref
                       ^AtomicLong max-vec
+                      ^AtomicLong wal-lsn    ; last log sequence number
+                      ^AtomicLong wal-size   ; number of log entries
                       ^Map search-opts
+                      view                   ; nil if not :view?
                       ^ReentrantReadWriteLock vec-lock]
   IVectorIndex
   (add-vec [this vec-ref vec-data]
-    (let [vec-id  (.incrementAndGet max-vec)
-          vec-arr (vec->arr dimensions quantization vec-data)]
-      (add index quantization vec-id vec-arr)
-      (a/exec (a/get-executor) (AsyncVecSave. this fname vec-lock))
-      (.put vecs vec-id vec-ref)
-      (i/transact-kv
-        lmdb [(l/kv-tx :put vecs-dbi vec-ref vec-id :data :id)])
-      vec-id))
+    (add-vec-at this vec-ref vec-data (.incrementAndGet max-vec)))
+
+  (add-vecs [this vec-pairs]
+    (.add-vecs this vec-pairs {}))
+  (add-vecs [this vec-pairs {:keys [threads]
+                             :or   {threads c/*vector-add-threads*}}]
+    (let [n (count vec-pairs)]
+      (if (zero? n)
+        []
+        (let [arrs   (mapv #(vec->arr dimensions vec-kind (second %))
+                             vec-pairs)
+              packed (pack dimensions vec-kind arrs)
+              start  (inc (.getAndAdd max-vec n))
+              ids    (long-array (range start (+ start n)))]
+          (in-view view
+            (add-batch index vec-kind dimensions ids packed threads))
+          (i/transact-kv
+            lmdb (into (into (wal-txs wal-dbi wal-lsn wal-size ids arrs)
+                             (floats-txs floats-dbi ids arrs))
+                       (map (fn [[vec-ref _] ^long vec-id]
+                              (.put vecs vec-id vec-ref)
+                              (l/kv-tx :put vecs-dbi vec-ref vec-id :data :id))
+                            vec-pairs ids)))
+          (snapshot-when-due this fname vec-lock wal-size)
+          (vec ids)))))
 
   (get-vec [_ vec-ref]
     (let [ids (i/get-list lmdb vecs-dbi vec-ref :data :id)]
-      (for [^long id ids]
-        (get-vec* index id quantization dimensions))))
+      (if floats-dbi
+        (mapv #(get-floats lmdb floats-dbi %) ids)
+        (in-view view
+          (mapv #(get-arr index view % vec-kind dimensions) ids)))))
 
   (remove-vec [this vec-ref]
     (let [ids (i/get-list lmdb vecs-dbi vec-ref :data :id)]
-      (doseq [^long id ids]
-        (VecIdx/remove index id)
-        (.remove vecs id))
-      (a/exec (a/get-executor) (AsyncVecSave. this fname vec-lock))
-      (i/transact-kv lmdb [(l/kv-tx :del vecs-dbi vec-ref)])))
-
-  (persist-vecs [_] (when-not @closed? (VecIdx/save index fname)))
+      (in-view view
+        (doseq [^long id ids]
+          (if view
+            (apply-view-change index view vec-kind id nil)
+            (VecIdx/remove index id))
+          (.remove vecs id)))
+      (i/transact-kv
+        lmdb (-> (wal-txs wal-dbi wal-lsn wal-size ids (repeat nil))
+                 (into (floats-txs floats-dbi ids (repeat nil)))
+                 (conj (l/kv-tx :del vecs-dbi vec-ref))))
+      (snapshot-when-due this fname vec-lock wal-size)))
+
+  (persist-vecs [this]
+    (when-not @closed?
+      ;; changes up to lsn are already applied to the index, so they are
+      ;; in the snapshot and their log entries can go
+      (if view
+        ;; one writer at a time rewrites the snapshot of a view
+        (locking (:merge-lock view)
+          (let [lsn (.get wal-lsn)]
+            (when (merge-view this lsn)
+              (truncate-wal lmdb wal-dbi wal-size lsn))))
+        (let [lsn (.get wal-lsn)]
+          (save-index index fname)
+          (truncate-wal lmdb wal-dbi wal-size lsn)))))
 
   (close-vecs [this]
     (let [wlock (.writeLock vec-lock)]
@@ -225,7 +518,9 @@
           (.persist_vecs this)
           (vreset! closed? true)
           (swap! l/vector-indices dissoc fname)
-          (VecIdx/free index))
+          (VecIdx/free index)
+          (when-let [base (when view @(:base view))]
+            (VecIdx/free base)))
         (finally
           (.unlock wlock)))))
 
@@ -235,14 +530,25 @@
     (.close-vecs this)
     (.empty vecs)
     (i/clear-dbi lmdb vecs-dbi)
+    (i/clear-dbi lmdb wal-dbi)
+    (when floats-dbi (i/clear-dbi lmdb floats-dbi))
     (u/delete-files fname))
 
   (vecs-info [_]
-    (let [^VecIdx$IndexInfo info (VecIdx/info index)]
-      {:size             (.getSize info)
-       :memory           (.getMemory info)
-       :capacity         (.getCapacity info)
+    (let [^VecIdx$IndexInfo info (VecIdx/info index)
+          ^VecIdx$IndexInfo base (in-view view
+                                   (when-let [b (when view @(:base view))]
+                                     (VecIdx/info b)))]
+      {:size             (cond-> (.getSize info)
+                           base (+ (.getSize base)
+                                   (- (.size ^Set (:removed view)))))
+       :memory           (cond-> (.getMemory info)
+                           base (+ (.getMemory base)))
+       :capacity         (cond-> (.getCapacity info)
+                           base (+ (.getCapacity base)))
        :hardware         (.getHardware info)
+       :view?            (some? view)
+       :rerank?          (some? floats-dbi)
        :filename         fname
        :dimensions       dimensions
        :metric-type      metric-type
@@ -255,15 +561,76 @@
 
   (search-vec [this query-vec]
     (.search-vec this query-vec {}))
-  (search-vec [this query-vec {:keys [display top vec-filter]
+  (search-vec [this query-vec {:keys [display top vec-filter vec-refs
+                                      oversample]
                                :or   {display    (:display search-opts)
                                       top        (:top search-opts)
-                                      vec-filter (:vec-filter search-opts)}}]
-    (let [query                    (vec->arr dimensions quantization query-vec)
-          ^VecIdx$SearchResult res (search index query quantization (int top))]
-      (doall (sequence
-               (display-xf this vec-filter display)
-               (.getKeys res) (.getDists res)))))
+                                      vec-filter (:vec-filter search-opts)
+                                      oversample c/*vector-rerank-oversample*}}]
+    (let [query   (vec->arr dimensions vec-kind query-vec)
+          top     (int top)
+          fetch   (if floats-dbi (int (* top ^long oversample)) top)
+          ^longs ids (when vec-refs (ref-ids lmdb vecs-dbi vec-refs))
+          exact?  (and ids (brute-force? (alength ids) (.size vecs)))
+          allow   (allow-fn vecs (user-pred vec-filter)
+                            (when (and ids (not exact?)) (LongHashSet. ids)))
+          ^VecIdx$SearchResult res
+          (in-view view
+            (let [res (search-index index query vec-kind metric-type
+                                    dimensions fetch allow ids exact?)]
+              (if-let [base (when view @(:base view))]
+                (VecIdx/merge res (search-index base query vec-kind
+                                                metric-type dimensions fetch
+                                                (base-allow view allow)
+                                                ids exact?)
+                              fetch)
+                res)))]
+      (display-result this display
+                      (if floats-dbi
+                        (rerank lmdb floats-dbi metric-type query top res)
+                        res))))
+
+  (search-vecs [this query-vecs]
+    (.search-vecs this query-vecs {}))
+  (search-vecs [this query-vecs {:keys [display top vec-filter vec-refs threads
+                                        oversample]
+                                 :or   {display    (:display search-opts)
+                                        top        (:top search-opts)
+                                        vec-filter (:vec-filter search-opts)
+                                        threads    c/*vector-search-threads*
+                                        oversample c/*vector-rerank-oversample*}}]
+    (let [queries (pack dimensions vec-kind query-vecs)
+          top     (int top)
+          fetch   (if floats-dbi (int (* top ^long oversample)) top)
+          allow   (allow-fn vecs (user-pred vec-filter)
+                            (when vec-refs
+                              (LongHashSet. ^longs (ref-ids lmdb vecs-dbi
+                                                            vec-refs))))
+          batch   (fn [idx allow]
+                    (VecIdx/searchBatch idx queries (scalar-kind vec-kind)
+                                        (int dimensions) fetch (int threads)
+                                        (u/get-worker-thread-pool)
+                                        (when allow
+                                          (reify LongPredicate
+                                            (test [_ id]
+                                              (boolean (allow id)))))))]
+      (in-view view
+        (let [^VecIdx$BatchSearchResult res  (batch index allow)
+              ^VecIdx$BatchSearchResult bres (when-let [base
+                                                        (when view
+                                                          @(:base view))]
+                                               (batch base
+                                                      (base-allow view allow)))]
+          (mapv (fn [^long i]
+                  (display-result
+                    this display
+                    (cond->> (cond-> (.get res i)
+                               bres (VecIdx/merge (.get bres i) fetch))
+                      floats-dbi (rerank lmdb floats-dbi metric-type
+                                         (vec->arr dimensions vec-kind
+                                                   (nth query-vecs i))
+                                         top))))
+                (range (.size res)))))))
 
   IAdmin
   (re-index [this opts]
@@ -272,29 +639,118 @@
             dos    (DataOutputStream. (FileOutputStream. ^String dfname))]
         (nippy/freeze-to-out!
           dos (for [[vec-id vec-ref] vecs]
-                [vec-ref (get-vec* index vec-id quantization dimensions)]))
+                [vec-ref (if floats-dbi
+                           (get-floats lmdb floats-dbi vec-id)
+                           (get-arr index view vec-id vec-kind dimensions))]))
         (.flush dos)
         (.close dos)
         (.clear-vecs this)
         (let [new (new-vector-index lmdb opts)
               dis (DataInputStream. (FileInputStream. ^String dfname))]
-          (doseq [[vec-ref vec-data] (nippy/thaw-from-in! dis)]
-            (i/add-vec new vec-ref vec-data))
+          (doseq [batch (partition-all re-index-batch-size
+                                       (nippy/thaw-from-in! dis))]
+            (i/add-vecs new (vec batch)))
           (.close dis)
           (u/delete-files dfname)
           new))
       (catch Exception e
         (u/raise "Unable to re-index vectors. " e {:dir (i/env-dir lmdb)})))))
 
+(defn- merge-view
+  "A viewed index cannot be changed, so write a new snapshot by loading the
+  saved index and applying the logged changes up to `lsn`, then view the
+  new snapshot and drop these changes from the delta index. Return nil
+  if there is no change to merge"
+  [^VectorIndex this lsn]
+  (let [lmdb         (.-lmdb this)
+        fname        (.-fname this)
+        quantization (.-quantization this)
+        vec-kind     (.-vec-kind this)
+        index        (.-index this)
+        {:keys [base ^Set removed lock]} (.-view this)
+        opts         [(.-dimensions this) (.-metric-type this) quantization
+                      (.-connectivity this) (.-expansion-add this)
+                      (.-expansion-search this)]
+        changes      (i/get-range lmdb (.-wal-dbi this) [:at-most lsn]
+                                  :id :data true)]
+    (when (seq changes)
+      (let [full (apply init-index fname opts)]
+        (doseq [[vec-id arr] changes]
+          (apply-change full vec-kind vec-id arr))
+        (save-index full fname)
+        (VecIdx/free full))
+      (let [new-base (apply view-index fname opts)
+            wlock    (.writeLock ^ReentrantReadWriteLock lock)]
+        (.lock wlock)
+        (try
+          (let [old @base]
+            (doseq [[^long vec-id arr] changes]
+              (if arr
+                (cond
+                  (VecIdx/contains index vec-id)
+                  (VecIdx/remove index vec-id)
+
+                  ;; the delta index skips adds the old base has, so an id
+                  ;; in neither left the delta index by a removal after
+                  ;; lsn, which the new snapshot does not have yet
+                  (and (not (and old (VecIdx/contains old vec-id)))
+                       (VecIdx/contains new-base vec-id))
+                  (.add removed vec-id))
+                (.remove removed vec-id)))
+            (when old (VecIdx/free old))
+            (vreset! base new-base))
+          (finally (.unlock wlock))))
+      true)))
+
+(defn check-vec
+  "Throw if `vec-data` does not fit the index"
+  [^VectorIndex this vec-data]
+  (vec->arr (.-dimensions this) (.-vec-kind this) vec-data)
+  nil)
+
+(defn reserve-vec-id
+  "Reserve a vec-id for a later `add-vec-at`"
+  ^long [^VectorIndex this]
+  (.incrementAndGet ^AtomicLong (.-max-vec this)))
+
+(defn add-vec-at
+  "Add a vector with the given vec-id, return the vec-id. The native index
+  is changed outside of the KV transaction, so adding a vec-id it already
+  has, e.g. again after the KV transaction failed, only redoes the KV part"
+  [^VectorIndex this vec-ref vec-data ^long vec-id]
+  (let [^AtomicLong max-vec (.-max-vec this)
+        index               (.-index this)
+        vec-kind            (.-vec-kind this)
+        view                (.-view this)
+        wal-dbi             (.-wal-dbi this)
+        wal-size            (.-wal-size this)
+        floats-dbi          (.-floats-dbi this)
+        vec-arr             (vec->arr (.-dimensions this) vec-kind vec-data)]
+    (loop []
+      (let [m (.get max-vec)]
+        (when (and (< m vec-id) (not (.compareAndSet max-vec m vec-id)))
+          (recur))))
+    (in-view view
+      (when-not (VecIdx/contains index vec-id)
+        (add index vec-kind vec-id vec-arr)))
+    (.put ^SpillableMap (.-vecs this) vec-id vec-ref)
+    (i/transact-kv
+      (.-lmdb this)
+      (-> (wal-txs wal-dbi (.-wal-lsn this) wal-size [vec-id] [vec-arr])
+          (into (floats-txs floats-dbi [vec-id] [vec-arr]))
+          (conj (l/kv-tx :put (.-vecs-dbi this) vec-ref vec-id :data :id))))
+    (snapshot-when-due this (.-fname this) (.-vec-lock this) wal-size)
+    vec-id))
+
 (defn- get-ref
   [^VectorIndex index vec-filter vec-id _]
   (when-let [vec-ref ((.-vecs index) vec-id)]
-    (when (vec-filter vec-ref) vec-ref)))
+    (when (or (nil? vec-filter) (vec-filter vec-ref)) vec-ref)))
 
 (defn- get-ref-dist
   [^VectorIndex index vec-filter vec-id dist]
   (when-let [vec-ref ((.-vecs index) vec-id)]
-    (when (vec-filter vec-ref) [vec-ref dist])))
+    (when (or (nil? vec-filter) (vec-filter vec-ref)) [vec-ref dist])))
 
 (defn- display-xf
   [index vec-filter display]
@@ -304,31 +760,65 @@
     :refs+dists (comp (map #(get-ref-dist index vec-filter %1 %2))
                    (remove nil?))))
 
+(defn- display-result
+  [index display ^VecIdx$SearchResult res]
+  (doall (sequence (display-xf index nil display)
+                   (.getKeys res) (.getDists res))))
+
 (def default-opts {:metric-type      c/default-metric-type
                    :quantization     c/default-quantization
                    :connectivity     c/default-connectivity
                    :expansion-add    c/default-expansion-add
                    :expansion-search c/default-expansion-search
+                   :view?            false
+                   :rerank?          false
                    :search-opts      default-search-opts})
 
 (defn new-vector-index*
   [lmdb {:keys [domain metric-type quantization dimensions connectivity
-                expansion-add expansion-search search-opts]
+                expansion-add expansion-search search-opts view? rerank?]
          :or   {metric-type      (default-opts :metric-type)
                 quantization     (default-opts :quantization)
                 connectivity     (default-opts :connectivity)
                 expansion-add    (default-opts :expansion-add)
                 expansion-search (default-opts :expansion-search)
                 search-opts      (default-opts :search-opts)
+                view?            (default-opts :view?)
+                rerank?          (default-opts :rerank?)
                 domain           c/default-domain}}]
   (assert dimensions ":dimensions is required")
-  (let [vecs-dbi (str domain "/" c/vec-refs)]
-    (open-dbi lmdb vecs-dbi)
+  (let [vecs-dbi    (str domain "/" c/vec-refs)
+        wal-dbi     (str domain "/" c/vec-wal)
+        floats-name (str domain "/" c/vec-floats)
+        floats-dbi  (when rerank? floats-name)
+        ;; full precision vectors are given as floats, and usearch
+        ;; quantizes them when adding to the index
+        vec-kind    (if rerank? :float quantization)]
+    (open-dbi lmdb vecs-dbi wal-dbi floats-name rerank?)
     (let [[max-vec-id vecs] (init-vecs lmdb vecs-dbi)
           fname             (index-fname lmdb domain)
-          index             (init-index fname dimensions metric-type
-                                        quantization connectivity
-                                        expansion-add expansion-search)]
+          index             (if view?
+                              (create-index dimensions metric-type
+                                            quantization connectivity
+                                            expansion-add expansion-search)
+                              (init-index fname dimensions metric-type
+                                          quantization connectivity
+                                          expansion-add expansion-search))
+          view              (when view?
+                              {:base       (volatile!
+                                             (view-index
+                                               fname dimensions metric-type
+                                               quantization connectivity
+                                               expansion-add expansion-search))
+                               :removed    (ConcurrentHashMap/newKeySet)
+                               :merge-lock (Object.)
+                               :lock       (ReentrantReadWriteLock.)})
+          [lsn wal-size]    (replay-wal
+                              lmdb wal-dbi
+                              (if view
+                                #(apply-view-change index view vec-kind
+                                                    %1 %2)
+                                #(apply-change index vec-kind %1 %2)))]
       (swap! l/vector-indices assoc fname index)
       (->VectorIndex lmdb
                      (volatile! false)
@@ -337,13 +827,19 @@
                      dimensions
                      metric-type
                      quantization
+                     vec-kind
                      connectivity
                      expansion-add
                      expansion-search
                      vecs-dbi
+                     wal-dbi
+                     floats-dbi
                      vecs
                      (AtomicLong. max-vec-id)
+                     (AtomicLong. lsn)
+                     (AtomicLong. wal-size)
                      search-opts
+                     view
                      (ReentrantReadWriteLock.)))))
 
 (defn new-vector-index
@@ -361,13 +857,19 @@
                  (.-dimensions old)
                  (.-metric-type old)
                  (.-quantization old)
+                 (.-vec-kind old)
                  (.-connectivity old)
                  (.-expansion-add old)
                  (.-expansion-search old)
                  (.-vecs-dbi old)
+                 (.-wal-dbi old)
+                 (.-floats-dbi old)
                  (.-vecs old)
                  (.-max-vec old)
+                 (.-wal-lsn old)
+                 (.-wal-size old)
                  (.-search-opts old)
+                 (.-view old)
                  (ReentrantReadWriteLock.)))
 
 (defn attr-domain [attr] (s/replace (u/keyword->string attr) "/" "_"))
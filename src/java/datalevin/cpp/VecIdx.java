@@ -3,6 +3,15 @@ package datalevin.cpp;
 import org.bytedeco.javacpp.*;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.LongPredicate;
 
 import datalevin.dtlvnative.DTLV;
 
@@ -65,6 +74,17 @@ public class VecIdx {
         expectNoError(error, "Fail to free index");
     }
 
+    /**
+     * Memory-map a saved index file instead of loading it. The index is then
+     * read only, and the file pages are shared among processes.
+     */
+    public static void view(DTLV.usearch_index_t index, String fname) {
+        PointerPointer<BytePointer> error = new PointerPointer<>(1);
+        error.put(0, (BytePointer) null);
+        DTLV.usearch_view(index, fname, error);
+        expectNoError(error, "Fail to view index");
+    }
+
     public static void save(DTLV.usearch_index_t index, String fname) {
         PointerPointer<BytePointer> error = new PointerPointer<>(1);
         error.put(0, (BytePointer) null);
@@ -148,6 +168,139 @@ public class VecIdx {
         expectNoError(error, "Fail to add vector");
     }
 
+    /**
+     * Make sure the index has capacity for n more vectors
+     */
+    public static void reserve(DTLV.usearch_index_t index, long n) {
+        PointerPointer<BytePointer> error = new PointerPointer<>(1);
+
+        error.put(0, (BytePointer) null);
+        long size = DTLV.usearch_size(index, error);
+        expectNoError(error, "Fail to get index size");
+
+        error.put(0, (BytePointer) null);
+        long capacity = DTLV.usearch_capacity(index, error);
+        expectNoError(error, "Fail to get index capacity");
+
+        if (size + n > capacity) {
+            error.put(0, (BytePointer) null);
+            DTLV.usearch_reserve(index, size + n, error);
+            expectNoError(error, "Fail to reserve capacity");
+        }
+    }
+
+    /**
+     * Add vectors packed in a single native buffer, each taking vecBytes
+     * bytes, in the given number of tasks run by the pool, as usearch
+     * supports concurrent insertions once the capacity is reserved.
+     */
+    static void addBatch(final DTLV.usearch_index_t index, final long[] keys,
+            final Pointer vecs, final long vecBytes, final int scalarKind,
+            int threads, ExecutorService pool) {
+
+        final int n = keys.length;
+        if (n == 0) {
+            vecs.close();
+            return;
+        }
+
+        try {
+            reserve(index, n);
+
+            threads = Math.max(1, Math.min(threads, n));
+            final int chunk = (n + threads - 1) / threads;
+
+            List<Future<?>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int start = t * chunk;
+                final int end = Math.min(n, start + chunk);
+                if (start >= end) break;
+                futures.add(pool.submit(() -> {
+                    PointerPointer<BytePointer> error = new PointerPointer<>(1);
+                    Pointer vecPtr = new Pointer(vecs);
+                    for (int i = start; i < end; i++) {
+                        vecPtr.position(i * vecBytes);
+                        error.put(0, (BytePointer) null);
+                        DTLV.usearch_add(index, keys[i], vecPtr, scalarKind,
+                                         error);
+                        expectNoError(error, "Fail to add vector");
+                    }
+                }));
+            }
+            await(futures);
+        } finally {
+            vecs.close();
+        }
+    }
+
+    /**
+     * Wait for all the tasks, as they use native buffers freed afterwards,
+     * then rethrow the first failure
+     */
+    static void await(List<Future<?>> futures) {
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        for (Future<?> f : futures) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (java.util.concurrent.ExecutionException e) {
+                    if (failure == null) {
+                        Throwable cause = e.getCause();
+                        failure = cause instanceof RuntimeException
+                            ? (RuntimeException) cause
+                            : new RuntimeException(cause);
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (failure == null) failure = new RuntimeException(e);
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure != null) throw failure;
+    }
+
+    public static void addDoubles(DTLV.usearch_index_t index, long[] keys,
+            double[] vectors, int dimensions, int threads,
+            ExecutorService pool) {
+        addBatch(index, keys, new DoublePointer(vectors),
+                 (long) dimensions * Double.BYTES, DTLV.usearch_scalar_f64_k,
+                 threads, pool);
+    }
+
+    public static void addFloats(DTLV.usearch_index_t index, long[] keys,
+            float[] vectors, int dimensions, int threads,
+            ExecutorService pool) {
+        addBatch(index, keys, new FloatPointer(vectors),
+                 (long) dimensions * Float.BYTES, DTLV.usearch_scalar_f32_k,
+                 threads, pool);
+    }
+
+    public static void addShorts(DTLV.usearch_index_t index, long[] keys,
+            short[] vectors, int dimensions, int threads,
+            ExecutorService pool) {
+        addBatch(index, keys, new ShortPointer(vectors),
+                 (long) dimensions * Short.BYTES, DTLV.usearch_scalar_f16_k,
+                 threads, pool);
+    }
+
+    public static void addInt8s(DTLV.usearch_index_t index, long[] keys,
+            byte[] vectors, int dimensions, int threads,
+            ExecutorService pool) {
+        addBatch(index, keys, new BytePointer(vectors), dimensions,
+                 DTLV.usearch_scalar_i8_k, threads, pool);
+    }
+
+    public static void addBytes(DTLV.usearch_index_t index, long[] keys,
+            byte[] vectors, int dimensions, int threads,
+            ExecutorService pool) {
+        addBatch(index, keys, new BytePointer(vectors), dimensions,
+                 DTLV.usearch_scalar_b1_k, threads, pool);
+    }
+
     public static void remove(DTLV.usearch_index_t index, long key) {
         PointerPointer<BytePointer> error = new PointerPointer<>(1);
         error.put(0, (BytePointer) null);
@@ -155,6 +308,14 @@ public class VecIdx {
         expectNoError(error, "Fail to add vector");
     }
 
+    public static boolean contains(DTLV.usearch_index_t index, long key) {
+        PointerPointer<BytePointer> error = new PointerPointer<>(1);
+        error.put(0, (BytePointer) null);
+        boolean found = DTLV.usearch_contains(index, key, error);
+        expectNoError(error, "Fail to check vector");
+        return found;
+    }
+
     public static double[] getDouble(DTLV.usearch_index_t index,
         long key, int dimensions) {
 
@@ -254,12 +415,13 @@ public class VecIdx {
         LongPointer keyPtr = new LongPointer(keys);
         float[] distances = new float[count];
         FloatPointer distPtr = new FloatPointer(distances);
-        DTLV.usearch_search(index, vecPtr, DTLV.usearch_scalar_f64_k,
-                count, keyPtr, distPtr, error);
+        long found = DTLV.usearch_search(index, vecPtr,
+                                         DTLV.usearch_scalar_f64_k,
+                                         count, keyPtr, distPtr, error);
         expectNoError(error, "Fail to search vector");
         keyPtr.get(keys);
         distPtr.get(distances);
-        return new SearchResult(keys, distances);
+        return trim(keys, distances, found);
     }
 
     public static SearchResult searchFloat(DTLV.usearch_index_t index,
@@ -271,12 +433,13 @@ public class VecIdx {
         LongPointer keyPtr = new LongPointer(keys);
         float[] distances = new float[count];
         FloatPointer distPtr = new FloatPointer(distances);
-        DTLV.usearch_search(index, vecPtr, DTLV.usearch_scalar_f32_k,
-                count, keyPtr, distPtr, error);
+        long found = DTLV.usearch_search(index, vecPtr,
+                                         DTLV.usearch_scalar_f32_k,
+                                         count, keyPtr, distPtr, error);
         expectNoError(error, "Fail to search vector");
         keyPtr.get(keys);
         distPtr.get(distances);
-        return new SearchResult(keys, distances);
+        return trim(keys, distances, found);
     }
 
     public static SearchResult searchShort(DTLV.usearch_index_t index,
@@ -288,12 +451,13 @@ public class VecIdx {
         LongPointer keyPtr = new LongPointer(keys);
         float[] distances = new float[count];
         FloatPointer distPtr = new FloatPointer(distances);
-        DTLV.usearch_search(index, vecPtr, DTLV.usearch_scalar_f16_k,
-                count, keyPtr, distPtr, error);
+        long found = DTLV.usearch_search(index, vecPtr,
+                                         DTLV.usearch_scalar_f16_k,
+                                         count, keyPtr, distPtr, error);
         expectNoError(error, "Fail to search vector");
         keyPtr.get(keys);
         distPtr.get(distances);
-        return new SearchResult(keys, distances);
+        return trim(keys, distances, found);
     }
 
     public static SearchResult searchInt8(DTLV.usearch_index_t index,
@@ -305,12 +469,13 @@ public class VecIdx {
         LongPointer keyPtr = new LongPointer(keys);
         float[] distances = new float[count];
         FloatPointer distPtr = new FloatPointer(distances);
-        DTLV.usearch_search(index, vecPtr, DTLV.usearch_scalar_i8_k,
-                count, keyPtr, distPtr, error);
+        long found = DTLV.usearch_search(index, vecPtr,
+                                         DTLV.usearch_scalar_i8_k,
+                                         count, keyPtr, distPtr, error);
         expectNoError(error, "Fail to search vector");
         keyPtr.get(keys);
         distPtr.get(distances);
-        return new SearchResult(keys, distances);
+        return trim(keys, distances, found);
     }
 
     public static SearchResult searchByte(DTLV.usearch_index_t index,
@@ -322,12 +487,359 @@ public class VecIdx {
         LongPointer keyPtr = new LongPointer(keys);
         float[] distances = new float[count];
         FloatPointer distPtr = new FloatPointer(distances);
-        DTLV.usearch_search(index, vecPtr, DTLV.usearch_scalar_b1_k,
-                count, keyPtr, distPtr, error);
+        long found = DTLV.usearch_search(index, vecPtr,
+                                         DTLV.usearch_scalar_b1_k,
+                                         count, keyPtr, distPtr, error);
         expectNoError(error, "Fail to search vector");
         keyPtr.get(keys);
         distPtr.get(distances);
-        return new SearchResult(keys, distances);
+        return trim(keys, distances, found);
+    }
+
+    static Pointer toPointer(Object vector) {
+        if (vector instanceof double[]) return new DoublePointer((double[]) vector);
+        if (vector instanceof float[]) return new FloatPointer((float[]) vector);
+        if (vector instanceof short[]) return new ShortPointer((short[]) vector);
+        if (vector instanceof byte[]) return new BytePointer((byte[]) vector);
+        throw new IllegalArgumentException("Unsupported vector type: " +
+                                           vector.getClass());
+    }
+
+    static long vectorBytes(int scalarKind, int dimensions) {
+        if (scalarKind == DTLV.usearch_scalar_f64_k) return 8L * dimensions;
+        if (scalarKind == DTLV.usearch_scalar_f32_k) return 4L * dimensions;
+        if (scalarKind == DTLV.usearch_scalar_f16_k) return 2L * dimensions;
+        if (scalarKind == DTLV.usearch_scalar_b1_k) return (dimensions + 7) / 8;
+        return dimensions;
+    }
+
+    /**
+     * Bytes taken by a vector packed in an array, b1 ones take dimensions
+     * bytes, the same as a single vector given by the caller
+     */
+    static long packedBytes(int scalarKind, int dimensions) {
+        if (scalarKind == DTLV.usearch_scalar_b1_k) return dimensions;
+        return vectorBytes(scalarKind, dimensions);
+    }
+
+    /**
+     * Filter consulted by usearch during graph traversal. Search calls the
+     * filter on the calling thread, so a single native callback serves all
+     * searches, and the predicate of the current search is kept in a thread
+     * local. Only one callback thunk is allocated this way.
+     */
+    static class Filter extends DTLV.usearch_filtered_search_callback_t {
+
+        static final ThreadLocal<LongPredicate> PREDICATE = new ThreadLocal<>();
+
+        @Override
+        public int call(long key, Pointer state) {
+            LongPredicate pred = PREDICATE.get();
+            return (pred == null || pred.test(key)) ? 1 : 0;
+        }
+    }
+
+    static final Filter FILTER = new Filter();
+
+    static SearchResult trim(long[] keys, float[] dists, long found) {
+        if (found >= keys.length) return new SearchResult(keys, dists);
+        int n = (int) found;
+        long[] ks = new long[n];
+        float[] ds = new float[n];
+        System.arraycopy(keys, 0, ks, 0, n);
+        System.arraycopy(dists, 0, ds, 0, n);
+        return new SearchResult(ks, ds);
+    }
+
+    /**
+     * Merge two results sorted by distance, keep the nearest count
+     */
+    public static SearchResult merge(SearchResult a, SearchResult b,
+            int count) {
+        long[] ak = a.getKeys(), bk = b.getKeys();
+        float[] ad = a.getDists(), bd = b.getDists();
+        int n = Math.min(count, ak.length + bk.length);
+        long[] keys = new long[n];
+        float[] dists = new float[n];
+        int i = 0, j = 0;
+        for (int k = 0; k < n; k++) {
+            if (j >= bk.length || (i < ak.length && ad[i] <= bd[j])) {
+                keys[k] = ak[i];
+                dists[k] = ad[i++];
+            } else {
+                keys[k] = bk[j];
+                dists[k] = bd[j++];
+            }
+        }
+        return new SearchResult(keys, dists);
+    }
+
+    /**
+     * Search the index, only visiting vectors whose keys pass the filter.
+     * Unlike filtering the results of a plain search, this returns up to
+     * count neighbors however selective the filter is.
+     */
+    public static SearchResult searchFiltered(DTLV.usearch_index_t index,
+            Object query, int scalarKind, int count, LongPredicate filter) {
+        PointerPointer<BytePointer> error = new PointerPointer<>(1);
+        error.put(0, (BytePointer) null);
+        Pointer vecPtr = toPointer(query);
+        long[] keys = new long[count];
+        LongPointer keyPtr = new LongPointer(keys);
+        float[] distances = new float[count];
+        FloatPointer distPtr = new FloatPointer(distances);
+        long found;
+        Filter.PREDICATE.set(filter);
+        try {
+            found = DTLV.usearch_filtered_search(index, vecPtr, scalarKind,
+                                                 count, FILTER, null, keyPtr,
+                                                 distPtr, error);
+        } finally {
+            Filter.PREDICATE.remove();
+        }
+        expectNoError(error, "Fail to search vector");
+        keyPtr.get(keys);
+        distPtr.get(distances);
+        return trim(keys, distances, found);
+    }
+
+    /**
+     * Exhaustively compute the distances between the query and the vectors
+     * of the given keys, return the nearest count of them. This is faster
+     * than a filtered graph search when there are only a few candidates.
+     */
+    public static SearchResult searchExact(DTLV.usearch_index_t index,
+            Object query, int scalarKind, int metricKind, int dimensions,
+            long[] candidates, int count) {
+        PointerPointer<BytePointer> error = new PointerPointer<>(1);
+        Pointer vecPtr = toPointer(query);
+        // b1 vectors are bits packed by usearch, so both the query and the
+        // fetched vector take (dimensions + 7) / 8 bytes here, even though
+        // the caller gives dimensions bytes
+        BytePointer buf = new BytePointer(vectorBytes(scalarKind, dimensions));
+
+        // max heap of the nearest so far
+        PriorityQueue<long[]> heap = new PriorityQueue<>(
+            count + 1, (a, b) -> Float.compare(Float.intBitsToFloat((int) b[1]),
+                                               Float.intBitsToFloat((int) a[1])));
+        try {
+            for (long key : candidates) {
+                error.put(0, (BytePointer) null);
+                long found = DTLV.usearch_get(index, key, 1, buf, scalarKind,
+                                              error);
+                expectNoError(error, "Fail to get vector");
+                if (found != 1) continue;
+
+                error.put(0, (BytePointer) null);
+                float dist = DTLV.usearch_distance(vecPtr, buf, scalarKind,
+                                                   dimensions, metricKind, error);
+                expectNoError(error, "Fail to compute distance");
+
+                if (heap.size() < count) {
+                    heap.add(new long[] { key, Float.floatToIntBits(dist) });
+                } else if (count > 0 &&
+                           dist < Float.intBitsToFloat((int) heap.peek()[1])) {
+                    heap.poll();
+                    heap.add(new long[] { key, Float.floatToIntBits(dist) });
+                }
+            }
+        } finally {
+            buf.close();
+            vecPtr.close();
+        }
+
+        int n = heap.size();
+        long[] keys = new long[n];
+        float[] dists = new float[n];
+        for (int i = n - 1; i >= 0; i--) {
+            long[] e = heap.poll();
+            keys[i] = e[0];
+            dists[i] = Float.intBitsToFloat((int) e[1]);
+        }
+        return new SearchResult(keys, dists);
+    }
+
+    /**
+     * Search many queries packed in one array, dimensions elements each,
+     * in the given number of tasks run by the pool. Only vectors whose keys
+     * pass the filter are considered, if the filter is not null.
+     */
+    public static BatchSearchResult searchBatch(
+            final DTLV.usearch_index_t index, Object queries,
+            final int scalarKind, final int dimensions, final int count,
+            int threads, ExecutorService pool, final LongPredicate filter) {
+
+        final long vecBytes = packedBytes(scalarKind, dimensions);
+        final Pointer queryPtr = toPointer(queries);
+        try {
+            final long total = queryPtr.limit() * queryPtr.sizeof() / vecBytes;
+            final long size = total * Math.max(count, 0);
+            if (size > Integer.MAX_VALUE - 8)
+                throw new IllegalArgumentException(
+                    "Too many results for a batch search: " + total
+                    + " queries, top " + count);
+            final int n = (int) total;
+
+            final long[] keys = new long[(int) size];
+            final float[] dists = new float[(int) size];
+            final int[] founds = new int[n];
+            if (n == 0) return new BatchSearchResult(keys, dists, founds, count);
+
+            threads = Math.max(1, Math.min(threads, n));
+            final int chunk = (n + threads - 1) / threads;
+
+            List<Future<?>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int start = t * chunk;
+                final int end = Math.min(n, start + chunk);
+                if (start >= end) break;
+                futures.add(pool.submit(() -> {
+                    PointerPointer<BytePointer> error = new PointerPointer<>(1);
+                    Pointer vecPtr = new Pointer(queryPtr);
+                    LongPointer keyPtr = new LongPointer(count);
+                    FloatPointer distPtr = new FloatPointer(count);
+                    if (filter != null) Filter.PREDICATE.set(filter);
+                    try {
+                        for (int i = start; i < end; i++) {
+                            vecPtr.position(i * vecBytes);
+                            error.put(0, (BytePointer) null);
+                            long found = filter == null
+                                ? DTLV.usearch_search(index, vecPtr,
+                                                      scalarKind, count,
+                                                      keyPtr, distPtr, error)
+                                : DTLV.usearch_filtered_search(index, vecPtr,
+                                                               scalarKind,
+                                                               count, FILTER,
+                                                               null, keyPtr,
+                                                               distPtr, error);
+                            expectNoError(error, "Fail to search vector");
+                            keyPtr.get(keys, i * count, count);
+                            distPtr.get(dists, i * count, count);
+                            founds[i] = (int) found;
+                        }
+                    } finally {
+                        Filter.PREDICATE.remove();
+                        keyPtr.close();
+                        distPtr.close();
+                    }
+                }));
+            }
+            await(futures);
+            return new BatchSearchResult(keys, dists, founds, count);
+        } finally {
+            queryPtr.close();
+        }
+    }
+
+    /**
+     * Little endian bytes of a full precision vector, as kept in LMDB
+     */
+    public static byte[] floatBytes(float[] vector) {
+        ByteBuffer bf = ByteBuffer.allocate(4 * vector.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        bf.asFloatBuffer().put(vector);
+        return bf.array();
+    }
+
+    public static float[] bytesFloats(byte[] bytes) {
+        FloatBuffer fb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+            .asFloatBuffer();
+        float[] vector = new float[fb.remaining()];
+        fb.get(vector);
+        return vector;
+    }
+
+    static float dot(float[] a, float[] b) {
+        int n = a.length, i = 0;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < n; i++) s0 += a[i] * b[i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static float l2sq(float[] a, float[] b) {
+        int n = a.length, i = 0;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (; i + 3 < n; i += 4) {
+            float d0 = a[i] - b[i], d1 = a[i + 1] - b[i + 1];
+            float d2 = a[i + 2] - b[i + 2], d3 = a[i + 3] - b[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < n; i++) {
+            float d = a[i] - b[i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Distance between two full precision vectors, with the same semantics
+     * as usearch. The common metrics are computed here, unrolled into
+     * independent accumulators, the others are left to usearch.
+     */
+    public static float distance(float[] a, float[] b, int metricKind) {
+        if (metricKind == DTLV.usearch_metric_l2sq_k) return l2sq(a, b);
+        if (metricKind == DTLV.usearch_metric_ip_k) return 1 - dot(a, b);
+        if (metricKind == DTLV.usearch_metric_cos_k) {
+            float ab = dot(a, b), aa = dot(a, a), bb = dot(b, b);
+            if (aa == 0 && bb == 0) return 0;
+            if (aa == 0 || bb == 0) return 1;
+            return (float) (1 - ab / (Math.sqrt(aa) * Math.sqrt(bb)));
+        }
+
+        PointerPointer<BytePointer> error = new PointerPointer<>(1);
+        error.put(0, (BytePointer) null);
+        FloatPointer aPtr = new FloatPointer(a);
+        FloatPointer bPtr = new FloatPointer(b);
+        try {
+            float dist = DTLV.usearch_distance(aPtr, bPtr,
+                                               DTLV.usearch_scalar_f32_k,
+                                               a.length, metricKind, error);
+            expectNoError(error, "Fail to compute distance");
+            return dist;
+        } finally {
+            aPtr.close();
+            bPtr.close();
+        }
+    }
+
+    /**
+     * Re-rank the candidates found in a quantized index by the distances
+     * between the query and their full precision vectors, given as little
+     * endian bytes, keep the nearest count. A candidate whose vector is null
+     * is no longer there and is dropped.
+     */
+    public static SearchResult rerank(float[] query, long[] candidates,
+            byte[][] vectors, int metricKind, int count) {
+        int n = 0;
+        long[] keys = new long[candidates.length];
+        float[] dists = new float[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            if (vectors[i] == null) continue;
+            keys[n] = candidates[i];
+            dists[n++] = distance(query, bytesFloats(vectors[i]), metricKind);
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, (x, y) -> Float.compare(dists[x], dists[y]));
+
+        int m = Math.min(n, count);
+        long[] ks = new long[m];
+        float[] ds = new float[m];
+        for (int i = 0; i < m; i++) {
+            ks[i] = keys[order[i]];
+            ds[i] = dists[order[i]];
+        }
+        return new SearchResult(ks, ds);
     }
 
     public static IndexInfo info(DTLV.usearch_index_t index) {
@@ -372,6 +884,51 @@ public class VecIdx {
         }
     }
 
+    /**
+     * Results of a batch search. Query i has founds[i] neighbors, at
+     * offsets from i * count in the packed keys and dists arrays.
+     */
+    public static class BatchSearchResult {
+
+        private long[] keys;
+        private float[] dists;
+        private int[] founds;
+        private int count;
+
+        public BatchSearchResult(long[] keys, float[] dists, int[] founds,
+                int count) {
+            this.keys = keys;
+            this.dists = dists;
+            this.founds = founds;
+            this.count = count;
+        }
+
+        public long[] getKeys() {
+            return keys;
+        }
+
+        public float[] getDists() {
+            return dists;
+        }
+
+        public int[] getFounds() {
+            return founds;
+        }
+
+        public int size() {
+            return founds.length;
+        }
+
+        public SearchResult get(int i) {
+            int n = founds[i];
+            long[] ks = new long[n];
+            float[] ds = new float[n];
+            System.arraycopy(keys, i * count, ks, 0, n);
+            System.arraycopy(dists, i * count, ds, 0, n);
+            return new SearchResult(ks, ds);
+        }
+    }
+
     public static class IndexInfo {
 
         private long size;
@@ -0,0 +1,213 @@
+package datalevin.utl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A sorted term dictionary supporting prefix and fuzzy (Levenshtein distance)
+ * term expansion.
+ *
+ * Terms are kept in a sorted array, which is walked as an implicit trie when
+ * intersecting with the Levenshtein automaton: the dynamic programming rows of
+ * a shared prefix are reused, and the whole sub-trie under a prefix is skipped
+ * once its row minimum exceeds the allowed edits. Newly added terms go to a
+ * small sorted delta that is merged into the array when it grows large.
+ */
+public class TermDict {
+
+    static final int MIN_DELTA_LIMIT = 1024;
+
+    String[] terms;
+    int size;
+
+    final TreeMap<String, Boolean> delta;
+
+    public TermDict(String[] unsorted) {
+        terms = Arrays.copyOf(unsorted, unsorted.length);
+        Arrays.sort(terms);
+        size = terms.length;
+        delta = new TreeMap<String, Boolean>();
+    }
+
+    public TermDict() {
+        this(new String[0]);
+    }
+
+    public synchronized int size() {
+        return size + delta.size();
+    }
+
+    public synchronized void add(String term) {
+        if (Arrays.binarySearch(terms, 0, size, term) >= 0) return;
+        delta.put(term, Boolean.TRUE);
+        if (delta.size() > Math.max(MIN_DELTA_LIMIT, size >>> 3)) merge();
+    }
+
+    public synchronized void clear() {
+        terms = new String[0];
+        size = 0;
+        delta.clear();
+    }
+
+    public synchronized void reset(String[] unsorted) {
+        terms = Arrays.copyOf(unsorted, unsorted.length);
+        Arrays.sort(terms);
+        size = terms.length;
+        delta.clear();
+    }
+
+    void merge() {
+        String[] merged = new String[size + delta.size()];
+        int i = 0, j = 0;
+        for (String d : delta.keySet()) {
+            while (i < size && terms[i].compareTo(d) < 0) merged[j++] = terms[i++];
+            merged[j++] = d;
+        }
+        while (i < size) merged[j++] = terms[i++];
+        terms = merged;
+        size = merged.length;
+        delta.clear();
+    }
+
+    /**
+     * Return up to max terms starting with the prefix, in sorted order
+     */
+    public synchronized List<String> prefix(String prefix, int max) {
+        List<String> res = new ArrayList<String>();
+        int i = lowerBound(prefix);
+        // the array and the delta are both sorted, and have no term in
+        // common, so merge them until max terms are found
+        Iterator<String> it = delta.tailMap(prefix, true).keySet().iterator();
+        String d = it.hasNext() ? it.next() : null;
+        if (d != null && !d.startsWith(prefix)) d = null;
+        while (res.size() < max) {
+            String t = (i < size && terms[i].startsWith(prefix))
+                ? terms[i] : null;
+            if (t == null && d == null) break;
+            if (d == null || (t != null && t.compareTo(d) < 0)) {
+                res.add(t);
+                i++;
+            } else {
+                res.add(d);
+                d = it.hasNext() ? it.next() : null;
+                if (d != null && !d.startsWith(prefix)) d = null;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Return up to max terms within maxEdits Levenshtein distance of the
+     * query, ordered by distance, then by term
+     */
+    public synchronized List<String> fuzzy(String query, int maxEdits, int max) {
+        final Map<String, Integer> found = new TreeMap<String, Integer>();
+        int m = query.length();
+
+        int[][] rows = new int[64][];
+        rows[0] = new int[m + 1];
+        for (int j = 0; j <= m; j++) rows[0][j] = j;
+
+        String prev = "";
+        int valid = 0; // number of rows computed for prev, beyond row 0
+
+        int i = 0;
+        outer:
+        while (i < size) {
+            String t = terms[i];
+            int len = t.length();
+            int common = Math.min(valid, commonPrefix(prev, t));
+            if (rows.length <= len) rows = Arrays.copyOf(rows, len + 1);
+            for (int d = common + 1; d <= len; d++) {
+                if (rows[d] == null) rows[d] = new int[m + 1];
+                if (nextRow(rows[d - 1], rows[d], query, t.charAt(d - 1))
+                    > maxEdits) {
+                    i = skip(i, t.substring(0, d));
+                    prev = t;
+                    valid = d - 1;
+                    continue outer;
+                }
+            }
+            int dist = rows[len][m];
+            if (dist <= maxEdits) found.put(t, dist);
+            prev = t;
+            valid = len;
+            i++;
+        }
+
+        for (String d : delta.keySet()) {
+            int dist = distance(query, d);
+            if (dist <= maxEdits) found.put(d, dist);
+        }
+
+        List<String> res = new ArrayList<String>(found.keySet());
+        res.sort(Comparator.comparingInt(found::get));
+        return res.size() > max ? res.subList(0, max) : res;
+    }
+
+    public static int distance(String a, String b) {
+        int m = b.length();
+        int[] prev = new int[m + 1];
+        int[] cur = new int[m + 1];
+        for (int j = 0; j <= m; j++) prev[j] = j;
+        for (int i = 0; i < a.length(); i++) {
+            nextRow(prev, cur, b, a.charAt(i));
+            int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return prev[m];
+    }
+
+    /**
+     * Compute the next row of the edit distance table, return its minimum
+     */
+    static int nextRow(int[] prev, int[] cur, String query, char c) {
+        int m = query.length();
+        cur[0] = prev[0] + 1;
+        int min = cur[0];
+        for (int j = 1; j <= m; j++) {
+            int cost = query.charAt(j - 1) == c ? 0 : 1;
+            int v = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1),
+                             prev[j - 1] + cost);
+            cur[j] = v;
+            if (v < min) min = v;
+        }
+        return min;
+    }
+
+    static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) i++;
+        return i;
+    }
+
+    int lowerBound(String key) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (terms[mid].compareTo(key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Return the index of the first term after i not starting with the prefix
+     */
+    int skip(int i, String prefix) {
+        int lo = i + 1, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (terms[mid].startsWith(prefix)) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
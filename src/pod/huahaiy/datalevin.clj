@@ -807,6 +807,12 @@
   [index vec-ref vec-data]
   (when-let [i (get-index index)] (d/add-vec i vec-ref vec-data)))
 
+(defn add-vecs
+  ([index vec-pairs]
+   (when-let [i (get-index index)] (d/add-vecs i vec-pairs)))
+  ([index vec-pairs opts]
+   (when-let [i (get-index index)] (d/add-vecs i vec-pairs opts))))
+
 (defn remove-vec
   [index vec-ref]
   (when-let [i (get-index index)] (d/remove-vec i vec-ref)))
@@ -829,6 +835,20 @@
   ([index query opts]
    (when-let [i (get-index index)] (d/search-vec i query opts))))
 
+(defn search-vecs
+  ([index queries]
+   (when-let [i (get-index index)] (d/search-vecs i queries)))
+  ([index queries opts]
+   (when-let [i (get-index index)] (d/search-vecs i queries opts))))
+
+(defn hybrid-search
+  ([engine index query query-vec]
+   (hybrid-search engine index query query-vec {}))
+  ([engine index query query-vec opts]
+   (when-let [e (get-engine engine)]
+     (when-let [i (get-index index)]
+       (d/hybrid-search e i query query-vec opts)))))
+
 (defn re-index
   ([db opts] (re-index db {} opts))
   ([db schema opts]
@@ -947,11 +967,14 @@
    'search                    search
    'new-vector-index          new-vector-index
    'add-vec                   add-vec
+   'add-vecs                  add-vecs
    'remove-vec                remove-vec
    'clear-vector-index        clear-vector-index
    'close-vector-index        close-vector-index
    'vector-index-info         vector-index-info
    'search-vec                search-vec
+   'search-vecs               search-vecs
+   'hybrid-search             hybrid-search
    're-index                  re-index
    })
 
@@ -0,0 +1,87 @@
+(ns datalevin.hybrid-test
+  (:require
+   [datalevin.hybrid :as sut]
+   [datalevin.core :as d]
+   [datalevin.constants :as c]
+   [datalevin.util :as u]
+   [datalevin.test.core :refer [db-fixture]]
+   [clojure.test :refer [deftest is use-fixtures]])
+  (:import
+   [java.util UUID]))
+
+(use-fixtures :each db-fixture)
+
+(defn- ranked
+  [pairs depths]
+  (fn [depth]
+    (swap! depths conj depth)
+    (take depth pairs)))
+
+(deftest fusion-test
+  (let [text [[:a 4.0] [:b 3.0] [:c 2.0] [:d 1.0]]
+        vecs [[:c 0.0] [:a 1.0] [:e 2.0] [:f 3.0]]
+        ds   (atom [])]
+    (is (= [:a :c :b]
+           (map first (sut/hybrid-search* (ranked text ds) (ranked vecs ds)
+                                          {:top 3}))))
+    (is (= [:c :a]
+           (map first (sut/hybrid-search* (ranked text ds) (ranked vecs ds)
+                                          {:top     2
+                                           :fusion  :weighted
+                                           :weights {:text 1.0 :vector 2.0}}))))
+    (is (thrown? Exception
+                 (sut/hybrid-search* (ranked text ds) (ranked vecs ds)
+                                     {:fusion :unknown})))))
+
+(deftest early-termination-test
+  (let [text (mapv (fn [i] [i (- 1000.0 i)]) (range 1000))
+        vecs (mapv (fn [i] [i (double i)]) (range 1000))
+        ds   (atom [])]
+    (is (= [[0 (+ (/ 1.0 61) (/ 1.0 61))]]
+           (sut/hybrid-search* (ranked text ds) (ranked vecs ds) {:top 1})))
+    (is (= [2 2] @ds))
+    (reset! ds [])
+    (is (= 0 (ffirst (sut/hybrid-search* (ranked text ds) (ranked vecs ds)
+                                         {:top 1 :fusion :weighted}))))
+    (is (= [c/*hybrid-max-depth* c/*hybrid-max-depth*] @ds))
+    (reset! ds [])
+    (is (= 0 (ffirst (sut/hybrid-search* (ranked text ds) (ranked vecs ds)
+                                         1000.0 {:top 1 :fusion :weighted}))))
+    (is (= [2 2] @ds))))
+
+(def vec-data (->> (d/read-csv (slurp "test/data/word2vec.csv"))
+                   (drop 1)
+                   (reduce (fn [m [w & vs]]
+                             (assoc m w (mapv Float/parseFloat vs)))
+                           {})))
+
+(deftest hybrid-built-in-test
+  (when-not (u/windows?)
+    (let [dir  (u/tmp-dir (str "hybrid-" (UUID/randomUUID)))
+          conn (d/create-conn
+                 dir {:doc/id        {:db/valueType :db.type/string
+                                      :db/unique    :db.unique/identity}
+                      :doc/text      {:db/valueType           :db.type/string
+                                      :db/fulltext            true
+                                      :db.fulltext/autoDomain true}
+                      :doc/embedding {:db/valueType :db.type/vec}}
+                 {:vector-opts {:dimensions 300 :metric-type :cosine}})
+          docs {"cat"       "a small furry pet animal"
+                "feline"    "a wild animal of the cat family"
+                "physics"   "the science of matter and energy"
+                "chemistry" "the science of substances"}]
+      (d/transact! conn (mapv (fn [[w t]] {:doc/id        w
+                                           :doc/text      t
+                                           :doc/embedding (vec-data w)})
+                              docs))
+      (let [res (d/q '[:find ?w ?score
+                       :in $ ?q ?v
+                       :where
+                       [(hybrid $ :doc/text ?q :doc/embedding ?v {:top 2})
+                        [[?e ?score]]]
+                       [?e :doc/id ?w]]
+                     (d/db conn) "substances" (vec-data "chemistry"))]
+        (is (= 2 (count res)))
+        (is (= "chemistry" (first (apply max-key peek res)))))
+      (d/close conn)
+      (u/delete-files dir))))
@@ -4,9 +4,11 @@
    [datalevin.built-ins :as bi]
    [datalevin.constants :as c]
    [datalevin.core :as sut]
+   [datalevin.idoc :as idoc]
    [datalevin.test.core :as tdc :refer [db-fixture]]
    [datalevin.util :as u])
   (:import
+   [datalevin.db DB]
    [java.util UUID]))
 
 (use-fixtures :each db-fixture)
@@ -191,6 +193,11 @@
           Exception
           #"Invalid JSON string for idoc"
           (sut/transact! conn [{:db/id 2 :doc/json "{\"a\":1"}])))
+    (doseq [s ["" "   "]]
+      (is (thrown-with-msg?
+            Exception
+            #"Invalid JSON string for idoc"
+            (sut/transact! conn [{:db/id 2 :doc/json s}]))))
     (is (thrown-with-msg?
           Exception
           #"Markdown content appears before any header"
@@ -635,3 +642,148 @@
                      db "Officia")))))
     (sut/close conn)
     (when-not (u/windows?) (u/delete-files dir))))
+
+(deftest idoc-selectivity-test
+  (let [dir   (u/tmp-dir (str "idoc-stats-test-" (UUID/randomUUID)))
+        conn  (sut/create-conn
+                dir
+                {:item/doc {:db/valueType :db.type/idoc
+                            :db/domain    "items"}}
+                {:kv-opts {:flags (conj c/default-env-flags :nosync :nolock)}})
+        index #(get (.-idoc-indices (.-store ^DB (sut/db conn))) "items")
+        q     (fn [query]
+                (let [trace (volatile! nil)
+                      res   (binding [idoc/*trace* #(vreset! trace %)]
+                              (sut/q '[:find [?e ...]
+                                       :in $ ?q
+                                       :where
+                                       [(idoc-match $ :item/doc ?q)
+                                        [[?e ?a ?v]]]]
+                                     (sut/db conn) query))]
+                  [(set res) (:candidate-count @trace)]))]
+    (sut/transact!
+      conn
+      (for [i (range 1 101)]
+        {:db/id    i
+         :item/doc {:kind  (if (<= i 2) "rare" "common")
+                    :score (if (= i 1) -1 i)}}))
+    (testing "path stats"
+      (is (= 100 (:n (idoc/path-stats (index) [:score]))))
+      (is (= 100 (:n (idoc/path-stats (index) [:kind]))))
+      (is (nil? (idoc/path-stats (index) [:missing]))))
+    (testing "broad range is verified on the selective equality candidates"
+      (is (= [#{2} 2] (q {:kind "rare" :score (> 0)}))))
+    (testing "broad equality is verified on the selective range candidates"
+      (is (= [#{3 4} 4] (q {:kind "common" :score (< 5)})))
+      (is (= [#{3 4} 4] (q [:and {:score (< 5)} {:kind "common"}]))))
+    (testing "results do not depend on the ratio"
+      (binding [c/*idoc-verify-ratio* 1000000]
+        (is (= [#{2} 1] (q {:kind "rare" :score (> 0)})))))
+    (sut/transact! conn [[:db/retractEntity 100]
+                         {:db/id 3 :item/doc {:kind "rare" :score 3}}])
+    (testing "stats follow removal and update"
+      (is (= 99 (:n (idoc/path-stats (index) [:score]))))
+      (is (= [#{2 3} 3] (q {:kind "rare" :score (> 0)}))))
+    (testing "stats stay put when the index update fails"
+      (with-redefs [datalevin.interface/transact-kv
+                    (fn [& _] (throw (ex-info "boom" {})))]
+        (is (thrown? Exception
+                     (idoc/add-doc (index) 1000 {:score 5} false))))
+      (is (= 99 (:n (idoc/path-stats (index) [:score])))))
+    (sut/close conn)
+    (when-not (u/windows?) (u/delete-files dir))))
+
+(deftest idoc-range-cache-test
+  (let [dir   (u/tmp-dir (str "idoc-cache-test-" (UUID/randomUUID)))
+        conn  (sut/create-conn
+                dir
+                {:item/doc {:db/valueType :db.type/idoc
+                            :db/domain    "items"}}
+                {:kv-opts {:flags (conj c/default-env-flags :nosync :nolock)}})
+        index #(get (.-idoc-indices (.-store ^DB (sut/db conn))) "items")
+        cache #(.size ^java.util.Map (.-range-cache (index)))
+        q     (fn [query]
+                (set (sut/q '[:find [?e ...]
+                              :in $ ?q
+                              :where [(idoc-match $ :item/doc ?q) [[?e ?a ?v]]]]
+                            (sut/db conn) query)))]
+    (sut/transact! conn [{:db/id 1 :item/doc {:a 1 :b "x"}}
+                         {:db/id 2 :item/doc {:a 5 :b "y"}}])
+    (is (= #{2} (q {:a (> 2)})))
+    (is (= 1 (cache)))
+    (testing "changes of other paths keep the cached ranges"
+      (sut/transact! conn [{:db/id 3 :item/doc {:b "z"}}])
+      (is (= 1 (cache)))
+      (is (= #{2} (q {:a (> 2)}))))
+    (testing "changes of the path drop its cached ranges"
+      (sut/transact! conn [{:db/id 4 :item/doc {:a 7}}])
+      (is (= 0 (cache)))
+      (is (= #{2 4} (q {:a (> 2)}))))
+    (sut/close conn)
+    (when-not (u/windows?) (u/delete-files dir))))
+
+(deftest idoc-bulk-add-test
+  (let [dir   (u/tmp-dir (str "idoc-bulk-test-" (UUID/randomUUID)))
+        conn  (sut/create-conn
+                dir
+                {:item/doc {:db/valueType  :db.type/idoc
+                            :db/idocFormat :json
+                            :db/domain     "items"}}
+                {:kv-opts {:flags (conj c/default-env-flags :nosync :nolock)}})
+        index #(get (.-idoc-indices (.-store ^DB (sut/db conn))) "items")
+        q     (fn [query]
+                (set (sut/q '[:find [?e ...]
+                              :in $ ?q
+                              :where [(idoc-match $ :item/doc ?q) [[?e ?a ?v]]]]
+                            (sut/db conn) query)))
+        docs  (fn [ids]
+                (for [i ids]
+                  {:db/id    i
+                   :item/doc (str "{\"n\":" i ",\"parity\":\""
+                                  (if (even? i) "even" "odd")
+                                  "\",\"tags\":[\"t" (mod i 3) "\",\"all\"]"
+                                  ",\"nested\":{\"k" (mod i 2) "\":" i "}}")}))]
+    (is (<= ^long c/*idoc-bulk-min-docs* 300))
+    (sut/transact! conn (docs (range 1 301)))
+    (is (= 300 (count (q {"tags" "all"}))))
+    (is (= 150 (count (q {"parity" "even"}))))
+    (is (= #{298 299 300} (q {"n" (> 297)})))
+    (is (= #{3 6} (q {"tags" "t0" "n" (< 8)})))
+    (is (= #{1 3} (q {"nested" {:? (< 4)} "parity" "odd"})))
+    (is (= 300 (:n (idoc/path-stats (index) ["n"]))))
+    (testing "bulk into a non-empty index"
+      (sut/transact! conn (docs (range 301 601)))
+      (is (= 600 (count (q {"tags" "all"}))))
+      (is (= #{599 600} (q {"n" (>= 599)})))
+      (is (= 600 (:n (idoc/path-stats (index) ["n"])))))
+    (testing "removal"
+      (sut/transact! conn (for [i (range 1 301)] [:db/retractEntity i]))
+      (is (= 300 (count (q {"tags" "all"}))))
+      (is (= #{} (q {"n" (< 301)})))
+      (is (= 300 (:n (idoc/path-stats (index) ["n"])))))
+    (sut/close conn)
+    (when-not (u/windows?) (u/delete-files dir))))
+
+(deftest idoc-json-streaming-test
+  (let [parse #(idoc/parse-value :doc/json {:db/idocFormat :json} %2 %1)]
+    (is (= {"a" [1 2.5 true false :json/null]
+            "b" {"c" "x" "d" {}}
+            "e" 123456789012345678901234567890N}
+           (parse "{\"a\":[1,2.5,true,false,null],\"b\":{\"c\":\"x\",\"d\":{}},
+                    \"e\":123456789012345678901234567890}" nil)))
+    (is (= {"a" [[{"b" :json/null}]]} (parse "{\"a\":[[{\"b\":null}]]}" nil)))
+    (is (= {"a" {"b" 1}} (parse "{\"a\":{\"b\":1}}" {:idoc/max-depth 2})))
+    (is (thrown-with-msg? Exception #"Idoc exceeds max depth"
+                          (parse "{\"a\":{\"b\":1}}" {:idoc/max-depth 1})))
+    (is (thrown-with-msg? Exception #"Invalid JSON string for idoc"
+                          (parse "{\"a\":[1," nil)))
+    (is (thrown-with-msg? Exception #"Idoc root must be a map"
+                          (parse "[1]" nil))))
+  (testing "unchanged parts of a document are not copied"
+    (let [inner {"x" [1 2]}
+          doc   {"a" inner "b" nil}
+          clean {"a" inner "b" [{"c" 1}]}]
+      (is (= {"a" inner "b" :json/null} (idoc/parse-value :doc/edn {} nil doc)))
+      (is (identical? inner
+                      (get (idoc/parse-value :doc/edn {} nil doc) "a")))
+      (is (identical? clean (idoc/parse-value :doc/edn {} nil clean))))))
@@ -1,8 +1,9 @@
 (ns datalevin.rules-test
   (:require
-   [clojure.test :refer [deftest are is use-fixtures]]
+   [clojure.test :refer [deftest are is testing use-fixtures]]
    [datalevin.test.core :as tdc :refer [db-fixture]]
    [datalevin.rules :as sut]
+   [datalevin.query :as q]
    [datalevin.core :as d]
    [datalevin.constants :as c]
    [datalevin.util :as u])
@@ -1156,7 +1157,98 @@
                              :where (tc ?a ?b)]
                            (d/db conn) rules)]
         (is (= (* n n) (count all-pairs)))
-        (is (= (count all-pairs) (count (set all-pairs))))))
+        (is (= (count all-pairs) (count (set all-pairs))))
+        ;; seen-sets that move to spillable sets as they grow
+        (is (= all-pairs
+               (binding [q/*cache?*           false
+                         c/*spill-dedupe-min* 8]
+                 (d/q '[:find ?a ?b
+                        :in $ %
+                        :where (tc ?a ?b)]
+                      (d/db conn) rules))))))
+
+    (d/close conn)
+    (u/delete-files dir)))
 
+(deftest parallel-linear-recursion-test
+  (let [dir   (u/tmp-dir (str "parallel-tc-test-" (UUID/randomUUID)))
+        conn  (d/get-conn dir {:node {:db/unique :db.unique/identity}
+                               :edge {:db/valueType   :db.type/ref
+                                      :db/cardinality :db.cardinality/many}}
+                          {:kv-opts {:flags (conj c/default-env-flags
+                                                  :nosync :nolock)}})
+        n     60
+        rules '[[(tc ?a ?b)
+                 [?x :node ?a]
+                 [?x :edge ?y]
+                 [?y :node ?b]]
+                [(tc ?a ?b)
+                 [?x :node ?a]
+                 [?x :edge ?z]
+                 [?z :node ?mid]
+                 (tc ?mid ?b)]]
+        query '[:find ?a ?b :in $ % :where (tc ?a ?b)]]
+    ;; a chain with a shortcut from every 5th node
+    (d/transact! conn (for [i (range n)]
+                        (cond-> {:db/id (- (inc i)) :node i}
+                          (< i (dec n))
+                          (assoc :edge (cond-> [(- (+ i 2))]
+                                         (and (zero? (mod i 5)) (< (+ i 3) n))
+                                         (conj (- (+ i 4))))))))
+    (let [serial   (binding [q/*cache?*                  false
+                              c/*rule-parallel-min-delta* Long/MAX_VALUE]
+                     (d/q query (d/db conn) rules))
+          parallel (binding [q/*cache?*                  false
+                              c/*rule-parallel-min-delta* 8]
+                     (d/q query (d/db conn) rules))]
+      (is (= (quot (* n (dec n)) 2) (count serial)))
+      (is (= serial parallel)))
+    (d/close conn)
+    (u/delete-files dir)))
+
+(deftest table-rules-test
+  (let [dir   (u/tmp-dir (str "table-rules-test-" (UUID/randomUUID)))
+        conn  (d/get-conn dir {:node {:db/unique :db.unique/identity}
+                               :edge {:db/valueType   :db.type/ref
+                                      :db/cardinality :db.cardinality/many}}
+                          {:kv-opts      {:flags (conj c/default-env-flags
+                                                       :nosync :nolock)}
+                           :table-rules? true})
+        rules '[[(tc ?a ?b)
+                 [?x :node ?a]
+                 [?x :edge ?y]
+                 [?y :node ?b]]
+                [(tc ?a ?b)
+                 [?x :node ?a]
+                 [?x :edge ?z]
+                 [?z :node ?mid]
+                 (tc ?mid ?b)]]
+        reach #(set (d/q '[:find [?b ...] :in $ % ?s :where (tc ?s ?b)]
+                         (d/db conn) rules %))]
+    (d/transact! conn [{:db/id -1 :node 0 :edge -2}
+                       {:db/id -2 :node 1 :edge -3}
+                       {:db/id -3 :node 2}
+                       {:db/id -4 :node 3}])
+    (is (= #{1 2} (reach 0)))
+    (is (= #{2} (reach 1)))
+    (is (= 3 (count (d/q '[:find ?a ?b :in $ % :where (tc ?a ?b)]
+                         (d/db conn) rules))))
+    (is (= #{[0 1] [1 2]}
+           (d/q '[:find ?a ?b :in $ % :where (tc ?a ?b) [(inc ?a) ?b]]
+                (d/db conn) rules)))
+    (d/transact! conn [{:db/id [:node 2] :edge [:node 3]}])
+    (is (= #{1 2 3} (reach 0)))
+    (is (= #{3} (reach 2)))
+    (testing "rules that need bound inputs are not tabled"
+      (let [rules '[[(older ?a ?b) [(> ?a ?b)]]
+                    [(next-node [?a] ?b) [(inc ?a) ?b] [?x :node ?b]]]]
+        (is (= #{[2 0] [2 1]}
+               (d/q '[:find ?a ?b :in $ % ?a :where
+                      [?x :node ?b] (older ?a ?b)]
+                    (d/db conn) rules 2)))
+        (is (= #{[1 2] [2 3]}
+               (d/q '[:find ?a ?b :in $ % [?a ...] :where
+                      (next-node ?a ?b)]
+                    (d/db conn) rules [1 2 3])))))
     (d/close conn)
     (u/delete-files dir)))
@@ -21,6 +21,7 @@
    [clojure.test :refer [deftest testing are is use-fixtures]])
   (:import
    [java.util UUID]
+   [org.roaringbitmap RoaringBitmap]
    [datalevin.sparselist SparseIntArrayList]
    [datalevin.search SearchEngine IndexWriter]))
 
@@ -292,6 +293,112 @@
     (is (empty? (if/search engine "")))
     (is (empty? (if/search engine "solar")))
     (is (empty? (if/search engine "solar wind")))
+    ;; cache keys do not depend on whether ids come as ints or longs
+    (is (.equals ^Object (#'sut/pos-key (int 1) (int 2)) (#'sut/pos-key 1 2)))
+    (if/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest search-result-cache-test
+  (let [dir    (u/tmp-dir (str "search-cache-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir {:flags
+                               (conj c/default-env-flags :nosync)})
+        engine ^SearchEngine (sut/new-search-engine lmdb)]
+    (add-docs if/add-doc engine)
+
+    (is (= [:doc1 :doc4 :doc2 :doc5] (if/search engine "red cat")))
+    (is (= [:doc1 :doc4] (if/search engine "red cat" {:top 2})))
+    (is (= [:doc1] (if/search engine "red cat" {:top 1})))
+    (is (= [:doc1 :doc4 :doc2] (if/search engine "red cat" {:top 3})))
+    (is (= [:doc1 :doc4 :doc2 :doc5] (if/search engine "red cat" {:top 20})))
+    (is (= [:doc1 :doc5] (if/search engine "red cat"
+                                    {:doc-filter #{:doc1 :doc5}})))
+    (let [bound (sut/score-bound engine "red cat")]
+      (is (every? #(<= ^double (peek %) ^double bound)
+                  (if/search engine "red cat" {:display :refs+scores}))))
+
+    (if/add-doc engine :doc6 "A red cat sat on the mat.")
+    (is (= :doc6 (first (if/search engine "red cat"))))
+    (if/remove-doc engine :doc6)
+    (is (= [:doc1 :doc4 :doc2 :doc5] (if/search engine "red cat")))
+    (if/clear-docs engine)
+    (is (empty? (if/search engine "red cat")))
+
+    (if/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest facet-counts-test
+  (let [dir    (u/tmp-dir (str "search-facets-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir {:flags
+                               (conj c/default-env-flags :nosync)})
+        engine ^SearchEngine (sut/new-search-engine lmdb)]
+    (add-docs if/add-doc engine)
+    (if/set-doc-facets engine :doc1 {:kind "animal" :color #{"red" "brown"}})
+    (if/set-doc-facets engine :doc2 {:kind "animal" :color "white"})
+    (if/set-doc-facets engine :doc4 {:kind "person" :color "red"})
+    (if/set-doc-facets engine :doc5 {:kind "animal"})
+
+    (is (= #{:doc1 :doc2 :doc4 :doc5}
+           (set (map #((.-docs engine) %)
+                     (.toArray ^RoaringBitmap (if/search-hits engine "red"))))))
+    (is (= {:kind  {"animal" 3 "person" 1}
+            :color {"red" 2 "brown" 1 "white" 1}}
+           (if/facet-counts engine "red" [:kind :color])))
+    (is (= {:kind {"animal" 1 "person" 1}}
+           (if/facet-counts engine [:and "red" [:not "dogs"]] [:kind])))
+    (is (= {:kind {}} (if/facet-counts engine "nonexistentterm" [:kind])))
+
+    (if/add-doc engine :doc1 "The quick red fox jumped over the lazy cats.")
+    (is (= {:kind {"animal" 3 "person" 1}}
+           (if/facet-counts engine "red" [:kind])))
+    (if/set-doc-facets engine :doc4 {:kind "robber"})
+    (is (= {:kind  {"animal" 3 "robber" 1}
+            :color {"red" 1 "brown" 1 "white" 1}}
+           (if/facet-counts engine "red" [:kind :color])))
+    (if/remove-doc engine :doc2)
+    (is (= {:kind {"animal" 2 "robber" 1}}
+           (if/facet-counts engine "red" [:kind])))
+    (is (thrown-with-msg? Exception #"does not exist"
+                          (if/set-doc-facets engine :doc9 {:kind "none"})))
+
+    (if/clear-docs engine)
+    (if/add-doc engine :doc1 "The quick red fox jumped over the lazy cats.")
+    (is (= {:kind {}} (if/facet-counts engine "red" [:kind])))
+    (if/set-doc-facets engine :doc1 {:kind "robber"})
+    (is (= {:kind {"robber" 1}} (if/facet-counts engine "red" [:kind])))
+
+    (if/close-kv lmdb)
+    (u/delete-files dir)))
+
+(deftest prefix-fuzzy-search-test
+  (let [dir    (u/tmp-dir (str "search-fuzzy-" (UUID/randomUUID)))
+        lmdb   (l/open-kv dir {:flags
+                               (conj c/default-env-flags :nosync)})
+        engine ^SearchEngine (sut/new-search-engine lmdb)]
+    (add-docs if/add-doc engine)
+
+    (are [query result] (= result (set (if/search engine query)))
+      {:prefix "flee"}                         #{:doc2 :doc4}
+      {:prefix "Do"}                           #{:doc1 :doc5}
+      {:fuzzy "fleace"}                        #{:doc2 :doc4}
+      {:fuzzy "whael"}                         #{}
+      {:fuzzy "whael" :edits 2}                #{:doc3}
+      [:and {:fuzzy "redd"} {:prefix "jack"}]  #{:doc4}
+      [:and "red" [:not {:prefix "dog"}]]      #{:doc2 :doc4})
+    (is (nil? (if/search engine {:prefix "zzz"})))
+
+    (if/add-doc engine :doc6 "Fleecing is another word for robbery.")
+    (is (= #{:doc2 :doc4 :doc6} (set (if/search engine {:prefix "flee"}))))
+
+    (let [engine1 (sut/new-search-engine lmdb)]
+      (is (= #{:doc2 :doc4 :doc6} (set (if/search engine1 {:prefix "flee"}))))
+      (is (= #{:doc2 :doc4} (set (if/search engine1 {:fuzzy "fleece"
+                                                     :edits 1})))))
+
+    (if/clear-docs engine)
+    (is (nil? (if/search engine {:prefix "flee"})))
+    (if/add-doc engine :doc7 "Fleet of whales.")
+    (is (= [:doc7] (if/search engine {:prefix "flee"})))
+
     (if/close-kv lmdb)
     (u/delete-files dir)))
 
@@ -1,6 +1,7 @@
 (ns datalevin.spill-test
   (:require
    [datalevin.spill :as sp]
+   [datalevin.constants :as c]
    [datalevin.util :as u]
    [taoensso.nippy :as nippy]
    [clojure.test :refer [deftest testing is]]
@@ -8,7 +9,9 @@
    [clojure.test.check.clojure-test :as test]
    [clojure.test.check.properties :as prop])
   (:import
-   [datalevin.spill SpillableVector SpillableMap SpillableSet]))
+   [java.lang.ref WeakReference]
+   [java.util.concurrent.atomic AtomicLong]
+   [datalevin.spill SpillableVector SpillableMap SpillableSet SpillBudget]))
 
 (deftest vec-before-spill-test
   (let [^SpillableVector vs (sp/new-spillable-vector)]
@@ -341,6 +344,110 @@
                  {1 1 2 2})))
     (vreset! sp/memory-pressure 0)))
 
+(deftest spill-budget-test
+  (vreset! sp/memory-pressure 0)
+  (binding [c/*spill-batch-size* 10]
+    (let [^SpillableVector vs (sp/new-spillable-vector
+                                nil {:spill-budget 1000})
+          strs                (mapv #(str "value-" %) (range 100))]
+      (into vs strs)
+      (is (< 0 (sp/memory-count vs) 100))
+      (is (< 0 (sp/disk-count vs)))
+      (is (= 100 (count vs)))
+      (is (= strs vs))
+      (is (= "value-99" (peek vs)))
+      (is (= (butlast strs) (pop vs))))
+    (let [^SpillableMap m (sp/new-spillable-map nil {:spill-budget 1000})
+          kvs             (into {} (map (fn [i] [(str "key-" i) i]))
+                                (range 100))]
+      (into m kvs)
+      (is (< 0 (sp/memory-count m) 100))
+      (is (= 100 (count m)))
+      (is (= kvs m))
+      (is (= 42 (get m "key-42")))
+      (dissoc m "key-42")
+      (is (= 99 (count m)))
+      (is (nil? (get m "key-42"))))
+    (let [budget (sp/new-spill-budget 2000)]
+      (binding [sp/*spill-budget* budget]
+        (let [^SpillableVector v1 (sp/new-spillable-vector (range 100))
+              ^SpillableVector v2 (sp/new-spillable-vector (range 100))]
+          (is (= (range 100) v1 v2))
+          (is (< (+ (sp/memory-count v1) (sp/memory-count v2)) 200))
+          (is (< 0 (sp/disk-count v2))))))
+    (let [budget (sp/new-spill-budget 100000)
+          used   #(.get ^AtomicLong (.-used ^SpillBudget budget))]
+      (binding [sp/*spill-budget* budget]
+        (let [^SpillableVector v (sp/new-spillable-vector (range 10))
+              ^SpillableMap m    (sp/new-spillable-map {:a 1 :b 2})
+              n                  (used)]
+          (is (< 0 n))
+          (pop v)
+          (is (< (used) n))
+          (let [n (used)]
+            (dissoc m :a)
+            (is (< (used) n)))
+          (empty v)
+          (empty m)
+          (is (zero? (used))))))
+    (let [budget (sp/new-spill-budget (sp/estimate-size (range 100)))
+          used   #(.get ^AtomicLong (.-used ^SpillBudget budget))]
+      (binding [sp/*spill-budget* budget]
+        (sp/new-spillable-vector (range 100))
+        (is (< 0 (used)))
+        ;; as if dropped without being emptied and garbage collected
+        (doseq [^objects h (.-holders ^SpillBudget budget)]
+          (.clear ^WeakReference (aget h 0)))
+        (#'sp/reclaim budget)
+        (is (zero? (used)))
+        (let [^SpillableVector v (sp/new-spillable-vector (range 100))]
+          (is (= 100 (sp/memory-count v)))))))
+  (is (< (sp/estimate-size "a") (sp/estimate-size (apply str (repeat 100 "a")))))
+  (is (< (sp/estimate-size (vec (range 10)))
+         (sp/estimate-size (vec (range 1000))))))
+
+(deftest spill-read-ahead-test
+  (vreset! sp/memory-pressure 99)
+  (binding [c/*spill-batch-size* 7]
+    (let [^SpillableVector vs (sp/new-spillable-vector (range 100))]
+      (is (= 100 (sp/disk-count vs)))
+      (is (= (range 100) (seq vs)))
+      (is (= 4950 (reduce + vs)))
+      (is (= 50 (nth vs 50)))
+      (is (= 99 (peek vs)))
+      (assoc vs 3 :x)
+      (is (= :x (nth vs 3)))
+      (is (= 4 (nth vs 4)))
+      (is (= 98 (peek (pop vs))))
+      (is (= (concat (range 3) [:x] (range 4 99)) vs)))
+    (let [kvs             (into {} (map (fn [i] [i (str i)])) (range 100))
+          ^SpillableMap m (sp/new-spillable-map kvs)]
+      (is (= 100 (sp/disk-count m)))
+      (is (= kvs (into {} m)))
+      (is (= (set (range 100)) (set (keys m))))))
+  (vreset! sp/memory-pressure 0))
+
+(deftest tuple-set-test
+  (vreset! sp/memory-pressure 0)
+  (binding [c/*spill-batch-size* 10]
+    (let [ts    (sp/new-spillable-tuple-set {:spill-budget 2000})
+          tuple #(object-array [(quot % 3) (str "v" %)])]
+      (is (zero? (sp/tuple-count ts)))
+      (dotimes [i 300] (is (sp/add-tuple ts (tuple i))))
+      (is (< 0 (sp/memory-count ts) 300))
+      (is (= 300 (+ ^long (sp/memory-count ts) ^long (sp/disk-count ts))))
+      (dotimes [i 300] (is (not (sp/add-tuple ts (tuple i)))))
+      (is (= 300 (sp/tuple-count ts)))
+      (is (sp/has-tuple? ts (tuple 299)))
+      (is (sp/has-tuple? ts (tuple 0)))
+      (is (not (sp/has-tuple? ts (tuple 300))))
+      (is (not (sp/has-tuple? ts (object-array [0 "v1" nil]))))
+      (is (sp/add-tuple ts (tuple 300)))
+      (is (= 301 (sp/tuple-count ts)))
+      (sp/clear-tuples ts)
+      (is (zero? (sp/tuple-count ts)))
+      (is (not (sp/has-tuple? ts (tuple 0)))))))
+
 (test/defspec spillable-vector-nippy-test
   100
   (prop/for-all
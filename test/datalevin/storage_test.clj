@@ -5,20 +5,24 @@
    [datalevin.constants :as c]
    [datalevin.interface :as if]
    [datalevin.datom :as d]
+   [datalevin.bits :as b]
+   [datalevin.index :as idx]
    [datalevin.pipe :as p]
    [datalevin.test.core :as tdc :refer [db-fixture]]
    [clojure.test.check.generators :as gen]
    [clojure.test.check.clojure-test :as test]
    [clojure.test.check.properties :as prop]
-   [clojure.test :refer [deftest use-fixtures is are]]
+   [clojure.test :refer [deftest use-fixtures is are testing]]
    [clojure.walk :as w]
    [clojure.string :as s])
   (:import
    [java.util UUID Collection]
+   [java.io ByteArrayOutputStream]
    [java.util.concurrent LinkedBlockingQueue ConcurrentHashMap]
    [org.eclipse.collections.impl.list.mutable FastList]
    [datalevin.storage Store]
-   [datalevin.datom Datom]))
+   [datalevin.datom Datom]
+   [org.roaringbitmap RoaringBitmap]))
 
 (use-fixtures :each db-fixture)
 
@@ -220,6 +224,126 @@
     (if/close store)
     (u/delete-files dir)))
 
+(deftest parallel-encode-test
+  (let [schema {:a {:db/valueType :db.type/string}
+                :b {:db/valueType :db.type/long}}
+        dir    (u/tmp-dir (str "datalevin-parallel-encode-test-"
+                               (UUID/randomUUID)))
+        store  (sut/open
+                 dir schema
+                 {:kv-opts {:flags (conj c/default-env-flags :nosync)}})
+        giant  (apply str (repeat 100 (UUID/randomUUID)))
+        ds     (for [e (range c/e0 (+ c/e0 20))]
+                 (d/datom e :a (if (even? e) giant (str "v" e))))
+        ds1    (concat (map d/delete (take 5 ds))
+                       (for [e (range c/e0 (+ c/e0 20))] (d/datom e :b e))
+                       [(d/datom c/e0 :c "new attr")])]
+    (binding [c/*datom-encode-parallel-size* 8
+              c/*datom-encode-chunk-size*    3]
+      (if/load-datoms store ds)
+      (is (= ds (if/slice store :eav
+                          (d/datom c/e0 :a c/v0)
+                          (d/datom c/emax :a c/vmax))))
+      (if/load-datoms store ds1))
+    (is (= (filter #(= giant (.-v ^Datom %)) (drop 5 ds))
+           (if/slice store :ave
+                     (d/datom c/e0 :a giant)
+                     (d/datom c/emax :a giant))))
+    (is (= 20 (if/size store :ave
+                       (d/datom c/e0 :b c/v0)
+                       (d/datom c/emax :b c/vmax))))
+    (is (= [(d/datom c/e0 :c "new attr")]
+           (if/fetch store (d/datom c/e0 :c "new attr"))))
+    (if/close store)
+    (u/delete-files dir)))
+
+(deftest sorted-txs-test
+  (let [dir   (u/tmp-dir (str "datalevin-sorted-txs-test-" (UUID/randomUUID)))
+        store (sut/open
+                dir {:a {:db/valueType :db.type/long}
+                     :b {:db/valueType :db.type/long}}
+                {:kv-opts {:flags (conj c/default-env-flags :nosync)}})
+        ds    (for [e (shuffle (range c/e0 (+ c/e0 100)))]
+                (d/datom e (if (even? e) :a :b) (- 1000 e)))
+        d0    (d/datom c/e0 :a 1000)]
+    (binding [c/*datom-encode-parallel-size* 2
+              c/*datom-encode-chunk-size*    7]
+      (if/load-datoms store ds)
+      (is (= (sort-by #(.-e ^Datom %) ds)
+             (if/slice store :eav
+                       (d/datom c/e0 nil nil)
+                       (d/datom c/emax nil nil))))
+      (is (= 50 (if/size store :ave
+                         (d/datom c/e0 :b c/v0)
+                         (d/datom c/emax :b c/vmax))))
+      ;; updates of the same datom keep their order
+      (if/load-datoms store [d0 (d/delete d0)])
+      (is (empty? (if/fetch store d0)))
+      (if/load-datoms store [(d/delete d0) d0])
+      (is (= [d0] (if/fetch store d0))))
+    (if/close store)
+    (u/delete-files dir)))
+
+(deftest dedup-giants-test
+  (let [schema  {:a {:db/valueType :db.type/string}
+                 :t {:db/valueType :db.type/string :db/fulltext true}}
+        dir     (u/tmp-dir (str "datalevin-dedup-giants-test-"
+                                (UUID/randomUUID)))
+        store   (sut/open
+                  dir schema
+                  {:kv-opts       {:flags (conj c/default-env-flags :nosync)}
+                   :dedup-giants? true})
+        lmdb    (.-lmdb ^Store store)
+        v       (apply str (repeat 100 (UUID/randomUUID)))
+        v1      (str v "1")
+        [d0 d1 d2 :as ds] (for [e (range c/e0 (+ c/e0 3))] (d/datom e :a v))
+        db      (d/datom c/e0 :b v)
+        giants  #(if/entries lmdb c/giants)]
+    (if/load-datoms store [d0 d1])
+    (is (= 1 (giants)))
+    (if/load-datoms store [d2 db (d/datom c/e0 :a v1)])
+    (is (= 2 (giants)))
+    (is (= [d0] (if/fetch store d0)))
+    (is (= [db] (if/fetch store db)))
+    (is (= ds (if/av-datoms store :a v)))
+    (is (= [d2] (if/slice store :eav
+                          (d/datom (+ c/e0 2) :a c/v0)
+                          (d/datom (+ c/e0 2) :a c/vmax))))
+    (testing "values of full-text attributes are not shared"
+      (if/load-datoms store [(d/datom c/e0 :t v) (d/datom (inc c/e0) :t v)])
+      (is (= 4 (giants))))
+    (if/load-datoms store [(d/delete d0) (d/delete db)])
+    (is (= 4 (giants)))
+    (is (= [d1 d2] (if/av-datoms store :a v)))
+    (if/load-datoms store [(d/delete d1) (d/delete d2)])
+    (is (= 3 (giants)))
+    (is (empty? (if/av-datoms store :a v)))
+    (is (= 1 (if/entries lmdb c/giant-hashes)))
+    (if/load-datoms store [d0])
+    (is (= 4 (giants)))
+    (is (= [d0] (if/fetch store d0)))
+    (if/close store)
+    (u/delete-files dir)))
+
+(deftest giant-handle-test
+  (let [dir   (u/tmp-dir (str "datalevin-giant-handle-test-" (UUID/randomUUID)))
+        store (sut/open
+                dir {:a {:db/valueType :db.type/string}}
+                {:kv-opts {:flags (conj c/default-env-flags :nosync)}})
+        lmdb  (.-lmdb ^Store store)
+        v     (apply str (repeat 100 (UUID/randomUUID)))
+        d0    (d/datom (+ c/e0 7) :a v)
+        out   (ByteArrayOutputStream.)]
+    (if/load-datoms store [d0])
+    (let [h (idx/gt->giant lmdb c/g0)]
+      (is (= (+ c/e0 7) (idx/giant-e h)))
+      (is (= (.size out) (idx/write-giant h out)))
+      (is (= d0 (b/deserialize (.toByteArray out))))
+      (is (= d0 @h))
+      (is (= (+ c/e0 7) (idx/giant-e h))))
+    (if/close store)
+    (u/delete-files dir)))
+
 (deftest giants-data-test
   (let [dir   (u/tmp-dir (str "datalevin-giants-data-test-" (UUID/randomUUID)))
         store (sut/open
@@ -717,3 +841,68 @@
                new-sample))))
     (if/close store)
     (u/delete-files dir)))
+
+(deftest async-side-index-test
+  (let [dir    (u/tmp-dir (str "async-side-index-test-" (UUID/randomUUID)))
+        schema {:text {:db/valueType :db.type/string :db/fulltext true}
+                :doc  {:db/valueType :db.type/idoc}}
+        opts   {:kv-opts           {:flags (conj c/default-env-flags :nosync)}
+                :async-side-index? true}
+        open   #(binding [c/*side-index-interval* 3600000]
+                  (sut/open dir schema opts))
+        engine #(get (.-search-engines ^Store %) c/default-domain)
+        idocs  #(.getCardinality
+                  ^RoaringBitmap (.-all-doc-ids (get (.-idoc-indices ^Store %)
+                                                     "doc")))
+        store  (open)]
+    (if/load-datoms store [(d/datom c/e0 :text "hello world")
+                           (d/datom c/e0 :doc {:a 1 :b ["x" "y"]})])
+    (is (= 0 (if/doc-count (engine store))))
+    (is (= 0 (idocs store)))
+    (is (= (dec ^long (if/max-tx store)) (sut/side-indexed-tx store)))
+    (is (= (if/max-tx store) (sut/await-side-indices store)))
+    (is (= 1 (if/doc-count (engine store))))
+    (is (= 1 (idocs store)))
+    (is (= [[c/e0 (:db/aid ((if/schema store) :text)) "hello world"]]
+           (if/search (engine store) "hello")))
+    (if/load-datoms store [(d/delete (d/datom c/e0 :text "hello world"))
+                           (d/datom (inc c/e0) :text "good day")])
+    (if/close store)
+    (let [store (open)]
+      (is (= (if/max-tx store) (sut/side-indexed-tx store)))
+      (is (= 1 (if/doc-count (engine store))))
+      (is (empty? (if/search (engine store) "hello")))
+      (if/assoc-opt store :async-side-index? false)
+      (if/load-datoms store [(d/datom (inc c/e0) :doc {:a 2})])
+      (is (= 2 (idocs store)))
+      (if/close store))
+    (u/delete-files dir)))
+
+(deftest async-side-index-failure-test
+  (let [dir    (u/tmp-dir (str "async-side-failure-test-" (UUID/randomUUID)))
+        schema {:text {:db/valueType :db.type/string :db/fulltext true}}
+        store  (binding [c/*side-index-interval* 3600000]
+                 (sut/open dir schema
+                           {:kv-opts           {:flags (conj c/default-env-flags
+                                                             :nosync)}
+                            :async-side-index? true}))
+        engine (get (.-search-engines ^Store store) c/default-domain)
+        add    if/add-doc]
+    (if/load-datoms store [(d/datom c/e0 :text "hello world")])
+    (if/load-datoms store [(d/datom (inc c/e0) :text "boom")])
+    (with-redefs [if/add-doc (fn [engine doc-ref text check-exist?]
+                               (if (= text "boom")
+                                 (throw (ex-info "boom" {}))
+                                 (add engine doc-ref text check-exist?)))]
+      (binding [c/*side-index-max-retries* 2]
+        (is (thrown-with-msg? Exception #"boom"
+                              (sut/await-side-indices store)))
+        ;; the rolled back batch left no ghost doc
+        (is (= 1 (if/doc-count engine)))
+        (is (= 1 (count (if/search engine "hello"))))
+        (is (= (dec ^long (if/max-tx store)) (sut/side-indexed-tx store)))
+        (is (= (if/max-tx store) (sut/await-side-indices store)))
+        (is (= 1 (if/entries (.-lmdb ^Store store) c/side-failed)))
+        (is (= 1 (if/doc-count engine)))))
+    (if/close store)
+    (u/delete-files dir)))
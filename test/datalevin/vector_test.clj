@@ -172,6 +172,288 @@
       (d/close-kv lmdb)
       (u/delete-files dir))))
 
+(deftest add-vecs-test
+  (when-not (u/windows?)
+    (let [dir   (u/tmp-dir (str "test-" (UUID/randomUUID)))
+          lmdb  (d/open-kv dir)
+          index ^VectorIndex (sut/new-vector-index lmdb {:dimensions dims})
+          pairs (vec vec-data)
+          ids   (d/add-vecs index pairs {:threads 4})]
+      (is (= (count pairs) (count ids)))
+      (is (apply distinct? ids))
+      (is (= [] (d/add-vecs index [])))
+      (let [info (d/vector-index-info index)]
+        (is (= (info :size) 277))
+        (is (<= 277 (info :capacity))))
+      (is (if/vec-indexed? index "king"))
+      (is (= [(vec-data "cat")] (mapv vec (if/get-vec index "cat"))))
+      (is (= ["king" "queen"] (d/search-vec index (vec-data "king") {:top 2})))
+      (is (= ["cat" "feline" "animal"]
+             (d/search-vec index (vec-data "cat") {:top 3})))
+      (is (thrown-with-msg? Exception #"dimensions"
+                            (d/add-vecs index [[:bad [1.0 2.0]]])))
+      (let [id (d/add-vec index "cat2" (vec-data "cat"))]
+        (is (< ^long (apply max ids) ^long id)))
+      (let [id (sut/reserve-vec-id index)]
+        (is (= id (sut/add-vec-at index "cat3" (vec-data "cat") id)))
+        (sut/add-vec-at index "cat3" (vec-data "cat") id)
+        (is (= 279 ((d/vector-index-info index) :size)))
+        (is (= [(vec-data "cat")] (mapv vec (if/get-vec index "cat3")))))
+      (d/close-vector-index index)
+      (d/close-kv lmdb)
+      (u/delete-files dir))))
+
+(deftest filtered-search-test
+  (when-not (u/windows?)
+    (let [dir     (u/tmp-dir (str "test-" (UUID/randomUUID)))
+          lmdb    (d/open-kv dir)
+          index   ^VectorIndex (sut/new-vector-index lmdb {:dimensions dims})
+          animals #{"cat" "feline" "animal" "jaguar" "rooster"}]
+      (d/add-vecs index (vec vec-data))
+      (is (= ["cat" "feline" "animal"]
+             (d/search-vec index (vec-data "physics")
+                           {:top 3 :vec-filter animals
+                            :vec-refs #{"cat" "feline" "animal"}})))
+      (let [res (d/search-vec index (vec-data "physics")
+                              {:top 5 :vec-filter animals})]
+        (is (= 5 (count res)))
+        (is (= animals (set res))))
+      (is (= ["cat" "jaguar"]
+             (d/search-vec index (vec-data "cat")
+                           {:top 2 :vec-refs ["jaguar" "cat"]})))
+      (binding [c/*vector-brute-force-max*   0
+                c/*vector-brute-force-ratio* 0.0]
+        (is (= ["cat" "jaguar"]
+               (d/search-vec index (vec-data "cat")
+                             {:top 2 :vec-refs ["jaguar" "cat" "physics"]
+                              :vec-filter animals})))
+        (let [[[r1 d1] [r2 d2]]
+              (d/search-vec index (vec-data "cat")
+                            {:top 2 :vec-refs (keys vec-data)
+                             :display :refs+dists})]
+          (is (= "cat" r1))
+          (is (<= d1 d2))))
+      (is (empty? (d/search-vec index (vec-data "cat") {:vec-refs []})))
+      (d/close-vector-index index)
+      (d/close-kv lmdb)
+      (u/delete-files dir))))
+
+(deftest add-vecs-byte-test
+  (when-not (u/windows?)
+    (let [dir    (u/tmp-dir (str "test-" (UUID/randomUUID)))
+          lmdb   (d/open-kv dir)
+          n      64
+          random (Random.)
+          index  ^VectorIndex (sut/new-vector-index
+                                lmdb {:dimensions   n
+                                      :quantization :byte
+                                      :metric-type  :hamming})
+          pairs  (mapv (fn [i]
+                         (let [bs (byte-array n)]
+                           (dotimes [j (quot n 8)]
+                             (aset bs j (byte (- (.nextInt random 256) 128))))
+                           [i bs]))
+                       (range 10))]
+      (d/add-vecs index pairs {:threads 2})
+      (doseq [[i bs] (rest pairs)]
+        (is (= [(vec bs)] (mapv vec (if/get-vec index i))))
+        (is (= [i] (d/search-vec index bs {:top 1}))))
+      (is (= (mapv (comp vector first) pairs)
+             (d/search-vecs index (mapv peek pairs) {:top 1 :threads 2})))
+      ;; exact search over candidates
+      (doseq [[i bs] (rest pairs)]
+        (let [[[r0 d0] [_ d1] :as res]
+              (d/search-vec index bs {:top      3
+                                      :vec-refs (mapv first pairs)
+                                      :display :refs+dists})]
+          (is (= 3 (count res)))
+          (is (= i r0))
+          (is (zero? d0))
+          (is (<= d0 d1))))
+      (d/close-vector-index index)
+      (d/close-kv lmdb)
+      (u/delete-files dir))))
+
+(deftest search-vecs-test
+  (when-not (u/windows?)
+    (let [dir     (u/tmp-dir (str "test-" (UUID/randomUUID)))
+          lmdb    (d/open-kv dir)
+          index   ^VectorIndex (sut/new-vector-index lmdb {:dimensions dims})
+          words   ["king" "man" "cat" "physics"]
+          queries (mapv vec-data words)]
+      (d/add-vecs index (vec vec-data))
+      (is (= (mapv #(d/search-vec index % {:top 3}) queries)
+             (d/search-vecs index queries {:top 3 :threads 3})))
+      (is (= (mapv #(d/search-vec index % {:top 2 :display :refs+dists})
+                   queries)
+             (d/search-vecs index queries {:top 2 :display :refs+dists})))
+      (is (= [["cat"] ["cat"] ["cat"] ["cat"]]
+             (d/search-vecs index queries {:top 1 :vec-refs ["cat"]})))
+      (is (= [] (d/search-vecs index [])))
+      (d/close-vector-index index)
+      (d/close-kv lmdb)
+      (u/delete-files dir))))
+
+(deftest wal-replay-test
+  (when-not (u/windows?)
+    (let [dir    (u/tmp-dir (str "test-" (UUID/randomUUID)))
+          lmdb   (d/open-kv dir)
+          index  ^VectorIndex (sut/new-vector-index lmdb {:dimensions dims})
+          fname  (sut/index-fname lmdb c/default-domain)
+          wal    (str c/default-domain "/" c/vec-wal)
+          words  ["cat" "feline" "animal" "physics" "science"]]
+      (d/add-vecs index (mapv (fn [w] [w (vec-data w)]) (take 3 words)))
+      (doseq [w (drop 3 words)] (d/add-vec index w (vec-data w)))
+      (d/remove-vec index "animal")
+      (is (= 6 (d/entries lmdb wal)))
+      (is (not (u/file-exists fname)))
+
+      ;; as if crashed before any snapshot
+      (let [index1 ^VectorIndex (sut/new-vector-index* lmdb {:dimensions dims})]
+        (is (= 4 ((d/vector-index-info index1) :size)))
+        (is (= ["cat" "feline"]
+               (d/search-vec index1 (vec-data "cat") {:top 2})))
+        (is (not (if/vec-indexed? index1 "animal")))
+        (if/close-vecs index1))
+
+      (if/persist-vecs index)
+      (is (u/file-exists fname))
+      (is (= 0 (d/entries lmdb wal)))
+      (d/add-vec index "chemistry" (vec-data "chemistry"))
+      (is (= 1 (d/entries lmdb wal)))
+
+      (let [index2 ^VectorIndex (sut/new-vector-index* lmdb {:dimensions dims})]
+        (is (= 5 ((d/vector-index-info index2) :size)))
+        (is (= ["chemistry"]
+               (d/search-vec index2 (vec-data "chemistry") {:top 1})))
+        (if/close-vecs index2))
+
+      (d/close-vector-index index)
+      (is (= 0 (d/entries lmdb wal)))
+      (d/close-kv lmdb)
+      (u/delete-files dir))))
+
+(deftest view-test
+  (when-not (u/windows?)
+    (let [dir   (u/tmp-dir (str "test-" (UUID/randomUUID)))
+          lmdb  (d/open-kv dir)
+          index (sut/new-vector-index lmdb {:dimensions dims})
+          wal   (str c/default-domain "/" c/vec-wal)]
+      (d/add-vecs index (mapv (fn [w] [w (vec-data w)])
+                              ["cat" "feline" "animal" "physics"]))
+      (d/close-vector-index index)
+
+      (let [view (sut/new-vector-index lmdb {:dimensions dims :view? true})]
+        (is ((d/vector-index-info view) :view?))
+        (is (= 4 ((d/vector-index-info view) :size)))
+        (is (= ["cat" "feline"] (d/search-vec view (vec-data "cat") {:top 2})))
+
+        (d/add-vec view "jaguar" (vec-data "jaguar"))
+        (d/remove-vec view "feline")
+        (is (= 4 ((d/vector-index-info view) :size)))
+        (let [res (d/search-vec view (vec-data "cat") {:top 5})]
+          (is (= "cat" (first res)))
+          (is (= #{"cat" "jaguar" "animal" "physics"} (set res))))
+        (is (= [(vec-data "jaguar")] (mapv vec (if/get-vec view "jaguar"))))
+        (is (= [(vec-data "cat")] (mapv vec (if/get-vec view "cat"))))
+        (is (= ["jaguar"]
+               (d/search-vec view (vec-data "cat")
+                             {:top 1 :vec-refs ["jaguar" "feline"]})))
+
+        (if/persist-vecs view)
+        (is (= 0 (d/entries lmdb wal)))
+        (is (= 4 ((d/vector-index-info view) :size)))
+        (is (= #{"cat" "jaguar" "animal" "physics"}
+               (set (d/search-vec view (vec-data "cat") {:top 5}))))
+        (d/remove-vec view "jaguar")
+        (is (= ["cat" "animal"] (d/search-vec view (vec-data "cat") {:top 2})))
+        (d/close-vector-index view))
+
+      (let [index (sut/new-vector-index lmdb {:dimensions dims})]
+        (is (= 3 ((d/vector-index-info index) :size)))
+        (is (not (if/vec-indexed? index "feline")))
+        (is (= ["cat" "animal"] (d/search-vec index (vec-data "cat") {:top 2})))
+        (d/close-vector-index index))
+      (d/close-kv lmdb)
+      (u/delete-files dir))))
+
+(deftest view-merge-test
+  (when-not (u/windows?)
+    (let [dir   (u/tmp-dir (str "test-" (UUID/randomUUID)))
+          lmdb  (d/open-kv dir)
+          index (sut/new-vector-index lmdb {:dimensions dims})
+          refs  (str c/default-domain "/" c/vec-refs)
+          wal   (str c/default-domain "/" c/vec-wal)]
+      (d/add-vecs index (mapv (fn [w] [w (vec-data w)])
+                              ["cat" "feline" "animal" "physics"]))
+      (d/close-vector-index index)
+      ;; as if crashed after a snapshot, before its log entries are dropped
+      (d/transact-kv lmdb [[:put wal 1
+                            [(first (d/get-list lmdb refs "cat" :data :id))
+                             (float-array (vec-data "cat"))]
+                            :id :data]])
+
+      (let [view (sut/new-vector-index lmdb {:dimensions dims :view? true})]
+        (if/persist-vecs view)
+        (is (= 0 (d/entries lmdb wal)))
+        (if/persist-vecs view)
+        (is (= 4 ((d/vector-index-info view) :size)))
+        (is (= ["cat" "feline"] (d/search-vec view (vec-data "cat") {:top 2})))
+        (d/close-vector-index view))
+      (d/close-kv lmdb)
+      (u/delete-files dir))))
+
+(deftest rerank-test
+  (when-not (u/windows?)
+    (let [dir    (u/tmp-dir (str "test-" (UUID/randomUUID)))
+          lmdb   (d/open-kv dir)
+          index  (sut/new-vector-index lmdb {:dimensions   dims
+                                             :metric-type  :cosine
+                                             :quantization :int8
+                                             :rerank?      true})
+          floats (str c/default-domain "/" c/vec-floats)
+          cosine (fn [a b]
+                   (let [dot #(reduce + (map * %1 %2))]
+                     (- 1.0 (/ (dot a b)
+                               (Math/sqrt (* (dot a a) (dot b b)))))))]
+      (d/add-vecs index (vec vec-data))
+      (is ((d/vector-index-info index) :rerank?))
+      (is (= :int8 ((d/vector-index-info index) :quantization)))
+      (is (= 277 (d/entries lmdb floats)))
+      (is (= [(vec-data "cat")] (mapv vec (if/get-vec index "cat"))))
+
+      (let [res (d/search-vec index (vec-data "cat")
+                              {:top 3 :display :refs+dists})]
+        (is (= "cat" (ffirst res)))
+        (is (apply <= (map peek res)))
+        (doseq [[w dist] res]
+          (is (< (Math/abs (- ^double (cosine (vec-data "cat") (vec-data w))
+                              (double dist)))
+                 1e-5))))
+      (is (= ["king" "cat"]
+             (mapv first (d/search-vecs index [(vec-data "king")
+                                               (vec-data "cat")]
+                                        {:top 2 :oversample 8}))))
+
+      (d/remove-vec index "feline")
+      (is (= 276 (d/entries lmdb floats)))
+      (is (not-any? #{"feline"} (d/search-vec index (vec-data "cat") {:top 5})))
+      (d/close-vector-index index)
+
+      (let [index (sut/new-vector-index lmdb {:dimensions   dims
+                                              :metric-type  :cosine
+                                              :quantization :int8
+                                              :rerank?      true})]
+        (is (= [(vec-data "cat")] (mapv vec (if/get-vec index "cat"))))
+        (is (= "cat" (first (d/search-vec index (vec-data "cat")))))
+        (d/close-vector-index index))
+      (is (thrown-with-msg? Exception #"rerank"
+                            (sut/new-vector-index lmdb {:dimensions   dims
+                                                        :metric-type  :cosine
+                                                        :quantization :int8})))
+      (d/close-kv lmdb)
+      (u/delete-files dir))))
+
 (deftest vec-neighbors-fns-test
   (let [dir  (u/tmp-dir (str "vec-fns-" (UUID/randomUUID)))
         conn (d/create-conn